@@ -49,6 +49,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.filters.SdkSuppress;
@@ -153,6 +154,32 @@ public class ImportTest extends InstrumentedTest {
         empty.close();
     }
 
+    @Test
+    public void testAnki2MediaSharedByManyNotes() throws IOException, ImportExportException {
+        // media is copied in the background: each file should be copied and recorded exactly once
+        for (int i = 0; i < 50; i++) {
+            Note n = testCol.newNote();
+            n.setField(0, String.format(Locale.US, "[sound:shared%d.mp3] %d", i % 10, i));
+            testCol.addNote(n);
+        }
+        for (int i = 0; i < 10; i++) {
+            try (FileOutputStream os = new FileOutputStream(new File(testCol.getMedia().dir(), "shared" + i + ".mp3"), false)) {
+                os.write(("shared" + i).getBytes());
+            }
+        }
+        testCol.close();
+        Collection empty = getEmptyCol();
+        Importer imp = new Anki2Importer(empty, testCol.getPath());
+        imp.run();
+        assertEquals(50, empty.noteCount());
+        for (int i = 0; i < 10; i++) {
+            String fname = "shared" + i + ".mp3";
+            assertTrue(new File(empty.getMedia().dir(), fname).exists());
+            assertTrue(empty.getMedia().have(fname));
+        }
+        empty.close();
+    }
+
     @Test
     public void testApkg() throws IOException, ImportExportException {
 
@@ -194,6 +194,18 @@ function _runHook(arr) {
 var onUpdateHook = [];
 var onShownHook = [];
 
+/* Called from Java to display the next card in the current page, rather than loading a new page.
+   The page is only reused if it provides the styles and scripts the new card requires. */
+function _updateCardContent(content, cardClass) {
+    onUpdateHook = [];
+    onShownHook = [];
+    resizeDone = false;
+    document.body.className = cardClass;
+    document.getElementById("content").innerHTML = content;
+    window.scrollTo(0, 0);
+    onPageFinished();
+}
+
 var onPageFinished = function() {
     if (!resizeDone) {
         resizeImages();
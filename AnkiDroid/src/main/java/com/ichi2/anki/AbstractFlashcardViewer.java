@@ -84,6 +84,9 @@ import com.drakeet.drawer.FullDraggableContainer;
 import com.google.android.material.snackbar.Snackbar;
 import com.ichi2.anim.ViewAnimation;
 import com.ichi2.anki.cardviewer.CardHtml;
+import com.ichi2.anki.cardviewer.CardHtmlPrefetcher;
+import com.ichi2.anki.cardviewer.CardHtmlPrefetcher.PrerenderedCard;
+import com.ichi2.anki.cardviewer.CardShellRenderer;
 import com.ichi2.anki.cardviewer.HtmlGenerator;
 import com.ichi2.anki.cardviewer.Side;
 import com.ichi2.anki.cardviewer.GestureProcessor;
@@ -232,6 +235,15 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
     /** Generates HTML content */
     private HtmlGenerator mHtmlGenerator;
 
+    /** Number of cards of each scheduler queue which are rendered ahead of time */
+    private static final int PREFETCH_CARD_COUNT = 3;
+
+    /** Renders the upcoming cards in the background */
+    @Nullable private CardHtmlPrefetcher mPrefetcher;
+
+    /** The render of the current card, if it was rendered ahead of time */
+    @Nullable private PrerenderedCard mPrerenderedCard;
+
     // Default short animation duration, provided by Android framework
     protected int mShortAnimDuration;
     private boolean mBackButtonPressedToReturn = false;
@@ -296,6 +308,9 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
     protected final GestureProcessor mGestureProcessor = new GestureProcessor(this);
 
     private String mCardContent;
+    /** The parts of {@link #mCardContent}, used to display the card without reloading the page */
+    @Nullable private CardHtml.PageParts mCardPageParts;
+    private final CardShellRenderer mShellRenderer = new CardShellRenderer();
     private String mBaseUrl;
     private String mViewerUrl;
     private WebViewAssetLoader mAssetLoader;
@@ -537,8 +552,8 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             }
 
             setCurrentCard(card);
-            TaskManager.launchCollectionTask(new CollectionTask.PreloadNextCard()); // Tasks should always be launched from GUI. So in
-                                                                    // listener and not in background
+            prefetchUpcomingCards(); // Tasks should always be launched from GUI. So in
+                                     // listener and not in background
             if (mCurrentCard == null) {
                 // If the card is null means that there are no more cards scheduled for review.
                 mNoMoreCards = true;
@@ -575,6 +590,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
 
     protected void setCurrentCard(Card card) {
         mCurrentCard = card;
+        mPrerenderedCard = null;
         if (card == null) {
             mCardSoundConfig = null;
         } else {
@@ -645,6 +661,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             hideProgressBar();
             AbstractFlashcardViewer.this.unblockControls();
             AbstractFlashcardViewer.this.displayCardQuestion();
+            prefetchUpcomingCards();
             // set the correct mark/unmark icon on action bar
             refreshActionBar();
             focusDefaultLayout();
@@ -652,6 +669,12 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
     }
 
 
+    /** Render the cards which may be displayed after the current one, so that they can be displayed immediately */
+    protected void prefetchUpcomingCards() {
+        TaskManager.launchCollectionTask(new CollectionTask.PreloadNextCard(PREFETCH_CARD_COUNT, mPrefetcher));
+    }
+
+
     private void focusDefaultLayout() {
         if (!AndroidUiUtils.isRunningOnTv(this)) {
             findViewById(R.id.root_layout).requestFocus();
@@ -770,6 +793,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
         }
 
         mHtmlGenerator = HtmlGenerator.createInstance(this, this.mTypeAnswer, mBaseUrl);
+        mPrefetcher = new CardHtmlPrefetcher(mHtmlGenerator);
 
         // Initialize text-to-speech. This is an asynchronous operation.
         mTTS.initialize(this, new ReadTextListener());
@@ -820,6 +844,9 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             mSched.discardCurrentCard();
         }
         Timber.d("onDestroy()");
+        if (mPrefetcher != null) {
+            mPrefetcher.invalidateAll();
+        }
         mTTS.releaseTts(this);
         if (mUnmountReceiver != null) {
             unregisterReceiver(mUnmountReceiver);
@@ -984,11 +1011,13 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
            The card could have been rescheduled, the deck could have changed, or a change of
            note type could have lead to the card being deleted */
         if (data != null && data.hasExtra("reloadRequired")) {
+            invalidatePrefetchedCards();
             performReload();
         }
 
         if (requestCode == EDIT_CURRENT_CARD) {
             if (resultCode == RESULT_OK) {
+                invalidatePrefetchedCards();
                 // content of note was changed so update the note and current card
                 Timber.i("AbstractFlashcardViewer:: Saving card...");
                 TaskManager.launchCollectionTask(
@@ -1082,11 +1111,21 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
 
     protected void undo() {
         if (isUndoAvailable()) {
+            invalidatePrefetchedCards();
             new UndoService.Undo().runWithHandler(answerCardHandler(false));
         }
     }
 
 
+    /** Discard the cards rendered ahead of time, as their content or the order of cards may have changed */
+    protected void invalidatePrefetchedCards() {
+        mPrerenderedCard = null;
+        if (mPrefetcher != null) {
+            mPrefetcher.invalidateAll();
+        }
+    }
+
+
     private void finishNoStorageAvailable() {
         AbstractFlashcardViewer.this.setResult(DeckPicker.RESULT_MEDIA_EJECTED);
         finishWithoutAnimation();
@@ -1383,6 +1422,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
     }
 
     private void destroyWebView(WebView webView) {
+        mShellRenderer.reset();
         try {
             if (webView != null) {
                 webView.stopLoading();
@@ -1584,6 +1624,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
 
     protected void recreateWebView() {
         if (mCardWebView == null) {
+            mShellRenderer.reset();
             mCardWebView = createWebView();
             WebViewDebugging.initializeDebugging(AnkiDroidApp.getSharedPrefs(this));
             mCardFrame.addView(mCardWebView);
@@ -1673,8 +1714,13 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             mAnswerField.setVisibility(View.GONE);
         }
 
-        CardHtml content = mHtmlGenerator.generateHtml(mCurrentCard, reload, Side.FRONT);
-        updateCard(content);
+        mPrerenderedCard = reload || mPrefetcher == null ? null : mPrefetcher.take(mCurrentCard);
+        if (mPrerenderedCard != null) {
+            updateCard(mPrerenderedCard.getQuestion(), mPrerenderedCard.getQuestionHtml());
+        } else {
+            CardHtml content = mHtmlGenerator.generateHtml(mCurrentCard, reload, Side.FRONT);
+            updateCard(content);
+        }
         hideEaseButtons();
 
         mAutomaticAnswer.onDisplayQuestion();
@@ -1721,8 +1767,12 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
         }
 
         mIsSelecting = false;
-        CardHtml answerContent = mHtmlGenerator.generateHtml(mCurrentCard, false, Side.BACK);
-        updateCard(answerContent);
+        if (mPrerenderedCard != null && mPrerenderedCard.getCard() == mCurrentCard && mPrerenderedCard.getAnswer() != null) {
+            updateCard(mPrerenderedCard.getAnswer(), mPrerenderedCard.getAnswerHtml());
+        } else {
+            CardHtml answerContent = mHtmlGenerator.generateHtml(mCurrentCard, false, Side.BACK);
+            updateCard(answerContent);
+        }
         displayAnswerBottomBar();
 
         mAutomaticAnswer.onDisplayAnswer();
@@ -1773,6 +1823,14 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
 
 
     private void updateCard(final CardHtml content) {
+        updateCard(content, content.getTemplateHtml());
+    }
+
+    /**
+     * @param content The side of the card to display
+     * @param templateHtml The full page of content, as returned by {@link CardHtml#getTemplateHtml()}
+     */
+    private void updateCard(final CardHtml content, final String templateHtml) {
         Timber.d("updateCard()");
 
         mUseTimerDynamicMS = 0;
@@ -1791,7 +1849,8 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             }
         }
 
-        mCardContent = content.getTemplateHtml();
+        mCardContent = templateHtml;
+        mCardPageParts = content.getPageParts();
         Timber.d("base url = %s", mBaseUrl);
 
         if (AnkiDroidApp.getSharedPrefs(this).getBoolean("html_javascript_debugging", false)) {
@@ -1903,7 +1962,8 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             return;
         }
         final String cardContent = mCardContent;
-        processCardAction(cardWebView -> loadContentIntoCard(cardWebView, cardContent));
+        final CardHtml.PageParts pageParts = mCardPageParts;
+        processCardAction(cardWebView -> loadContentIntoCard(cardWebView, cardContent, pageParts));
         mGestureDetectorImpl.onFillFlashcard();
         if (!sDisplayAnswer) {
             updateForNewCard();
@@ -1911,9 +1971,20 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
     }
 
 
-    private void loadContentIntoCard(WebView card, String content) {
+    private void loadContentIntoCard(WebView card, String content, @Nullable CardHtml.PageParts pageParts) {
         if (card != null) {
             card.getSettings().setMediaPlaybackRequiresUserGesture(!mCardSoundConfig.getAutoplay());
+            String swapScript = pageParts == null ? null : mShellRenderer.getSwapScript(pageParts);
+            if (swapScript != null) {
+                Timber.d("Replacing the content of the loaded page");
+                card.evaluateJavascript(swapScript, null);
+                return;
+            }
+            if (pageParts != null) {
+                mShellRenderer.onPageLoading(pageParts);
+            } else {
+                mShellRenderer.reset();
+            }
             card.loadDataWithBaseURL(mViewerUrl, content, "text/html", "utf-8", null);
         }
     }
@@ -2943,6 +3014,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             // onPageFinished will be called multiple times if the WebView redirects by setting window.location.href
             if (url.equals(mViewerUrl)) {
                 Timber.d("New URL, triggering JS onPageFinished: %s", url);
+                mShellRenderer.onPageFinished();
                 view.loadUrl("javascript:onPageFinished();");
             }
         }
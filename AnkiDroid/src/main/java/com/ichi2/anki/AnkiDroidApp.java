@@ -49,6 +49,7 @@ import com.ichi2.anki.exception.StorageAccessException;
 import com.ichi2.anki.services.BootService;
 import com.ichi2.anki.services.NotificationService;
 import com.ichi2.compat.CompatHelper;
+import com.ichi2.libanki.QueryProfiler;
 import com.ichi2.utils.AdaptionUtil;
 import com.ichi2.utils.ExceptionUtil;
 import com.ichi2.utils.KotlinCleanup;
@@ -360,6 +361,8 @@ public class AnkiDroidApp extends Application {
         
         CardBrowserContextMenu.ensureConsistentStateWithSharedPreferences(this);
         AnkiCardContextMenu.ensureConsistentStateWithSharedPreferences(this);
+        QueryProfiler.setEnabled(preferences.getBoolean("query_profiling", false));
+        QueryProfiler.setSlowQueryThresholdMs(preferences.getInt("query_profiling_slow_ms", QueryProfiler.DEFAULT_SLOW_QUERY_THRESHOLD_MS));
         NotificationChannels.setup(getApplicationContext());
 
         // Configure WebView to allow file scheme pages to access cookies.
@@ -33,6 +33,7 @@ import com.ichi2.libanki.utils.SystemTime;
 import com.ichi2.libanki.utils.Time;
 import com.ichi2.preferences.PreferenceExtensions;
 import com.ichi2.utils.FileUtil;
+import com.ichi2.utils.Tracer;
 
 import net.ankiweb.rsdroid.BackendException;
 
@@ -143,7 +144,9 @@ public class CollectionHelper {
             }
             // Open the database
             Timber.i("Begin openCollection: %s", path);
-            mCollection = Storage.Collection(context, path, false, true, time);
+            try (Tracer.Section ignored = Tracer.begin("CollectionHelper.getCol")) {
+                mCollection = Storage.Collection(context, path, false, true, time);
+            }
             Timber.i("End openCollection: %s", path);
         }
         return mCollection;
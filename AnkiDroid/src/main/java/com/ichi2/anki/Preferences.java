@@ -56,6 +56,7 @@ import com.ichi2.anki.web.CustomSyncServer;
 import com.ichi2.compat.CompatHelper;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.QueryProfiler;
 import com.ichi2.libanki.Utils;
 import com.ichi2.libanki.backend.exception.BackendNotSupportedException;
 import com.ichi2.libanki.sched.AbstractSched;
@@ -774,6 +775,12 @@ public class Preferences extends AnkiActivity {
                     case AnkiCardContextMenu.ANKI_CARD_CONTEXT_MENU_PREF_KEY:
                         AnkiCardContextMenu.ensureConsistentStateWithSharedPreferences(preferencesActivity);
                         break;
+                    case "query_profiling":
+                        QueryProfiler.setEnabled(((CheckBoxPreference) pref).isChecked());
+                        break;
+                    case "query_profiling_slow_ms":
+                        QueryProfiler.setSlowQueryThresholdMs(((NumberRangePreferenceCompat) pref).getValue());
+                        break;
                     case "gestureCornerTouch": {
                         GesturesSettingsFragment.updateGestureCornerTouch(preferencesActivity, screen);
                     }
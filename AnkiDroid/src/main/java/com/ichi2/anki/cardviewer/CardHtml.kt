@@ -79,7 +79,11 @@ class CardHtml(
         }
     }
 
-    fun getTemplateHtml(): String {
+    /** The values substituted in [CardTemplate] to display this side of the card */
+    class PageParts(val content: String, val style: String, val script: String, val cardClass: String)
+
+    /** Computed once, as the card may be rendered ahead of time on another thread */
+    private val mPageParts: PageParts by lazy {
         val content = getContent()
 
         val requiresMathjax = MathJax.textContainsMathjax(content)
@@ -91,7 +95,14 @@ class CardHtml(
         Timber.v("content card = \n %s", content)
         Timber.v("::style:: / %s", style)
 
-        return context.cardTemplate.render(content, style, script, cardClass)
+        PageParts(content, style, script, cardClass)
+    }
+
+    fun getPageParts(): PageParts = mPageParts
+
+    fun getTemplateHtml(): String {
+        val parts = getPageParts()
+        return context.cardTemplate.render(parts.content, parts.style, parts.script, parts.cardClass)
     }
 
     private fun getContent(): String {
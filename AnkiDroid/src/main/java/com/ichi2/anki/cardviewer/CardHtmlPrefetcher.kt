@@ -0,0 +1,115 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.anki.cardviewer
+
+import com.ichi2.async.CancelListener
+import com.ichi2.libanki.Card
+import com.ichi2.libanki.Collection
+import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Keeps the rendered HTML of the cards which the reviewer is likely to display next, so that displaying the next card
+ * after answering only requires loading the HTML in the WebView.
+ *
+ * [prefetch] renders from a collection task, on a copy of each card loaded for this purpose: rendering loads the note
+ * and model of the card, which must neither race with other collection tasks nor modify the instance the reviewer
+ * displays.
+ *
+ * Renders are associated with the [Card] instance of the scheduler they were requested for. The scheduler returns the
+ * instance which it preloaded, and any reset of the scheduler queues creates new instances, so a stale render is
+ * never returned.
+ */
+class CardHtmlPrefetcher(private val htmlGenerator: HtmlGenerator) {
+
+    /** A card whose content was generated ahead of time */
+    class PrerenderedCard(
+        val card: Card,
+        val question: CardHtml,
+        val questionHtml: String,
+        /** null if the answer depends on what the user types */
+        val answer: CardHtml?,
+        val answerHtml: String?
+    )
+
+    /** Renders done, by card id */
+    private val mEntries = ConcurrentHashMap<Long, PrerenderedCard>()
+
+    /** Incremented by [invalidateAll], so that a render which was in progress is not kept */
+    private val mGeneration = AtomicInteger()
+
+    /**
+     * Renders [cards]. Renders of cards not in [cards] are discarded.
+     * To be called from a collection task which does not run concurrently with any other.
+     */
+    fun prefetch(col: Collection, cards: List<Card>, cancelListener: CancelListener?) {
+        val generation = mGeneration.get()
+        val upcoming = cards.associateBy { it.id }
+        mEntries.values.removeAll { upcoming[it.card.id] !== it.card }
+        for (card in cards) {
+            if (CancelListener.isCancelled(cancelListener)) {
+                return
+            }
+            if (mEntries.containsKey(card.id)) {
+                continue
+            }
+            val render = try {
+                render(col, card)
+            } catch (e: RuntimeException) {
+                Timber.w(e, "Failed to prerender card %d", card.id)
+                continue
+            }
+            if (mGeneration.get() != generation) {
+                return
+            }
+            mEntries[card.id] = render
+        }
+    }
+
+    /**
+     * The render of [card], if it is complete.
+     * The render is removed from the prefetcher, as the card is expected to be displayed.
+     */
+    fun take(card: Card): PrerenderedCard? {
+        val render = mEntries.remove(card.id) ?: return null
+        return if (render.card === card) render else null
+    }
+
+    /** Discards all renders, e.g. after an undo or an edit */
+    fun invalidateAll() {
+        mGeneration.incrementAndGet()
+        mEntries.clear()
+    }
+
+    private fun render(col: Collection, card: Card): PrerenderedCard {
+        val copy = col.getCard(card.id)
+        val generator = htmlGenerator.forCard(copy)
+        val question = generator.generateHtml(copy, false, Side.FRONT)
+        val questionHtml = question.getTemplateHtml()
+        var answer: CardHtml? = null
+        var answerHtml: String? = null
+        if (!dependsOnTypedAnswer(generator.typeAnswer, copy)) {
+            answer = generator.generateHtml(copy, false, Side.BACK)
+            answerHtml = answer.getTemplateHtml()
+        }
+        return PrerenderedCard(card, question, questionHtml, answer, answerHtml)
+    }
+
+    private fun dependsOnTypedAnswer(typeAnswer: TypeAnswer, card: Card): Boolean {
+        return typeAnswer.correct != null || typeAnswer.warning != null || TypeAnswer.PATTERN.matcher(card.a()).find()
+    }
+}
@@ -0,0 +1,82 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.anki.cardviewer
+
+import androidx.annotation.CheckResult
+import com.ichi2.anki.cardviewer.CardHtml.PageParts
+import org.json.JSONObject
+import java.util.*
+
+/**
+ * Avoids reloading the whole page (card_template.html, its stylesheets and scripts, MathJax) for each card.
+ *
+ * Once a page finished loading in the WebView, following cards are displayed by replacing the content of the page
+ * through javascript, as long as the page provides the styles and scripts the new card requires.
+ *
+ * Cards containing scripts are always displayed in a new page, as scripts inserted through `innerHTML` are not
+ * executed, and the page is discarded after such a card so that its state does not leak into the next cards.
+ */
+class CardShellRenderer {
+    /** The styles and scripts of the page in the WebView. null if there is no page whose content can be replaced */
+    private var mStyle: String? = null
+    private var mScript: String? = null
+    private var mPageFinished = false
+
+    /**
+     * @return The javascript which displays [parts] in the current page,
+     * or null if the card must be loaded as a new page, in which case [onPageLoading] must be called.
+     */
+    @CheckResult
+    fun getSwapScript(parts: PageParts): String? {
+        if (!mPageFinished || mStyle != parts.style || !providesScript(parts.script) || containsScript(parts.content)) {
+            return null
+        }
+        return "_updateCardContent(" + JSONObject.quote(parts.content) + ", " + JSONObject.quote(parts.cardClass) + ");"
+    }
+
+    /** A new page containing [parts] is being loaded */
+    fun onPageLoading(parts: PageParts) {
+        mPageFinished = false
+        if (containsScript(parts.content)) {
+            mStyle = null
+            mScript = null
+        } else {
+            mStyle = parts.style
+            mScript = parts.script
+        }
+    }
+
+    /** The page loaded with [onPageLoading] finished loading */
+    fun onPageFinished() {
+        mPageFinished = mStyle != null
+    }
+
+    /** The WebView was destroyed or recreated */
+    fun reset() {
+        mStyle = null
+        mScript = null
+        mPageFinished = false
+    }
+
+    /** Whether the page loads the scripts in [script]. A page with MathJax can display cards which do not need it. */
+    private fun providesScript(script: String): Boolean {
+        return script.isEmpty() || script == mScript
+    }
+
+    private fun containsScript(content: String): Boolean {
+        return content.lowercase(Locale.ROOT).contains("<script")
+    }
+}
@@ -29,7 +29,7 @@ import timber.log.Timber
 import java.io.IOException
 
 class HtmlGenerator(
-    private val typeAnswer: TypeAnswer,
+    val typeAnswer: TypeAnswer,
     val cardAppearance: CardAppearance,
     val cardTemplate: CardTemplate,
     val currentTheme: Int,
@@ -53,6 +53,17 @@ class HtmlGenerator(
         return Sound.expandSounds(baseUrl, content)
     }
 
+    /**
+     * A generator for [card] with its own type answer state, so that the card can be rendered while another card
+     * is displayed.
+     */
+    @CheckResult
+    fun forCard(card: Card): HtmlGenerator {
+        val cardTypeAnswer = TypeAnswer(typeAnswer.useInputTag, typeAnswer.doNotUseCodeFormatting, typeAnswer.autoFocus)
+        cardTypeAnswer.updateInfo(card, resources)
+        return HtmlGenerator(cardTypeAnswer, cardAppearance, cardTemplate, currentTheme, resources, baseUrl)
+    }
+
     companion object {
         @JvmStatic
         fun createInstance(context: Context, typeAnswer: TypeAnswer, baseUrl: String): HtmlGenerator {
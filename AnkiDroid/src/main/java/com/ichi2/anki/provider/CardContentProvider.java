@@ -62,6 +62,7 @@ import com.ichi2.libanki.Utils;
 
 import com.ichi2.libanki.Deck;
 import com.ichi2.libanki.sched.DeckDueTreeNode;
+import com.ichi2.libanki.sched.DueCountSnapshots;
 import com.ichi2.utils.FileUtil;
 import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONException;
@@ -385,7 +386,7 @@ public class CardContentProvider extends ContentProvider {
                 return rv;
             }
             case DECKS: {
-                List<DeckDueTreeNode> allDecks = col.getSched().deckDueList();
+                List<DeckDueTreeNode> allDecks = DueCountSnapshots.list(col);
                 String[] columns = ((projection != null) ? projection : FlashCardsContract.Deck.DEFAULT_PROJECTION);
                 MatrixCursor rv = new MatrixCursor(columns, allDecks.size());
                 for (DeckDueTreeNode deck : allDecks) {
@@ -399,7 +400,7 @@ public class CardContentProvider extends ContentProvider {
                 /* Direct access deck */
                 String[] columns = ((projection != null) ? projection : FlashCardsContract.Deck.DEFAULT_PROJECTION);
                 MatrixCursor rv = new MatrixCursor(columns, 1);
-                List<DeckDueTreeNode> allDecks = col.getSched().deckDueList();
+                List<DeckDueTreeNode> allDecks = DueCountSnapshots.list(col);
                 long deckId = Long.parseLong(uri.getPathSegments().get(1));
                 for (DeckDueTreeNode deck : allDecks) {
                     if(deck.getDid() == deckId){
@@ -21,6 +21,8 @@ import android.os.Build
 import android.webkit.WebView
 import com.ichi2.anki.AnkiDroidApp
 import com.ichi2.libanki.Collection
+import com.ichi2.libanki.QueryProfiler
+import com.ichi2.utils.Tracer
 import com.ichi2.utils.VersionUtils.pkgVersionName
 import org.acra.util.Installation
 import timber.log.Timber
@@ -63,7 +65,7 @@ object DebugInfoService {
                
                DatabaseV2 Enabled = $dbV2Enabled
                
-        """.trimIndent()
+        """.trimIndent() + "\n\nRecent timings:\n" + Tracer.dump() + "\nDatabase queries:\n" + QueryProfiler.dump()
     }
 
     private fun getWebviewUserAgent(context: Context): String? {
@@ -27,7 +27,6 @@ import com.ichi2.libanki.UndoAction.revertCardToProvidedState
 import com.ichi2.utils.Computation
 import timber.log.Timber
 import java.util.*
-import java.util.concurrent.CancellationException
 import kotlin.collections.ArrayList
 import com.ichi2.libanki.Collection as AnkiCollection
 
@@ -200,18 +199,20 @@ class SchedulerService {
         }
     }
 
-    class UndoRepositionRescheduleResetCards(@StringRes @UNDO_NAME_ID undoNameId: Int, private val cardsCopied: Array<Card>) : UndoAction(undoNameId) {
+    class UndoRepositionRescheduleResetCards(@StringRes @UNDO_NAME_ID undoNameId: Int, private val before: RowSnapshot) : UndoAction(undoNameId) {
         override fun undo(col: AnkiCollection): Card? {
-            Timber.i("Undoing action of type %s on %d cards", javaClass, cardsCopied.size)
-            for (card in cardsCopied) {
-                card.flush(false)
-            }
+            Timber.i("Undoing action of type %s on %d cards", javaClass, before.size)
+            before.restore(col)
             // /* card schedule change undone, reset and get
             // new card */
             Timber.d("Single card non-review change undo succeeded")
             col.reset()
             return col.sched.card
         }
+
+        override fun discard() {
+            before.close()
+        }
     }
 
     companion object {
@@ -235,15 +236,11 @@ class SchedulerService {
 
         fun AnkiMethod<*>.rescheduleRepositionReset(cards: Array<Card>, @UNDO_NAME_ID @StringRes undoNameId: Int, actualActualTask: () -> Unit): Computation<Optional<Card>> {
             val sched = col.sched
-            // collect undo information, sensitive to memory pressure, same for all 3 cases
-            try {
-                Timber.d("Saving undo information of type %s on %d cards", javaClass, cards.size)
-                val cards_copied = Card.deepCopyCardArray(cards, this)
-                val repositionRescheduleResetCards: UndoAction = UndoRepositionRescheduleResetCards(undoNameId, cards_copied)
-                col.markUndo(repositionRescheduleResetCards)
-            } catch (ce: CancellationException) {
-                Timber.i(ce, "Cancelled while handling type %s, skipping undo", undoNameId)
-            }
+            // collect undo information, same for all 3 cases
+            Timber.d("Saving undo information of type %s on %d cards", javaClass, cards.size)
+            val before = RowSnapshot.cards(col.db, LongArray(cards.size) { cards[it].id })
+            val repositionRescheduleResetCards: UndoAction = UndoRepositionRescheduleResetCards(undoNameId, before)
+            col.markUndo(repositionRescheduleResetCards)
             actualActualTask()
             // In all cases schedule a new card so Reviewer doesn't sit on the old one
             col.reset()
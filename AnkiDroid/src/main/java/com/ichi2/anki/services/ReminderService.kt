@@ -29,6 +29,7 @@ import com.ichi2.anki.R
 import com.ichi2.compat.CompatHelper
 import com.ichi2.libanki.Collection
 import com.ichi2.libanki.sched.DeckDueTreeNode
+import com.ichi2.libanki.sched.DueCountSnapshots
 import com.ichi2.utils.JSONObject
 import timber.log.Timber
 
@@ -141,7 +142,7 @@ class ReminderService : BroadcastReceiver() {
             return null
         }
         try {
-            val dues = col.sched.deckDueTree()
+            val dues = DueCountSnapshots.tree(col)
             val decks: MutableList<DeckDueTreeNode> = ArrayList(dues.size)
             // This loop over top level deck only. No notification will ever occur for subdecks.
             for (node in dues) {
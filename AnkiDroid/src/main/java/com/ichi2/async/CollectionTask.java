@@ -33,6 +33,7 @@ import com.ichi2.anki.CollectionHelper;
 import com.ichi2.anki.R;
 import com.ichi2.anki.StudyOptionsFragment;
 import com.ichi2.anki.TemporaryModel;
+import com.ichi2.anki.cardviewer.CardHtmlPrefetcher;
 import com.ichi2.anki.exception.ConfirmModSchemaException;
 import com.ichi2.anki.exception.ImportExportException;
 import com.ichi2.anki.servicelayer.NoteService;
@@ -48,9 +49,11 @@ import com.ichi2.libanki.AnkiPackageExporter;
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.IdSet;
 import com.ichi2.libanki.DB;
 import com.ichi2.libanki.Decks;
 import com.ichi2.libanki.Note;
+import com.ichi2.libanki.RowSnapshot;
 import com.ichi2.libanki.Storage;
 import com.ichi2.libanki.Utils;
 import com.ichi2.libanki.DeckConfig;
@@ -59,6 +62,7 @@ import com.ichi2.libanki.importer.AnkiPackageImporter;
 
 import com.ichi2.libanki.sched.Counts;
 import com.ichi2.libanki.sched.DeckDueTreeNode;
+import com.ichi2.libanki.sched.DueCountSnapshots;
 import com.ichi2.libanki.sched.DeckTreeNode;
 import com.ichi2.libanki.utils.Time;
 import com.ichi2.utils.Computation;
@@ -66,6 +70,7 @@ import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONException;
 import com.ichi2.utils.JSONObject;
 import com.ichi2.utils.SyncStatus;
+import com.ichi2.utils.Tracer;
 import com.ichi2.utils.Triple;
 
 import java.io.File;
@@ -88,6 +93,7 @@ import org.apache.commons.compress.archivers.zip.ZipFile;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.StringRes;
 import androidx.annotation.VisibleForTesting;
 import timber.log.Timber;
 
@@ -196,7 +202,9 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             return null;
         }
         // Actually execute the task now that we are at the front of the queue.
-        return mTask.task(getCol(), this);
+        try (Tracer.Section ignored = Tracer.begin("CollectionTask." + mTask.getClass().getSimpleName())) {
+            return mTask.task(getCol(), this);
+        }
     }
 
 
@@ -378,8 +386,8 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
         protected List<DeckDueTreeNode> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
             Timber.d("doInBackgroundLoadDeckCounts");
             try {
-                // Get due tree
-                return col.getSched().deckDueTree(collectionTask);
+                // Get due tree. Reused as long as the collection is unchanged, so resuming the deck list is cheap
+                return DueCountSnapshots.tree(col, collectionTask);
             } catch (RuntimeException e) {
                 Timber.e(e, "doInBackgroundLoadDeckCounts - error");
                 return null;
@@ -413,133 +421,86 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
         }
     }
 
-    protected static class UndoSuspendCardMulti extends UndoAction {
-        private final Card[] mCards;
-        private final boolean[] mOriginalSuspended;
+    /** Undoes a bulk action by writing back the rows it modified */
+    private static class UndoRestoreRows extends UndoAction {
+        private final RowSnapshot[] mSnapshots;
 
-        /** @param hasUnsuspended  whether there were any unsuspended card (in which card the action was "Suspend",
-         *                          otherwise the action was "Unsuspend")  */
-        public UndoSuspendCardMulti(Card[] cards, boolean[] originalSuspended,
-                                    boolean hasUnsuspended) {
-            super((hasUnsuspended) ? R.string.menu_suspend_card : R.string.card_browser_unsuspend_card);
-            this.mCards = cards;
-            this.mOriginalSuspended = originalSuspended;
+
+        /** @param snapshots restored in this order */
+        public UndoRestoreRows(@StringRes @UNDO_NAME_ID int undoNameId, RowSnapshot... snapshots) {
+            super(undoNameId);
+            mSnapshots = snapshots;
         }
 
 
         public @Nullable Card undo(@NonNull Collection col) {
-            Timber.i("Undo: Suspend multiple cards");
-            int nbOfCards = mCards.length;
-            List<Long> toSuspendIds = new ArrayList<>(nbOfCards);
-            List<Long> toUnsuspendIds = new ArrayList<>(nbOfCards);
-            for (int i = 0; i < nbOfCards; i++) {
-                Card card = mCards[i];
-                if (mOriginalSuspended[i]) {
-                    toSuspendIds.add(card.getId());
-                } else {
-                    toUnsuspendIds.add(card.getId());
+            Timber.i("Undoing action of type %s on %d snapshots", getClass().getSimpleName(), mSnapshots.length);
+            col.getDb().executeInTransaction(() -> {
+                for (RowSnapshot snapshot : mSnapshots) {
+                    restore(col, snapshot);
                 }
-            }
-
-            // unboxing
-            long[] toSuspendIdsArray = new long[toSuspendIds.size()];
-            long[] toUnsuspendIdsArray = new long[toUnsuspendIds.size()];
-            for (int i = 0; i < toSuspendIds.size(); i++) {
-                toSuspendIdsArray[i] = toSuspendIds.get(i);
-            }
-            for (int i = 0; i < toUnsuspendIds.size(); i++) {
-                toUnsuspendIdsArray[i] = toUnsuspendIds.get(i);
-            }
-
-            col.getSched().suspendCards(toSuspendIdsArray);
-            col.getSched().unsuspendCards(toUnsuspendIdsArray);
-
+            });
             return null;  // don't fetch new card
-
         }
-    }
-
-
-    private static class UndoDeleteNoteMulti extends UndoAction {
-        private final Note[] mNotesArr;
-        private final List<Card> mAllCards;
 
 
-        public UndoDeleteNoteMulti(Note[] notesArr, List<Card> allCards) {
-            super(R.string.card_browser_delete_card);
-            this.mNotesArr = notesArr;
-            this.mAllCards = allCards;
+        /** Marks the restored rows as modified, so that they are synced again */
+        protected void restore(@NonNull Collection col, @NonNull RowSnapshot snapshot) {
+            snapshot.restore(col);
         }
 
 
-        public @Nullable Card undo(@NonNull Collection col) {
-            Timber.i("Undo: Delete notes");
-            // undo all of these at once instead of one-by-one
-            ArrayList<Long> ids = new ArrayList<>(mNotesArr.length + mAllCards.size());
-            for (Note n : mNotesArr) {
-                n.flush(n.getMod(), false);
-                ids.add(n.getId());
-            }
-            for (Card c : mAllCards) {
-                c.flush(false);
-                ids.add(c.getId());
+        @Override
+        public void discard() {
+            for (RowSnapshot snapshot : mSnapshots) {
+                snapshot.close();
             }
-            col.getDb().execute("DELETE FROM graves WHERE oid IN " + Utils.ids2str(ids));
-            return null;  // don't fetch new card
-
         }
     }
 
-    
-    private static class UndoChangeDeckMulti extends UndoAction {
-        private final Card[] mCards;
-        private final long[] mOriginalDids;
 
+    /** @param hasUnsuspended  whether there were any unsuspended card (in which card the action was "Suspend",
+     *                          otherwise the action was "Unsuspend")  */
+    private static UndoAction undoSuspendCardMulti(RowSnapshot cards, boolean hasUnsuspended) {
+        return new UndoRestoreRows((hasUnsuspended) ? R.string.menu_suspend_card : R.string.card_browser_unsuspend_card, cards);
+    }
 
-        public UndoChangeDeckMulti(Card[] cards, long[] originalDids) {
-            super(R.string.undo_action_change_deck_multi);
-            this.mCards = cards;
-            this.mOriginalDids = originalDids;
-        }
 
+    private static class UndoDeleteNoteMulti extends UndoRestoreRows {
+        private final long[] mNids;
 
-        public @Nullable Card undo(@NonNull Collection col) {
-            Timber.i("Undo: Change Decks");
-            // move cards to original deck
-            for (int i = 0; i < mCards.length; i++) {
-                Card card = mCards[i];
-                card.load();
-                card.setDid(mOriginalDids[i]);
-                Note note = card.note();
-                note.flush();
-                card.flush();
-            }
-            return null;  // don't fetch new card
 
+        public UndoDeleteNoteMulti(long[] nids, RowSnapshot notes, RowSnapshot cards) {
+            super(R.string.card_browser_delete_card, notes, cards);
+            this.mNids = nids;
         }
-    }
 
-    private static class UndoMarkNoteMulti extends UndoAction {
-        private final List<Note> mOriginalMarked;
-        private final List<Note> mOriginalUnmarked;
 
-        /** @param hasUnmarked whether there were any unmarked card (in which card the action was "mark",
-         *                      otherwise the action was "Unmark")  */
-        public UndoMarkNoteMulti(List<Note> originalMarked, List<Note> originalUnmarked, boolean hasUnmarked) {
-            super((hasUnmarked) ? R.string.card_browser_mark_card : R.string.card_browser_unmark_card);
-            this.mOriginalMarked = originalMarked;
-            this.mOriginalUnmarked = originalUnmarked;
+        /** The notes and cards are restored as they were before the deletion, modification time included */
+        @Override
+        protected void restore(@NonNull Collection col, @NonNull RowSnapshot snapshot) {
+            snapshot.restore(col, true);
         }
 
 
         public @Nullable Card undo(@NonNull Collection col) {
-            Timber.i("Undo: Mark notes");
-            CardUtils.markAll(mOriginalMarked, true);
-            CardUtils.markAll(mOriginalUnmarked, false);
+            super.undo(col);
+            // undo all of these at once instead of one-by-one
+            try (IdSet nids = IdSet.of(col.getDb(), mNids)) {
+                col.getDb().execute("DELETE FROM graves WHERE oid IN " + nids.getSql() +
+                        " OR oid IN (SELECT id FROM cards WHERE nid IN " + nids.getSql() + ")");
+            }
             return null;  // don't fetch new card
         }
     }
 
+
+    /** @param hasUnmarked whether there were any unmarked card (in which card the action was "mark",
+     *                      otherwise the action was "Unmark")  */
+    private static UndoAction undoMarkNoteMulti(RowSnapshot notes, boolean hasUnmarked) {
+        return new UndoRestoreRows((hasUnmarked) ? R.string.card_browser_mark_card : R.string.card_browser_unmark_card, notes);
+    }
+
     private static abstract class DismissNotes<Progress> extends TaskDelegate<Progress, Computation<? extends Card[]>> {
         protected final List<Long> mCardIds;
 
@@ -597,20 +558,17 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
 
         protected boolean actualTask(Collection col, ProgressSenderAndCancelListener<Void> collectionTask, Card[] cards) {
             AbstractSched sched = col.getSched();
-            // collect undo information
             long[] cids = new long[cards.length];
-            boolean[] originalSuspended = new boolean[cards.length];
             boolean hasUnsuspended = false;
             for (int i = 0; i < cards.length; i++) {
                 Card card = cards[i];
                 cids[i] = card.getId();
                 if (card.getQueue() != Consts.QUEUE_TYPE_SUSPENDED) {
                     hasUnsuspended = true;
-                    originalSuspended[i] = false;
-                } else {
-                    originalSuspended[i] = true;
                 }
             }
+            // collect undo information
+            RowSnapshot before = RowSnapshot.cards(col.getDb(), cids);
 
             // if at least one card is unsuspended -> suspend all
             // otherwise unsuspend all
@@ -621,7 +579,7 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             }
 
             // mark undo for all at once
-            col.markUndo(new UndoSuspendCardMulti(cards, originalSuspended, hasUnsuspended));
+            col.markUndo(undoSuspendCardMulti(before, hasUnsuspended));
 
             // reload cards because they'll be passed back to caller
             for (Card c : cards) {
@@ -658,21 +616,21 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
         protected boolean actualTask(Collection col, ProgressSenderAndCancelListener<Void> collectionTask, Card[] cards) {
             Set<Note> notes = CardUtils.getNotes(Arrays.asList(cards));
             // collect undo information
-            List<Note> originalMarked = new ArrayList<>();
-            List<Note> originalUnmarked = new ArrayList<>();
-
+            long[] nids = new long[notes.size()];
+            boolean hasUnmarked = false;
+            int i = 0;
             for (Note n : notes) {
-                if (NoteService.isMarked(n))
-                    originalMarked.add(n);
-                else
-                    originalUnmarked.add(n);
+                nids[i++] = n.getId();
+                if (!NoteService.isMarked(n)) {
+                    hasUnmarked = true;
+                }
             }
+            RowSnapshot before = RowSnapshot.notes(col.getDb(), nids);
 
-            boolean hasUnmarked = !originalUnmarked.isEmpty();
             CardUtils.markAll(new ArrayList<>(notes), hasUnmarked);
 
             // mark undo for all at once
-            col.markUndo(new UndoMarkNoteMulti(originalMarked, originalUnmarked, hasUnmarked));
+            col.markUndo(undoMarkNoteMulti(before, hasUnmarked));
 
             // reload cards because they'll be passed back to caller
             for (Card c : cards) {
@@ -696,16 +654,14 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             List<Card> allCards = CardUtils.getAllCards(notes);
             // delete note
             long[] uniqueNoteIds = new long[notes.size()];
-            Note[] notesArr = notes.toArray(new Note[notes.size()]);
             int count = 0;
             for (Note note : notes) {
                 uniqueNoteIds[count] = note.getId();
                 count++;
             }
 
-
-
-            col.markUndo(new UndoDeleteNoteMulti(notesArr, allCards));
+            col.markUndo(new UndoDeleteNoteMulti(uniqueNoteIds, RowSnapshot.notes(col.getDb(), uniqueNoteIds),
+                    RowSnapshot.cardsOfNotes(col.getDb(), uniqueNoteIds)));
 
             col.remNotes(uniqueNoteIds);
             sched.deferReset();
@@ -748,16 +704,14 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             for (int i = 0; i < cards.length; i++) {
                 changedCardIds[i] = cards[i].getId();
             }
+            // save original decks for undo, including filtered decks
+            RowSnapshot before = RowSnapshot.cards(col.getDb(), changedCardIds);
             col.getSched().remFromDyn(changedCardIds);
 
-            long[] originalDids = new long[cards.length];
-
             for (int i = 0; i < cards.length; i++) {
                 Card card = cards[i];
                 card.load();
-                // save original did for undo
-                originalDids[i] = card.getDid();
-                // then set the card ID to the new deck
+                // set the card ID to the new deck
                 card.setDid(mNewDid);
                 Note note = card.note();
                 note.flush();
@@ -765,7 +719,7 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
                 card.flush();
             }
 
-            UndoAction changeDeckMulti = new UndoChangeDeckMulti(cards, originalDids);
+            UndoAction changeDeckMulti = new UndoRestoreRows(R.string.undo_action_change_deck_multi, before);
             // mark undo for all at once
             col.markUndo(changeDeckMulti);
             return true;
@@ -1764,15 +1718,36 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
         }
     }
 
-    public static class PreloadNextCard extends TaskDelegate<Void, Void> {
-        public Void task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
+    /** Returns the cards which may be displayed next, with their question and answer rendered. */
+    public static class PreloadNextCard extends TaskDelegate<Void, List<Card>> {
+        private final int mLimit;
+        @Nullable private final CardHtmlPrefetcher mPrefetcher;
+
+        public PreloadNextCard() {
+            this(1, null);
+        }
+
+        /**
+         * @param limit Maximal number of cards to preload from each queue
+         * @param prefetcher If not null, renders the preloaded cards
+         */
+        public PreloadNextCard(int limit, @Nullable CardHtmlPrefetcher prefetcher) {
+            mLimit = limit;
+            mPrefetcher = prefetcher;
+        }
+
+        public List<Card> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
             try {
                 col.getSched().counts(); // Ensure counts are recomputed if necessary, to know queue to look for
-                col.getSched().preloadNextCard();
+                List<Card> cards = col.getSched().preloadNextCards(mLimit);
+                if (mPrefetcher != null) {
+                    mPrefetcher.prefetch(col, cards, collectionTask);
+                }
+                return cards;
             } catch (RuntimeException e) {
                 Timber.e(e, "doInBackgroundPreloadNextCard - RuntimeException on preloading card");
             }
-            return null;
+            return Collections.emptyList();
         }
     }
 
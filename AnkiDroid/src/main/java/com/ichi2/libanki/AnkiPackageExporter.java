@@ -29,23 +29,31 @@ import com.ichi2.utils.JSONObject;
 import com.ichi2.utils.StringUtil;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import timber.log.Timber;
 
 import static com.ichi2.utils.CollectionUtils.addAll;
@@ -219,37 +227,45 @@ class AnkiExporter extends Exporter {
         mSrc.getDb().getDatabase().execSQL("ATTACH '" + path + "' AS DST_DB");
         // copy cards, noting used nids (as unique set)
         Timber.d("Copy cards");
-        mSrc.getDb().getDatabase()
-                .execSQL("INSERT INTO DST_DB.cards select * from cards where id in " + Utils.ids2str(cids));
-        List<Long> uniqueNids = mSrc.getDb().queryLongList(
-                "select distinct nid from cards where id in " + Utils.ids2str(cids));
-        // notes
-        Timber.d("Copy notes");
-        String strnids = Utils.ids2str(uniqueNids);
-        mSrc.getDb().getDatabase().execSQL("INSERT INTO DST_DB.notes select * from notes where id in " + strnids);
-        // remove system tags if not exporting scheduling info
-        if (!mIncludeSched) {
-            Timber.d("Stripping system tags from list");
-            ArrayList<String> srcTags = mSrc.getDb().queryStringList(
-                    "select tags from notes where id in " + strnids);
-            ArrayList<Object[]> args = new ArrayList<>(srcTags.size());
-            Object [] arg = new Object[2];
-            for (int row = 0; row < srcTags.size(); row++) {
-                arg[0]=removeSystemTags(srcTags.get(row));
-                arg[1]=uniqueNids.get(row);
-                args.add(row, arg);
+        ArrayList<Long> mids;
+        List<Long> uniqueNids;
+        try (IdSet cidSet = IdSet.of(mSrc.getDb(), Arrays.asList(cids))) {
+            mSrc.getDb().getDatabase()
+                    .execSQL("INSERT INTO DST_DB.cards select * from cards where id in " + cidSet.getSql());
+            uniqueNids = mSrc.getDb().queryLongList(
+                    "select distinct nid from cards where id in " + cidSet.getSql());
+            // notes
+            Timber.d("Copy notes");
+            try (IdSet nidSet = IdSet.of(mSrc.getDb(), uniqueNids)) {
+                String strnids = nidSet.getSql();
+                mSrc.getDb().getDatabase().execSQL("INSERT INTO DST_DB.notes select * from notes where id in " + strnids);
+                // remove system tags if not exporting scheduling info
+                if (!mIncludeSched) {
+                    Timber.d("Stripping system tags from list");
+                    ArrayList<String> srcTags = mSrc.getDb().queryStringList(
+                            "select tags from notes where id in " + strnids);
+                    ArrayList<Object[]> args = new ArrayList<>(srcTags.size());
+                    Object [] arg = new Object[2];
+                    for (int row = 0; row < srcTags.size(); row++) {
+                        arg[0]=removeSystemTags(srcTags.get(row));
+                        arg[1]=uniqueNids.get(row);
+                        args.add(row, arg);
+                    }
+                    mSrc.getDb().executeMany("UPDATE DST_DB.notes set tags=? where id=?", args);
+                }
+                // models used by the notes
+                Timber.d("Finding models used by notes");
+                mids = mSrc.getDb().queryLongList(
+                        "select distinct mid from DST_DB.notes where id in " + strnids);
+            }
+            // card history and revlog
+            if (mIncludeSched) {
+                Timber.d("Copy history and revlog");
+                mSrc.getDb().getDatabase()
+                        .execSQL("insert into DST_DB.revlog select * from revlog where cid in " + cidSet.getSql());
             }
-            mSrc.getDb().executeMany("UPDATE DST_DB.notes set tags=? where id=?", args);
         }
-        // models used by the notes
-        Timber.d("Finding models used by notes");
-        ArrayList<Long> mids = mSrc.getDb().queryLongList(
-                "select distinct mid from DST_DB.notes where id in " + strnids);
-        // card history and revlog
         if (mIncludeSched) {
-            Timber.d("Copy history and revlog");
-            mSrc.getDb().getDatabase()
-                    .execSQL("insert into DST_DB.revlog select * from revlog where cid in " + Utils.ids2str(cids));
             // reopen collection to destination database (different from original python code)
             mSrc.getDb().getDatabase().execSQL("DETACH DST_DB");
             dst.reopen();
@@ -309,17 +325,12 @@ class AnkiExporter extends Exporter {
         JSONObject media = new JSONObject();
         mMediaDir = mSrc.getMedia().dir();
         if (mIncludeMedia) {
-            ArrayList<Long> mid = mSrc.getDb().queryLongList("select mid from notes where id in " + strnids);
-            ArrayList<String> flds = mSrc.getDb().queryStringList(
-                    "select flds from notes where id in " + strnids);
-            for (int idx = 0; idx < mid.size(); idx++) {
-                for (String file : mSrc.getMedia().filesInStr(mid.get(idx), flds.get(idx))) {
-                    // skip files in subdirs
-                    if (file.contains(File.separator)) {
-                        continue;
-                    }
-                    media.put(file, true);
+            for (String file : mSrc.getMedia().getRefIndex().referencesOf(uniqueNids)) {
+                // skip files in subdirs
+                if (file.contains(File.separator)) {
+                    continue;
                 }
+                media.put(file, true);
             }
             if (mMediaDir != null) {
                 for (File f : new File(mMediaDir).listFiles()) {
@@ -433,16 +444,21 @@ public final class AnkiPackageExporter extends AnkiExporter {
 
         // open a zip file
         ZipFile z = new ZipFile(path);
-        // if all decks and scheduling included, full export
-        JSONObject media;
-        if (mIncludeSched && mDid == null) {
-            media = exportVerbatim(z, context);
-        } else {
-            // otherwise, filter
-            media = exportFiltered(z, path, context);
+        try {
+            // if all decks and scheduling included, full export
+            JSONObject media;
+            if (mIncludeSched && mDid == null) {
+                media = exportVerbatim(z, context);
+            } else {
+                // otherwise, filter
+                media = exportFiltered(z, path, context);
+            }
+            // media map
+            z.writeStr("media", Utils.jsonToString(media));
+        } catch (IOException | ImportExportException | RuntimeException e) {
+            z.abort();
+            throw e;
         }
-        // media map
-        z.writeStr("media", Utils.jsonToString(media));
         z.close();
     }
 
@@ -486,13 +502,12 @@ public final class AnkiPackageExporter extends AnkiExporter {
         int c = 0;
         JSONObject media = new JSONObject();
         for (File file : files) {
-            // todo: deflate SVG files, as in dae/anki@a5b0852360b132c0d04094f5ca8f1933f64d7c7e
             if (validateFiles == ValidateFiles.VALIDATE && !file.exists()) {
                 // Anki 2.1.30 does the same
                 Timber.d("Skipping missing file %s", file);
                 continue;
             }
-            z.write(file.getPath(), Integer.toString(c));
+            z.writeDeferred(file.getPath(), Integer.toString(c));
             try {
                 media.put(Integer.toString(c), file.getName());
                 c++;
@@ -565,16 +580,41 @@ public final class AnkiPackageExporter extends AnkiExporter {
 
 /**
  * Wrapper around standard Python zip class used in this module for exporting to APKG
- * 
+ * <p>
+ * Entries added with {@link #write(String, String)} are deflated immediately. Media added with
+ * {@link #writeDeferred(String, String)} in formats which are already compressed is stored as is, straight away. The
+ * other media is deflated in parallel on a worker pool and appended by {@link #close()}.
+ *
  * @author Tim
  */
 class ZipFile {
-    private static final int BUFFER_SIZE = 1024;
-    private ZipArchiveOutputStream mZos;
-
-
-    public ZipFile(String path) throws FileNotFoundException {
-        mZos = new ZipArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Media formats which are already compressed. Deflating them costs CPU time and saves nothing. */
+    private static final Set<String> STORED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp3", "ogg", "oga", "opus", "m4a", "aac", "flac", "spx",
+            "mp4", "m4v", "webm", "mkv", "mov", "avi", "3gp", "ogv",
+            "zip", "apkg", "gz", "bz2", "xz", "7z", "woff", "woff2"));
+    private final ZipArchiveOutputStream mZos;
+    private final File mScatterDir;
+    private final ExecutorService mExecutor;
+    private final ParallelScatterZipCreator mCreator;
+    /** Files holding the entries deflated by the workers, deleted on close */
+    private final List<File> mScatterFiles = Collections.synchronizedList(new ArrayList<>());
+    private boolean mHasDeferredEntries = false;
+
+
+    public ZipFile(String path) throws IOException {
+        // A file, rather than a stream, lets stored entries be written without reading them first for their CRC
+        mZos = new ZipArchiveOutputStream(new File(path));
+        // Keep the intermediate files on the same storage as the export, the cache directory may be much smaller
+        mScatterDir = new File(path).getAbsoluteFile().getParentFile();
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        mCreator = new ParallelScatterZipCreator(mExecutor, () -> {
+            File scatterFile = File.createTempFile("apkg", ".scatter", mScatterDir);
+            mScatterFiles.add(scatterFile);
+            return new FileBasedScatterGatherBackingStore(scatterFile);
+        });
     }
 
 
@@ -585,6 +625,45 @@ class ZipFile {
     }
 
 
+    /**
+     * Adds the file at {@code path} to the archive. A file which is already compressed is copied straight away, the
+     * others are deflated on a worker thread: they are read before {@link #close()} returns and must not change until
+     * then.
+     */
+    public void writeDeferred(String path, String entry) throws IOException {
+        File file = new File(path);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(path);
+        }
+        ZipArchiveEntry ze = new ZipArchiveEntry(entry);
+        ze.setTime(file.lastModified());
+        // Without a seekable archive, the workers compute the CRC a stored entry needs before its data
+        if (isCompressed(file.getName()) && mZos.isSeekable()) {
+            ze.setMethod(ZipArchiveEntry.STORED);
+            writeEntry(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), ze);
+            return;
+        }
+        ze.setMethod(isCompressed(file.getName()) ? ZipArchiveEntry.STORED : ZipArchiveEntry.DEFLATED);
+        ze.setSize(file.length());
+        mHasDeferredEntries = true;
+        mCreator.addArchiveEntry(ze, () -> {
+            try {
+                return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            } catch (FileNotFoundException e) {
+                throw new IllegalStateException("Media file disappeared during export: " + path, e);
+            }
+        });
+    }
+
+
+    /** Whether a file named {@code fileName} would not gain from being deflated */
+    @VisibleForTesting
+    static boolean isCompressed(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot != -1 && STORED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+
     public void writeStr(String entry, String value) throws IOException {
         // TODO: Does this work with abnormal characters?
         InputStream is = new ByteArrayInputStream(value.getBytes());
@@ -606,11 +685,40 @@ class ZipFile {
     }
 
 
-    public void close() {
+    /** Waits for the deferred entries, appends them and closes the archive */
+    public void close() throws IOException {
+        try {
+            if (mHasDeferredEntries) {
+                mCreator.writeTo(mZos);
+            }
+            // Writes the central directory: the archive is unreadable if this fails
+            mZos.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compress media", e.getCause());
+        } finally {
+            abort();
+        }
+    }
+
+
+    /** Releases the workers and files of an export which failed. Does nothing after {@link #close()}. */
+    public void abort() {
+        mExecutor.shutdownNow();
         try {
             mZos.close();
         } catch (IOException e) {
             Timber.w(e);
         }
+        synchronized (mScatterFiles) {
+            for (File scatterFile : mScatterFiles) {
+                if (scatterFile.exists() && !scatterFile.delete()) {
+                    Timber.w("Could not delete %s", scatterFile);
+                }
+            }
+            mScatterFiles.clear();
+        }
     }
 }
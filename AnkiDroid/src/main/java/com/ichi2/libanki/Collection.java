@@ -42,6 +42,7 @@ import com.ichi2.libanki.exception.NoSuchDeckException;
 import com.ichi2.libanki.exception.UnknownDatabaseVersionException;
 import com.ichi2.libanki.hooks.ChessFilter;
 import com.ichi2.libanki.sched.AbstractSched;
+import com.ichi2.libanki.sched.DueCountSnapshots;
 import com.ichi2.libanki.sched.Sched;
 import com.ichi2.libanki.sched.SchedV2;
 import com.ichi2.libanki.template.ParsedNode;
@@ -51,6 +52,7 @@ import com.ichi2.upgrade.Upgrade;
 import com.ichi2.utils.FunctionalInterfaces;
 import com.ichi2.utils.HashUtil;
 import com.ichi2.utils.KotlinCleanup;
+import com.ichi2.utils.Tracer;
 import com.ichi2.utils.VersionUtils;
 
 import com.ichi2.utils.JSONArray;
@@ -61,11 +63,8 @@ import net.ankiweb.rsdroid.RustCleanup;
 
 import org.jetbrains.annotations.Contract;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -109,6 +108,7 @@ public class Collection implements CollectionGetter {
     private boolean mServer;
     //private double mLastSave;
     private final Media mMedia;
+    private final Duplicates mDuplicates;
     protected DeckManager mDecks;
     protected ModelManager mModels;
     protected TagManager mTags;
@@ -134,7 +134,7 @@ public class Collection implements CollectionGetter {
     private final @NonNull String mPath;
     protected final DroidBackend mDroidBackend;
     private boolean mDebugLog;
-    private PrintWriter mLogHnd;
+    private CollectionLog mLog;
 
     private static final Pattern fClozePatternQ = Pattern.compile("\\{\\{(?!type:)(.*?)cloze:");
     private static final Pattern fClozePatternA = Pattern.compile("\\{\\{(.*?)cloze:");
@@ -173,22 +173,25 @@ public class Collection implements CollectionGetter {
         mPath = path;
         mTime = time;
         mDroidBackend = droidBackend;
-        _openLog();
-        log(path, VersionUtils.getPkgVersionName());
-        mServer = server;
-        //mLastSave = getTime().now(); // assigned but never accessed - only leaving in for upstream comparison
-        clearUndo();
-        mMedia = new Media(this, server);
-        mTags = initTags();
-        load();
-        if (mCrt == 0) {
-            mCrt = UIUtils.getDayStart(getTime()) / 1000;
-        }
-        mStartReps = 0;
-        mStartTime = 0;
-        _loadScheduler();
-        if (!get_config("newBury", false)) {
-            set_config("newBury", true);
+        try (Tracer.Section ignored = Tracer.begin("Collection.init")) {
+            _openLog();
+            log(path, VersionUtils.getPkgVersionName());
+            mServer = server;
+            //mLastSave = getTime().now(); // assigned but never accessed - only leaving in for upstream comparison
+            clearUndo();
+            mMedia = new Media(this, server);
+            mTags = initTags();
+            mDuplicates = new Duplicates(this);
+            load();
+            if (mCrt == 0) {
+                mCrt = UIUtils.getDayStart(getTime()) / 1000;
+            }
+            mStartReps = 0;
+            mStartTime = 0;
+            _loadScheduler();
+            if (!get_config("newBury", false)) {
+                set_config("newBury", true);
+            }
         }
     }
 
@@ -218,9 +221,11 @@ public class Collection implements CollectionGetter {
 
     @NonNull
     protected ModelManager initModels() {
-        Models models = new Models(this);
-        models.load(loadColumn("models"));
-        return models;
+        try (Tracer.Section ignored = Tracer.begin("Collection.initModels")) {
+            Models models = new Models(this);
+            models.load(loadColumn("models"));
+            return models;
+        }
     }
 
 
@@ -247,6 +252,12 @@ public class Collection implements CollectionGetter {
 
     // Note: Additional members in the class duplicate this
     private void _loadScheduler() {
+        try (Tracer.Section ignored = Tracer.begin("Collection._loadScheduler")) {
+            _loadSchedulerInternal();
+        }
+    }
+
+    private void _loadSchedulerInternal() {
         int ver = schedVer();
         if (ver == 1) {
             mSched = new Sched(this);
@@ -288,6 +299,12 @@ public class Collection implements CollectionGetter {
      */
 
     public void load() {
+        try (Tracer.Section ignored = Tracer.begin("Collection.load")) {
+            _load();
+        }
+    }
+
+    private void _load() {
         Cursor cursor = null;
         String deckConf = "";
         try {
@@ -456,8 +473,12 @@ public class Collection implements CollectionGetter {
             if (!mServer) {
                 mDb.getDatabase().disableWriteAheadLogging();
             }
+            // Undo actions may hold temporary tables of this connection
+            clearUndo();
             mDroidBackend.closeCollection(mDb, downgrade);
             mDb = null;
+            // The snapshot references this collection
+            DueCountSnapshots.invalidate();
             mMedia.close();
             _closeLog();
             Timber.i("Collection closed");
@@ -696,11 +717,13 @@ public class Collection implements CollectionGetter {
         if (ids.isEmpty()) {
             return;
         }
-        String strids = Utils.ids2str(ids);
         // we need to log these independently of cards, as one side may have
         // more card templates
         _logRem(ids, Consts.REM_NOTE);
-        mDb.execute("DELETE FROM notes WHERE id IN " + strids);
+        try (IdSet strids = IdSet.of(mDb, ids)) {
+            mDb.execute("DELETE FROM notes WHERE id IN " + strids.getSql());
+        }
+        mMedia.getRefIndex().remove(ids);
     }
 
 
@@ -787,12 +810,13 @@ public class Collection implements CollectionGetter {
      */
     public <T extends ProgressSender<Integer> & CancelListener> ArrayList<Long> genCards(long[] nids, @NonNull Model model, @Nullable T task) {
         // build map of (nid,ord) so we don't create dupes
-        String snids = Utils.ids2str(nids);
-        return genCards(snids, model, task);
+        try (IdSet snids = IdSet.of(mDb, nids)) {
+            return genCards(snids.getSql(), model, task);
+        }
     }
 
     /**
-     * @param snids All ids of nodes of a note type, separated by comma
+     * @param snids All ids of nodes of a note type: either comma separated between parentheses, or {@link IdSet#getSql()}
      * @param model
      * @param task Task to check for cancellation and update number of card processed
      * @return Cards that should be removed because they should not be generated
@@ -1024,17 +1048,21 @@ public class Collection implements CollectionGetter {
         if (ids.isEmpty()) {
             return;
         }
-        String sids = Utils.ids2str(ids);
-        List<Long> nids = mDb.queryLongList("SELECT nid FROM cards WHERE id IN " + sids);
-        // remove cards
-        _logRem(ids, Consts.REM_CARD);
-        mDb.execute("DELETE FROM cards WHERE id IN " + sids);
+        List<Long> nids;
+        try (IdSet sids = IdSet.of(mDb, ids)) {
+            nids = mDb.queryLongList("SELECT nid FROM cards WHERE id IN " + sids.getSql());
+            // remove cards
+            _logRem(ids, Consts.REM_CARD);
+            mDb.execute("DELETE FROM cards WHERE id IN " + sids.getSql());
+        }
         // then notes
         if (!notes) {
         	return;
         }
-        nids = mDb.queryLongList("SELECT id FROM notes WHERE id IN " + Utils.ids2str(nids)
-                        + " AND id NOT IN (SELECT nid FROM cards)");
+        try (IdSet snids = IdSet.of(mDb, nids)) {
+            nids = mDb.queryLongList("SELECT id FROM notes WHERE id IN " + snids.getSql()
+                            + " AND id NOT IN (SELECT nid FROM cards)");
+        }
         _remNotes(nids);
     }
 
@@ -1081,24 +1109,28 @@ public class Collection implements CollectionGetter {
     /** Update field checksums and sort cache, after find&replace, etc.
      * @param nids*/
     public void updateFieldCache(java.util.Collection<Long> nids) {
-        String snids = Utils.ids2str(nids);
-        updateFieldCache(snids);
+        try (IdSet snids = IdSet.of(mDb, nids)) {
+            updateFieldCache(snids.getSql());
+        }
     }
 
     /** Update field checksums and sort cache, after find&replace, etc.
      * @param nids*/
     public void updateFieldCache(long[] nids) {
-        String snids = Utils.ids2str(nids);
-        updateFieldCache(snids);
+        try (IdSet snids = IdSet.of(mDb, nids)) {
+            updateFieldCache(snids.getSql());
+        }
     }
 
     /** Update field checksums and sort cache, after find&replace, etc.
-     * @param snids comma separated nids*/
+     * @param snids comma separated nids between parentheses, or {@link IdSet#getSql()}*/
     public void updateFieldCache(String snids) {
         ArrayList<Object[]> data = _fieldData(snids);
         ArrayList<Object[]> r = new ArrayList<>(data.size());
+        List<Long> nids = new ArrayList<>(data.size());
         for (Object[] o : data) {
-            String[] fields = Utils.splitFields((String) o[2]);
+            nids.add((Long) o[0]);
+            FieldsView fields = new FieldsView((String) o[2]);
             Model model = getModels().get((Long) o[1]);
             if (model == null) {
                 // note point to invalid model
@@ -1109,6 +1141,8 @@ public class Collection implements CollectionGetter {
         }
         // apply, relying on calling code to bump usn+mod
         mDb.executeMany("UPDATE notes SET sfld=?, csum=? WHERE id=?", r);
+        // the fields may have changed without the mod changing, e.g. twice in the same second
+        mMedia.getRefIndex().invalidate(nids);
     }
 
 
@@ -1251,6 +1285,15 @@ public class Collection implements CollectionGetter {
     }
 
 
+    /**
+     * Inserts the ids of the cards matching {@code search} into the {@code id} column of {@code table}, in order.
+     * @return The number of cards inserted
+     */
+    public int insertCardIds(String table, String search, @NonNull SortOrder order) {
+        return new Finder(this).insertCardIds(table, search, order);
+    }
+
+
     /** Return a list of note ids */
     public List<Long> findNotes(String query) {
         return new Finder(this).findNotes(query);
@@ -1339,6 +1382,11 @@ public class Collection implements CollectionGetter {
      * wasLeech should have been recorded for each card, not globally
      */
     public void clearUndo() {
+        if (mUndo != null) {
+            for (UndoAction undo : mUndo) {
+                undo.discard();
+            }
+        }
         mUndo = new LinkedBlockingDeque<>();
     }
 
@@ -1367,14 +1415,18 @@ public class Collection implements CollectionGetter {
     public @Nullable Card undo() {
         UndoAction lastUndo = mUndo.removeLast();
         Timber.d("undo() of type %s", lastUndo.getClass());
-        return lastUndo.undo(this);
+        try {
+            return lastUndo.undo(this);
+        } finally {
+            lastUndo.discard();
+        }
     }
 
     public void markUndo(@NonNull UndoAction undo) {
         Timber.d("markUndo() of type %s", undo.getClass());
         mUndo.add(undo);
         while (mUndo.size() > UNDO_SIZE_MAX) {
-            mUndo.removeFirst();
+            mUndo.removeFirst().discard();
         }
     }
 
@@ -2025,28 +2077,11 @@ public class Collection implements CollectionGetter {
         if (!mDebugLog) {
             return;
         }
-        StackTraceElement trace = Thread.currentThread().getStackTrace()[3];
-        // Overwrite any args that need special handling for an appropriate string representation
-        for (int i = 0; i < args.length; i++) {
-            if (args[i] instanceof long[]) {
-                args[i] = Arrays.toString((long []) args[i]);
-            }
+        CollectionLog collectionLog = mLog;
+        if (collectionLog != null) {
+            // formatted and written in the background
+            collectionLog.log(getTime().intTime(), args);
         }
-        String s = String.format("[%s] %s:%s(): %s", getTime().intTime(), trace.getFileName(), trace.getMethodName(),
-                TextUtils.join(",  ", args));
-        writeLog(s);
-    }
-
-
-    private void writeLog(String s) {
-        if (mLogHnd != null) {
-            try {
-                mLogHnd.println(s);
-            } catch (Exception e) {
-                Timber.w(e, "Failed to write to collection log");
-            }
-        }
-        Timber.d(s);
     }
 
 
@@ -2057,14 +2092,7 @@ public class Collection implements CollectionGetter {
         }
         try {
             File lpath = new File(mPath.replaceFirst("\\.anki2$", ".log"));
-            if (lpath.exists() && lpath.length() > 10*1024*1024) {
-                File lpath2 = new File(lpath + ".old");
-                if (lpath2.exists()) {
-                    lpath2.delete();
-                }
-                lpath.renameTo(lpath2);
-            }
-            mLogHnd = new PrintWriter(new BufferedWriter(new FileWriter(lpath, true)), true);
+            mLog = new CollectionLog(lpath);
         } catch (IOException e) {
             // turn off logging if we can't open the log file
             Timber.e("Failed to open collection.log file - disabling logging");
@@ -2075,9 +2103,9 @@ public class Collection implements CollectionGetter {
 
     private void _closeLog() {
         Timber.i("Closing Collection Log");
-        if (mLogHnd != null) {
-            mLogHnd.close();
-            mLogHnd = null;
+        if (mLog != null) {
+            mLog.close();
+            mLog = null;
         }
     }
 
@@ -2360,6 +2388,11 @@ public class Collection implements CollectionGetter {
     }
 
 
+    public Duplicates getDuplicates() {
+        return mDuplicates;
+    }
+
+
     public long getCrt() {
         return mCrt;
     }
@@ -0,0 +1,233 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.libanki
+
+import androidx.annotation.VisibleForTesting
+import timber.log.Timber
+import java.io.BufferedWriter
+import java.io.Closeable
+import java.io.File
+import java.io.FileWriter
+import java.io.IOException
+import java.io.Writer
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * The collection debug log (`collection.log`), written on a background thread.
+ *
+ * [log] only stores a small record in a bounded lock-free ring buffer: the arguments, the time and an unresolved
+ * stack trace. The writer thread resolves the calling method, formats the line, writes records in batches and rotates
+ * the file once it exceeds [MAX_FILE_SIZE]. If the writer falls behind by more than [CAPACITY] records, new records
+ * are dropped and counted rather than blocking the caller.
+ */
+class CollectionLog @Throws(IOException::class) constructor(private val mFile: File) : Closeable {
+
+    private class Record(val time: Long, val caller: Throwable, val args: Array<Any?>)
+
+    private val mSlots = AtomicReferenceArray<Record?>(CAPACITY)
+    /** Sequence number of the next record to be claimed by a producer */
+    private val mTail = AtomicLong()
+    /** Sequence number of the next record to be written. Only advanced by the writer thread. */
+    @Volatile
+    private var mHead = 0L
+    private val mDropped = AtomicLong()
+
+    init {
+        if (mFile.length() > MAX_FILE_SIZE) {
+            rotate(mFile)
+        }
+    }
+
+    private var mWriter: Writer = openWriter()
+    @Volatile
+    private var mClosed = false
+    private val mThread = Thread({ writeLoop() }, "CollectionLog")
+
+    init {
+        mThread.isDaemon = true
+        mThread.start()
+    }
+
+    /** Number of records which were dropped because the writer could not keep up */
+    val droppedCount: Long
+        get() = mDropped.get()
+
+    /**
+     * Enqueues a line. Arguments which could change before they are written are copied; objects other than strings,
+     * numbers, arrays and collections are converted to strings immediately.
+     */
+    fun log(time: Long, args: Array<out Any?>) {
+        if (mClosed) {
+            return
+        }
+        val record = Record(time, Throwable(), snapshot(args))
+        while (true) {
+            val tail = mTail.get()
+            if (tail - mHead >= CAPACITY) {
+                mDropped.incrementAndGet()
+                return
+            }
+            if (mTail.compareAndSet(tail, tail + 1)) {
+                mSlots.set(slot(tail), record)
+                if (tail - mHead >= CAPACITY / 2) {
+                    // don't wait for the next poll
+                    LockSupport.unpark(mThread)
+                }
+                return
+            }
+        }
+    }
+
+    /** Waits until every record enqueued so far is written to the file */
+    @VisibleForTesting
+    fun flush() {
+        val target = mTail.get()
+        while (mHead < target && mThread.isAlive) {
+            LockSupport.unpark(mThread)
+            Thread.yield()
+        }
+    }
+
+    /** Writes the pending records and closes the file. Records logged afterwards are ignored. */
+    override fun close() {
+        if (mClosed) {
+            return
+        }
+        mClosed = true
+        LockSupport.unpark(mThread)
+        try {
+            mThread.join()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    private fun writeLoop() {
+        try {
+            while (true) {
+                val closing = mClosed
+                if (drain() == 0 && closing) {
+                    break
+                }
+                if (!closing) {
+                    LockSupport.parkNanos(POLL_INTERVAL_NANOS)
+                }
+            }
+        } finally {
+            try {
+                mWriter.close()
+            } catch (e: IOException) {
+                Timber.w(e, "Failed to close collection log")
+            }
+        }
+    }
+
+    /** Writes the available records. Returns how many were written. */
+    private fun drain(): Int {
+        var written = 0
+        while (true) {
+            val index = slot(mHead)
+            // null: the slot was claimed, but not written yet by its producer
+            val record = mSlots.get(index) ?: break
+            mSlots.set(index, null)
+            mHead++
+            write(format(record))
+            written++
+        }
+        if (written > 0) {
+            try {
+                mWriter.flush()
+                rotateIfNeeded()
+            } catch (e: IOException) {
+                Timber.w(e, "Failed to write to collection log")
+            }
+        }
+        return written
+    }
+
+    private fun write(line: String) {
+        try {
+            mWriter.write(line)
+            mWriter.write("\n")
+        } catch (e: IOException) {
+            Timber.w(e, "Failed to write to collection log")
+        }
+        Timber.d(line)
+    }
+
+    private fun format(record: Record): String {
+        val caller = callerOf(record.caller)
+        val args = record.args.joinToString(",  ") { if (it is LongArray) Arrays.toString(it) else it.toString() }
+        return String.format(Locale.ROOT, "[%s] %s:%s(): %s", record.time, caller?.fileName, caller?.methodName, args)
+    }
+
+    @Throws(IOException::class)
+    private fun rotateIfNeeded() {
+        if (mFile.length() <= MAX_FILE_SIZE) {
+            return
+        }
+        mWriter.close()
+        rotate(mFile)
+        mWriter = openWriter()
+    }
+
+    @Throws(IOException::class)
+    private fun openWriter(): Writer = BufferedWriter(FileWriter(mFile, true), BUFFER_SIZE)
+
+    companion object {
+        /** Number of records which can wait for the writer */
+        const val CAPACITY = 4096
+        /** Size after which the log is moved to `.old` */
+        const val MAX_FILE_SIZE = 10L * 1024 * 1024
+        private const val BUFFER_SIZE = 16 * 1024
+        private const val POLL_INTERVAL_NANOS = 200_000_000L
+
+        private fun slot(sequence: Long): Int = (sequence % CAPACITY).toInt()
+
+        /** Moves [file] to `file.old`, replacing the previous one */
+        private fun rotate(file: File) {
+            val old = File("$file.old")
+            if (old.exists()) {
+                old.delete()
+            }
+            file.renameTo(old)
+        }
+
+        /** The frame which called [Collection.log] */
+        private fun callerOf(trace: Throwable): StackTraceElement? {
+            val frames = trace.stackTrace
+            val log = frames.indexOfLast { it.className == Collection::class.java.name && it.methodName == "log" }
+            if (log != -1) {
+                return frames.getOrNull(log + 1)
+            }
+            return frames.firstOrNull { it.className != CollectionLog::class.java.name }
+        }
+
+        private fun snapshot(args: Array<out Any?>): Array<Any?> {
+            return Array(args.size) { i ->
+                when (val arg = args[i]) {
+                    null, is String, is Number, is Boolean -> arg
+                    is LongArray -> arg.clone()
+                    is kotlin.collections.Collection<*> -> ArrayList(arg)
+                    else -> arg.toString()
+                }
+            }
+        }
+    }
+}
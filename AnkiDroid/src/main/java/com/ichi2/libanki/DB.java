@@ -32,13 +32,15 @@ import com.ichi2.anki.dialogs.DatabaseErrorDialog;
 import com.ichi2.utils.DatabaseChangeDecorator;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.SupportSQLiteStatement;
 import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory;
 import timber.log.Timber;
 
@@ -48,7 +50,8 @@ import timber.log.Timber;
 @SuppressWarnings({"PMD.AvoidThrowingRawExceptionTypes"})
 public class DB {
 
-    private static final String[] MOD_SQLS = new String[] { "insert", "update", "delete" };
+    /** Number of compiled statements kept by {@link #executeMany(String, List)} */
+    private static final int STATEMENT_CACHE_SIZE = 32;
 
     /** may be injected to use a different sqlite implementation - null means use default */
     private static SupportSQLiteOpenHelper.Factory sqliteOpenHelperFactory = null;
@@ -56,9 +59,24 @@ public class DB {
     /**
      * The collection, which is actually an SQLite database.
      */
-    private final SupportSQLiteDatabase mDatabase;
+    private final DatabaseChangeDecorator mDatabase;
     private boolean mMod = false;
 
+    /**
+     * Compiled statements of {@link #executeManyNoTransaction(String, List)}, by SQL, least recently used first.
+     * A statement holds its bindings, so the cache is locked while a statement is used.
+     */
+    private final LinkedHashMap<String, SupportSQLiteStatement> mStatements = new LinkedHashMap<String, SupportSQLiteStatement>(STATEMENT_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SupportSQLiteStatement> eldest) {
+            if (size() <= STATEMENT_CACHE_SIZE) {
+                return false;
+            }
+            closeStatement(eldest.getValue());
+            return true;
+        }
+    };
+
     public DB(@NonNull String ankiFilename) {
         this(ankiFilename, null);
     }
@@ -137,6 +155,12 @@ public class DB {
      * Closes a previously opened database connection.
      */
     public void close() {
+        synchronized (mStatements) {
+            for (SupportSQLiteStatement statement : mStatements.values()) {
+                closeStatement(statement);
+            }
+            mStatements.clear();
+        }
         try {
             mDatabase.close();
             Timber.d("Database %s closed = %s", mDatabase.getPath(), !mDatabase.isOpen());
@@ -163,6 +187,33 @@ public class DB {
     }
 
 
+    /**
+     * The connection without change tracking. For temporary tables and other data which is not part of the collection,
+     * so must neither mark it as needing a sync, nor make the caches checking {@link #getModificationCount()} stale.
+     */
+    public SupportSQLiteDatabase getUntrackedDatabase() {
+        return mDatabase.getWrapped();
+    }
+
+
+    /** Executes {@code sql} through {@link #getUntrackedDatabase()} */
+    public void executeUntracked(String sql, Object... object) {
+        if (object == null || object.length == 0) {
+            getUntrackedDatabase().execSQL(sql);
+        } else {
+            getUntrackedDatabase().execSQL(sql, object);
+        }
+    }
+
+
+    /**
+     * Number of modifying statements executed on this connection, see {@link DatabaseChangeDecorator#getModificationCount()}.
+     */
+    public long getModificationCount() {
+        return mDatabase.getModificationCount();
+    }
+
+
     public void setMod(boolean mod) {
         mMod = mod;
     }
@@ -174,7 +225,26 @@ public class DB {
 
     // Allows to avoid using new Object[]
     public Cursor query(String query, Object... selectionArgs) {
-        return mDatabase.query(query, selectionArgs);
+        if (!QueryProfiler.isEnabled()) {
+            return mDatabase.query(query, selectionArgs);
+        }
+        long start = System.nanoTime();
+        Cursor cursor = mDatabase.query(query, selectionArgs);
+        return QueryProfiler.profile(cursor, query, selectionArgs, System.nanoTime() - start, this::explainQueryPlan);
+    }
+
+
+    /** The steps of the query plan of SQL, for {@link QueryProfiler} */
+    private List<String> explainQueryPlan(String sql, Object[] args) {
+        List<String> plan = new ArrayList<>();
+        // not profiled: this would record the EXPLAIN statements
+        try (Cursor cursor = mDatabase.query("EXPLAIN QUERY PLAN " + sql, args)) {
+            int detail = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail == -1 ? cursor.getColumnCount() - 1 : detail));
+            }
+        }
+        return plan;
     }
 
     /**
@@ -187,7 +257,7 @@ public class DB {
         Cursor cursor = null;
         int scalar;
         try {
-            cursor = mDatabase.query(query, selectionArgs);
+            cursor = query(query, selectionArgs);
             if (!cursor.moveToNext()) {
                 return 0;
             }
@@ -202,7 +272,7 @@ public class DB {
 
 
     public String queryString(String query, Object... bindArgs) throws SQLException {
-        try (Cursor cursor = mDatabase.query(query, bindArgs)) {
+        try (Cursor cursor = query(query, bindArgs)) {
             if (!cursor.moveToNext()) {
                 throw new SQLException("No result for query: " + query);
             }
@@ -213,7 +283,7 @@ public class DB {
 
     public long queryLongScalar(String query, Object... bindArgs) {
         long scalar;
-        try (Cursor cursor = mDatabase.query(query, bindArgs)) {
+        try (Cursor cursor = query(query, bindArgs)) {
             if (!cursor.moveToNext()) {
                 return 0;
             }
@@ -233,7 +303,7 @@ public class DB {
     public ArrayList<Long> queryLongList(String query, Object... bindArgs) {
         ArrayList<Long> results = new ArrayList<>();
 
-        try (Cursor cursor = mDatabase.query(query, bindArgs)) {
+        try (Cursor cursor = query(query, bindArgs)) {
             while (cursor.moveToNext()) {
                 results.add(cursor.getLong(0));
             }
@@ -251,7 +321,7 @@ public class DB {
     public ArrayList<String> queryStringList(String query, Object... bindArgs) {
         ArrayList<String> results = new ArrayList<>();
 
-        try (Cursor cursor = mDatabase.query(query, bindArgs)) {
+        try (Cursor cursor = query(query, bindArgs)) {
             while (cursor.moveToNext()) {
                 results.add(cursor.getString(0));
             }
@@ -262,19 +332,19 @@ public class DB {
 
 
     public void execute(String sql, Object... object) {
-        String s = sql.trim().toLowerCase(Locale.ROOT);
         // mark modified?
-        for (String mo : MOD_SQLS) {
-            if (s.startsWith(mo)) {
-                mMod = true;
-                break;
-            }
+        if (DatabaseChangeDecorator.isModification(sql)) {
+            mMod = true;
         }
+        long start = QueryProfiler.isEnabled() ? System.nanoTime() : 0;
         if (object == null) {
             this.getDatabase().execSQL(sql);
         } else {
             this.getDatabase().execSQL(sql, object);
         }
+        if (start != 0) {
+            QueryProfiler.record(sql, object, System.nanoTime() - start, 0, this::explainQueryPlan);
+        }
     }
 
 
@@ -321,11 +391,59 @@ public class DB {
         executeInTransaction(() -> executeManyNoTransaction(sql, list));
     }
 
-    /** Use this executeMany version with external transaction management */
+    /**
+     * Use this executeMany version with external transaction management.
+     * The statement is compiled once and kept for later calls, each row is only bound and executed.
+     */
     public void executeManyNoTransaction(String sql, List<Object[]> list) {
         mMod = true;
-        for (Object[] o : list) {
-            mDatabase.execSQL(sql, o);
+        long start = QueryProfiler.isEnabled() ? System.nanoTime() : 0;
+        synchronized (mStatements) {
+            SupportSQLiteStatement statement = mStatements.get(sql);
+            if (statement == null) {
+                statement = mDatabase.compileStatement(sql);
+                mStatements.put(sql, statement);
+            }
+            for (Object[] o : list) {
+                statement.clearBindings();
+                bind(statement, o);
+                statement.execute();
+            }
+        }
+        if (start != 0) {
+            // recorded once for the batch, the row count is the number of rows bound
+            QueryProfiler.record(sql, list.isEmpty() ? null : list.get(0), System.nanoTime() - start, list.size(), this::explainQueryPlan);
+        }
+    }
+
+
+    /** Binds arguments the same way as {@link SupportSQLiteDatabase#execSQL(String, Object[])} */
+    private static void bind(SupportSQLiteStatement statement, Object[] bindArgs) {
+        for (int i = 0; i < bindArgs.length; i++) {
+            Object arg = bindArgs[i];
+            int index = i + 1;
+            if (arg == null) {
+                statement.bindNull(index);
+            } else if (arg instanceof Double || arg instanceof Float) {
+                statement.bindDouble(index, ((Number) arg).doubleValue());
+            } else if (arg instanceof Number) {
+                statement.bindLong(index, ((Number) arg).longValue());
+            } else if (arg instanceof Boolean) {
+                statement.bindLong(index, (Boolean) arg ? 1 : 0);
+            } else if (arg instanceof byte[]) {
+                statement.bindBlob(index, (byte[]) arg);
+            } else {
+                statement.bindString(index, arg.toString());
+            }
+        }
+    }
+
+
+    private static void closeStatement(SupportSQLiteStatement statement) {
+        try {
+            statement.close();
+        } catch (Exception e) {
+            Timber.w(e, "Failed to close statement");
         }
     }
 
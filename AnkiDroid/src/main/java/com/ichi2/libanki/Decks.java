@@ -27,6 +27,7 @@ import android.text.TextUtils;
 import com.ichi2.anki.AnkiDroidApp;
 import com.ichi2.anki.exception.ConfirmModSchemaException;
 import com.ichi2.libanki.backend.exception.DeckRenameException;
+import com.ichi2.libanki.sched.DueCountSnapshots;
 
 import com.ichi2.utils.DeckComparator;
 import com.ichi2.utils.HashUtil;
@@ -305,6 +306,8 @@ public class Decks extends DeckManager {
             g.put("usn", mCol.usn());
         }
         mChanged = true;
+        // Limits, names and options only reach the database on flush
+        DueCountSnapshots.invalidate();
     }
 
 
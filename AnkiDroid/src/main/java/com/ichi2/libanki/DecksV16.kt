@@ -37,6 +37,7 @@ import com.ichi2.libanki.backend.DeckNameId
 import com.ichi2.libanki.backend.DeckTreeNode
 import com.ichi2.libanki.backend.DecksBackend
 import com.ichi2.libanki.backend.exception.DeckRenameException
+import com.ichi2.libanki.sched.DueCountSnapshots
 import com.ichi2.libanki.utils.*
 import com.ichi2.utils.CollectionUtils
 import com.ichi2.utils.JSONArray
@@ -258,6 +259,7 @@ class DecksV16(private val col: Collection, private val decksBackend: DecksBacke
     override fun rem(did: did, cardsToo: bool, childrenToo: bool) {
         assert(cardsToo && childrenToo)
         decksBackend.remove_deck(did)
+        DueCountSnapshots.invalidate()
     }
 
     @Suppress("deprecation")
@@ -365,6 +367,8 @@ class DecksV16(private val col: Collection, private val decksBackend: DecksBacke
     /** Add or update an existing deck. Used for syncing and merging. */
     fun update(g: DeckV16, preserve_usn: bool = true) {
         g.id = decksBackend.add_or_update_deck_legacy(g, preserve_usn)
+        // the backend does not write through our database connection
+        DueCountSnapshots.invalidate()
     }
 
     /** Rename deck prefix to NAME if not exists. Updates children. */
@@ -453,6 +457,7 @@ class DecksV16(private val col: Collection, private val decksBackend: DecksBacke
 
     fun update_config(conf: DeckConfigV16, preserve_usn: bool = false) {
         conf.id = decksBackend.update_config(conf, preserve_usn)
+        DueCountSnapshots.invalidate()
     }
 
     fun add_config(
@@ -0,0 +1,236 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.libanki
+
+import android.database.Cursor
+import android.util.Pair
+import com.ichi2.async.CancelListener
+import com.ichi2.async.ProgressSender
+import java.util.TreeSet
+
+/**
+ * Duplicate checks shared by the note editor, the `dupe:` search and the browser's "Find duplicates".
+ *
+ * Two notes are duplicates when they have the same note type and the same first field once HTML and media are
+ * stripped (see [Utils.stripHTMLMedia]). The candidates are the notes with the same checksum, `csum`. The stripped first
+ * fields of the candidates of each (note type, checksum) are cached, so that checking a field again while it is edited
+ * reads and strips no note. The cache is dropped when the collection database is modified or reopened.
+ */
+class Duplicates(private val mCol: Collection) {
+    private data class BucketKey(val mid: Long, val csum: Long)
+
+    /** A note and its field stripped of HTML and media */
+    private class Candidate(val nid: Long, val value: String)
+
+    /** Notes of a note type having a checksum, with their stripped first field */
+    private class Bucket(val nids: LongArray, val fields: Array<String>) {
+        fun notesWith(strippedField: String, excludedNid: Long): List<Long> {
+            var result: MutableList<Long>? = null
+            for (i in nids.indices) {
+                if (nids[i] != excludedNid && fields[i] == strippedField) {
+                    if (result == null) {
+                        result = ArrayList(1)
+                    }
+                    result.add(nids[i])
+                }
+            }
+            return result ?: emptyList()
+        }
+    }
+
+    private val mBuckets = object : LinkedHashMap<BucketKey, Bucket>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<BucketKey, Bucket>?) = size > MAX_CACHED_BUCKETS
+    }
+
+    /** The connection and its modification count when [mBuckets] was filled */
+    private var mDb: DB? = null
+    private var mModificationCount = 0L
+
+    /** Whether a note of type [mid] other than [nid] has the first field [field] */
+    @Synchronized
+    fun isDuplicate(mid: Long, nid: Long, field: String): Boolean {
+        val stripped = Utils.stripHTMLMedia(field)
+        return bucket(mid, Utils.fieldChecksumWithoutHtmlMedia(stripped)).notesWith(stripped, nid).isNotEmpty()
+    }
+
+    /** Ids of the notes of type [mid] whose first field stripped of HTML and media is [strippedField] */
+    @Synchronized
+    fun notesWithStrippedField(mid: Long, strippedField: String): List<Long> =
+        bucket(mid, Utils.fieldChecksumWithoutHtmlMedia(strippedField)).notesWith(strippedField, 0)
+
+    /**
+     * Notes satisfying [search] which have a field named [fieldName] with the same non-empty value, ignoring HTML and
+     * media.
+     *
+     * Only the notes sharing their checksum with another note are read and compared. When [fieldName] is the first
+     * field, checksums shared by several notes are found with a grouped query on `csum`. Other fields have no
+     * checksum column: their checksum is computed while the notes are read. Each group of duplicates is sent to
+     * [progress] once it is found, in no particular order.
+     *
+     * @return List of Pair("dupestr", List[nids]). Each list has at least two elements. If [cancellation] is cancelled,
+     * the groups found until then.
+     */
+    @JvmOverloads
+    fun findDupes(
+        fieldName: String,
+        search: String,
+        progress: ProgressSender<Pair<String, List<Long>>>? = null,
+        cancellation: CancelListener? = null
+    ): List<Pair<String, List<Long>>> {
+        val dupes: MutableList<Pair<String, List<Long>>> = ArrayList()
+        val fields: MutableMap<Long, Int?> = HashMap()
+        val firstFieldMids = ArrayList<Long>()
+        val otherFieldMids = ArrayList<Long>()
+        for (mid in mCol.models.ids()) {
+            when (Finder.ordForMid(mCol, fields, mid, fieldName)) {
+                null -> {}
+                0 -> firstFieldMids.add(mid)
+                else -> otherFieldMids.add(mid)
+            }
+        }
+        if (firstFieldMids.isEmpty() && otherFieldMids.isEmpty()) {
+            return dupes
+        }
+        val db = mCol.db
+        (if (search.isEmpty()) null else IdSet.of(db, mCol.findNotes(search))).use { searched ->
+            val limit = if (searched == null) "" else " and id in " + searched.sql
+            val firstFieldLimit = "mid in " + Utils.ids2str(firstFieldMids) + limit
+
+            // Notes where the field is not the first one, by checksum
+            val others = HashMap<Long, MutableList<Candidate>>()
+            if (otherFieldMids.isNotEmpty()) {
+                db.query("select id, mid, flds from notes where mid in " + Utils.ids2str(otherFieldMids) + limit).use { cur ->
+                    while (cur.moveToNext()) {
+                        if (CancelListener.isCancelled(cancellation)) {
+                            return dupes
+                        }
+                        val value = Utils.stripHTMLMedia(FieldsView.fieldAt(cur.getString(2), fields[cur.getLong(1)]!!))
+                        // empty does not count as duplicate
+                        if (value.isNotEmpty()) {
+                            others.getOrPut(Utils.fieldChecksumWithoutHtmlMedia(value)) { ArrayList(1) }.add(Candidate(cur.getLong(0), value))
+                        }
+                    }
+                }
+            }
+
+            // Checksums of at least two notes
+            val csums = TreeSet<Long>()
+            for ((csum, candidates) in others) {
+                if (candidates.size > 1) {
+                    csums.add(csum)
+                }
+            }
+            if (firstFieldMids.isNotEmpty()) {
+                db.query("select csum from notes where $firstFieldLimit group by csum having count() > 1").use { cur ->
+                    while (cur.moveToNext()) {
+                        csums.add(cur.getLong(0))
+                    }
+                }
+                // a first field may have the value of another field
+                for (chunk in others.keys.chunked(QUERY_CHUNK_SIZE)) {
+                    db.query("select distinct csum from notes where $firstFieldLimit and csum in " + Utils.ids2str(chunk)).use { cur ->
+                        while (cur.moveToNext()) {
+                            csums.add(cur.getLong(0))
+                        }
+                    }
+                }
+            }
+
+            // Compare the values of the notes with those checksums
+            for (chunk in csums.chunked(QUERY_CHUNK_SIZE)) {
+                if (CancelListener.isCancelled(cancellation)) {
+                    return dupes
+                }
+                val groups = HashMap<Long, MutableList<Candidate>>()
+                for (csum in chunk) {
+                    others[csum]?.let { groups[csum] = ArrayList(it) }
+                }
+                if (firstFieldMids.isNotEmpty()) {
+                    db.query("select id, csum, flds from notes where $firstFieldLimit and csum in " + Utils.ids2str(chunk)).use { cur ->
+                        while (cur.moveToNext()) {
+                            val value = Utils.stripHTMLMedia(FieldsView.fieldAt(cur.getString(2), 0))
+                            if (value.isNotEmpty()) {
+                                groups.getOrPut(cur.getLong(1)) { ArrayList() }.add(Candidate(cur.getLong(0), value))
+                            }
+                        }
+                    }
+                }
+                for (csum in chunk) {
+                    val byValue = LinkedHashMap<String, MutableList<Long>>()
+                    for (candidate in groups[csum] ?: continue) {
+                        byValue.getOrPut(candidate.value) { ArrayList() }.add(candidate.nid)
+                    }
+                    for ((value, nids) in byValue) {
+                        if (nids.size > 1) {
+                            nids.sort()
+                            val dupe = Pair<String, List<Long>>(value, nids)
+                            dupes.add(dupe)
+                            ProgressSender.publishProgress(progress, dupe)
+                        }
+                    }
+                }
+            }
+        }
+        return dupes
+    }
+
+    /** The notes of type [mid] with the checksum [csum] */
+    private fun bucket(mid: Long, csum: Long): Bucket {
+        checkCurrent()
+        val key = BucketKey(mid, csum)
+        mBuckets[key]?.let { return it }
+        val builder = BucketBuilder()
+        mCol.db.query("select csum, id, flds from notes where mid = ? and csum = ?", mid, csum).use { cur ->
+            while (cur.moveToNext()) {
+                builder.add(cur)
+            }
+        }
+        val bucket = builder.build()
+        mBuckets[key] = bucket
+        return bucket
+    }
+
+    /** Drops the cache if the notes may have changed since it was filled */
+    private fun checkCurrent() {
+        val db = mCol.db
+        if (mDb !== db || mModificationCount != db.modificationCount) {
+            mBuckets.clear()
+            mDb = db
+            mModificationCount = db.modificationCount
+        }
+    }
+
+    private class BucketBuilder {
+        private val mNids = ArrayList<Long>(1)
+        private val mFields = ArrayList<String>(1)
+
+        /** Adds the note of a row (csum, id, flds) */
+        fun add(cur: Cursor) {
+            mNids.add(cur.getLong(1))
+            mFields.add(Utils.stripHTMLMedia(FieldsView.fieldAt(cur.getString(2), 0)))
+        }
+
+        fun build() = Bucket(mNids.toLongArray(), mFields.toTypedArray())
+    }
+
+    companion object {
+        /** Buckets are small: most hold a single note */
+        private const val MAX_CACHED_BUCKETS = 1000
+
+        /** Number of checksums per query of [findDupes] */
+        private const val QUERY_CHUNK_SIZE = 500
+    }
+}
@@ -0,0 +1,121 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki
+
+import java.security.MessageDigest
+
+/**
+ * SHA1 of strings, as used for the checksum of the first field of notes (`notes.csum`) and by [Utils.checksum].
+ *
+ * Checksums are computed for every note saved, imported or checked for duplicates, so each thread keeps its digest
+ * and buffers: the string is encoded as UTF-8 into a reused byte array, and the field checksum is read from the first
+ * four bytes of the hash instead of being parsed back from its hexadecimal representation.
+ */
+class FieldChecksum private constructor() {
+    private val mDigest = MessageDigest.getInstance("SHA1")
+    private var mBytes = ByteArray(INITIAL_CAPACITY)
+    private val mHash = ByteArray(SHA1_LENGTH)
+
+    /** The SHA1 of the UTF-8 encoding of [data]. Valid until the next call on this thread. */
+    private fun sha1(data: String): ByteArray {
+        val length = encodeUtf8(data)
+        mDigest.update(mBytes, 0, length)
+        mDigest.digest(mHash, 0, SHA1_LENGTH)
+        if (mBytes.size > MAX_KEPT_CAPACITY) {
+            mBytes = ByteArray(INITIAL_CAPACITY)
+        }
+        return mHash
+    }
+
+    /**
+     * Writes [data] to [mBytes] as [String.toByteArray] does: unpaired surrogates are encoded as '?'.
+     * @return The number of bytes
+     */
+    private fun encodeUtf8(data: String): Int {
+        if (mBytes.size < data.length * 3) {
+            mBytes = ByteArray(data.length * 3)
+        }
+        val bytes = mBytes
+        var length = 0
+        var i = 0
+        while (i < data.length) {
+            val c = data[i++]
+            when {
+                c.code < 0x80 -> bytes[length++] = c.code.toByte()
+                c.code < 0x800 -> {
+                    bytes[length++] = (0xC0 or (c.code shr 6)).toByte()
+                    bytes[length++] = (0x80 or (c.code and 0x3F)).toByte()
+                }
+                Character.isSurrogate(c) -> {
+                    if (Character.isHighSurrogate(c) && i < data.length && Character.isLowSurrogate(data[i])) {
+                        val codePoint = Character.toCodePoint(c, data[i++])
+                        bytes[length++] = (0xF0 or (codePoint shr 18)).toByte()
+                        bytes[length++] = (0x80 or (codePoint shr 12 and 0x3F)).toByte()
+                        bytes[length++] = (0x80 or (codePoint shr 6 and 0x3F)).toByte()
+                        bytes[length++] = (0x80 or (codePoint and 0x3F)).toByte()
+                    } else {
+                        bytes[length++] = '?'.code.toByte()
+                    }
+                }
+                else -> {
+                    bytes[length++] = (0xE0 or (c.code shr 12)).toByte()
+                    bytes[length++] = (0x80 or (c.code shr 6 and 0x3F)).toByte()
+                    bytes[length++] = (0x80 or (c.code and 0x3F)).toByte()
+                }
+            }
+        }
+        return length
+    }
+
+    companion object {
+        private const val SHA1_LENGTH = 20
+        private const val INITIAL_CAPACITY = 1024
+
+        /** Buffers which grew larger than this are not kept for the next string */
+        private const val MAX_KEPT_CAPACITY = 256 * 1024
+
+        private val HEX_DIGITS = "0123456789abcdef".toCharArray()
+
+        private val sChecksums = object : ThreadLocal<FieldChecksum>() {
+            override fun initialValue() = FieldChecksum()
+        }
+
+        /**
+         * The checksum of a field whose HTML media was already stripped.
+         * @return 32 bit unsigned number from the first 8 digits of the SHA1 of [strippedField]
+         */
+        @JvmStatic
+        fun of(strippedField: String): Long {
+            val hash = sChecksums.get()!!.sha1(strippedField)
+            return (hash[0].toLong() and 0xFFL shl 24) or
+                (hash[1].toLong() and 0xFFL shl 16) or
+                (hash[2].toLong() and 0xFFL shl 8) or
+                (hash[3].toLong() and 0xFFL)
+        }
+
+        /** The 40 lowercase hexadecimal digits of the SHA1 of [data], as python's sha1.hexdigest() */
+        @JvmStatic
+        fun hex(data: String): String {
+            val hash = sChecksums.get()!!.sha1(data)
+            val digits = CharArray(SHA1_LENGTH * 2)
+            for (i in 0 until SHA1_LENGTH) {
+                val b = hash[i].toInt()
+                digits[2 * i] = HEX_DIGITS[b shr 4 and 0xF]
+                digits[2 * i + 1] = HEX_DIGITS[b and 0xF]
+            }
+            return String(digits)
+        }
+    }
+}
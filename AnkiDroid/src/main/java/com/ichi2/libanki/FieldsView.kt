@@ -0,0 +1,110 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki
+
+import java.nio.CharBuffer
+
+/**
+ * The fields of a note, read from its `flds` column without splitting it.
+ *
+ * The separators are indexed once. A field is only copied when it is requested as a [String] by [get], [field]
+ * returns a view on the column for regular expressions and other code reading a [CharSequence].
+ * Use [fieldAt] when a single field of the column is needed.
+ */
+class FieldsView(
+    /** Fields separated by [Consts.FIELD_SEPARATOR] */
+    val flds: String
+) {
+    /** Start of each field, followed by `flds.length + 1` */
+    private val mStarts: IntArray
+
+    init {
+        var count = 1
+        var i = flds.indexOf(SEPARATOR)
+        while (i >= 0) {
+            count++
+            i = flds.indexOf(SEPARATOR, i + 1)
+        }
+        val starts = IntArray(count + 1)
+        var ord = 1
+        i = flds.indexOf(SEPARATOR)
+        while (i >= 0) {
+            starts[ord++] = i + 1
+            i = flds.indexOf(SEPARATOR, i + 1)
+        }
+        starts[count] = flds.length + 1
+        mStarts = starts
+    }
+
+    /** Number of fields. A column without separator has one field, possibly empty. */
+    val size: Int
+        get() = mStarts.size - 1
+
+    /** The field [ord] as a new String */
+    operator fun get(ord: Int): String {
+        checkOrd(ord)
+        return flds.substring(mStarts[ord], mStarts[ord + 1] - 1)
+    }
+
+    /**
+     * The field [ord], without copying it. Note that the result is not [equals] to a [String] with the same
+     * content: compare with [contentEquals] or use [get].
+     */
+    fun field(ord: Int): CharSequence {
+        checkOrd(ord)
+        return CharBuffer.wrap(flds, mStarts[ord], mStarts[ord + 1] - 1)
+    }
+
+    /** Length of the field [ord] */
+    fun length(ord: Int): Int {
+        checkOrd(ord)
+        return mStarts[ord + 1] - 1 - mStarts[ord]
+    }
+
+    /** Whether the field [ord] is [value] */
+    fun contentEquals(ord: Int, value: String): Boolean {
+        return length(ord) == value.length && flds.regionMatches(mStarts[ord], value, 0, value.length)
+    }
+
+    /** The fields as [Utils.splitFields] returns them */
+    fun toArray(): Array<String> = Array(size) { get(it) }
+
+    private fun checkOrd(ord: Int) {
+        if (ord < 0 || ord >= size) {
+            throw IndexOutOfBoundsException("Field $ord of a note with $size fields")
+        }
+    }
+
+    companion object {
+        private const val SEPARATOR = '\u001f'
+
+        /** The field [ord] of [flds], found without indexing the other fields */
+        @JvmStatic
+        fun fieldAt(flds: String, ord: Int): String {
+            if (ord < 0) {
+                throw IndexOutOfBoundsException("Field $ord")
+            }
+            var start = 0
+            for (i in 0 until ord) {
+                start = flds.indexOf(SEPARATOR, start) + 1
+                if (start == 0) {
+                    throw IndexOutOfBoundsException("Field $ord of a note with ${i + 1} fields")
+                }
+            }
+            val end = flds.indexOf(SEPARATOR, start)
+            return flds.substring(start, if (end < 0) flds.length else end)
+        }
+    }
+}
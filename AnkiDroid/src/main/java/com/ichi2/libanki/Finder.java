@@ -47,6 +47,7 @@ import java.util.regex.Pattern;
 
 import androidx.annotation.CheckResult;
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 import timber.log.Timber;
 
 import static com.ichi2.async.CancelListener.isCancelled;
@@ -63,6 +64,9 @@ public class Finder {
 
     private final Collection mCol;
 
+    /** Id sets referenced by the search being compiled. They must outlive the search query. */
+    private final List<IdSet> mIdSets = new ArrayList<>();
+
 
     public Finder(Collection col) {
         mCol = col;
@@ -82,6 +86,15 @@ public class Finder {
 
     @CheckResult
     private List<Long> _findCards(String query, SortOrder _order, CancelListener cancellation, ProgressSender<Long> progress) {
+        try {
+            return _findCardsWithIdSets(query, _order, cancellation, progress);
+        } finally {
+            _closeIdSets();
+        }
+    }
+
+    @CheckResult
+    private List<Long> _findCardsWithIdSets(String query, SortOrder _order, CancelListener cancellation, ProgressSender<Long> progress) {
         String[] tokens = _tokenize(query);
         Pair<String, String[]> res1 = _where(tokens);
         String preds = res1.first;
@@ -115,7 +128,48 @@ public class Finder {
     }
 
 
+    /**
+     * Inserts the ids of the cards matching {@code query} into the {@code id} column of {@code table}, in the
+     * requested order, without loading them.
+     *
+     * @param order An order which is not reversed, e.g. {@link SortOrder.AfterSqlOrderBy}
+     * @return The number of cards inserted. 0 if the search is invalid.
+     */
+    public int insertCardIds(String table, String query, SortOrder order) {
+        try {
+            String[] tokens = _tokenize(query);
+            Pair<String, String[]> res1 = _where(tokens);
+            String preds = res1.first;
+            if (preds == null) {
+                return 0;
+            }
+            Pair<String, Boolean> res2 = _order(order);
+            if (res2.second) {
+                throw new IllegalArgumentException("Reversed orders can't be applied in SQL");
+            }
+            String sql = _query(preds, res2.first);
+            mCol.getDb().execute("insert into " + table + " (id) " + sql, (Object[]) res1.second);
+            return mCol.getDb().queryScalar("select changes()");
+        } catch (SQLException e) {
+            // invalid grouping
+            Timber.w(e);
+            return 0;
+        } finally {
+            _closeIdSets();
+        }
+    }
+
+
     public List<Long> findNotes(String query) {
+        try {
+            return _findNotesWithIdSets(query);
+        } finally {
+            _closeIdSets();
+        }
+    }
+
+
+    private List<Long> _findNotesWithIdSets(String query) {
         String[] tokens = _tokenize(query);
         Pair<String, String[]> res1 = _where(tokens);
         String preds = res1.first;
@@ -267,7 +321,8 @@ public class Finder {
     }
 
 
-    private Pair<String, String[]> _where(String[] tokens) {
+    @VisibleForTesting
+    Pair<String, String[]> _where(String[] tokens) {
         // state and query
         SearchState s = new SearchState();
         List<String> args = new ArrayList<>();
@@ -451,6 +506,10 @@ public class Finder {
         if ("none".equals(val)) {
             return "n.tags = \"\"";
         }
+        List<Long> nids = mCol.getTags().notesMatching(val);
+        if (nids != null) {
+            return nids.isEmpty() ? "0" : "n.id in " + _idSet(nids).getSql();
+        }
         val = val.replace("*", "%");
         if (!val.startsWith("%")) {
             val = "% " + val;
@@ -785,9 +844,8 @@ public class Finder {
              */
 
             while (cur.moveToNext()) {
-                String[] flds = Utils.splitFields(cur.getString(2));
                 int ord = (Integer)mods.get(cur.getLong(1))[1];
-                String strg = flds[ord];
+                CharSequence strg = new FieldsView(cur.getString(2)).field(ord);
                 if (pattern.matcher(strg).matches()) {
                     nids.add(cur.getLong(0));
                 }
@@ -796,30 +854,43 @@ public class Finder {
         if (nids.isEmpty()) {
             return "0";
         }
-        return "n.id in " + Utils.ids2str(nids);
+        return "n.id in " + _idSet(nids).getSql();
     }
 
 
     private String _findDupes(String val) {
         // caller must call stripHTMLMedia on passed val
-        String[] split = val.split(",", 1);
+        String[] split = val.split(",", 2);
         if (split.length != 2) {
             return null;
         }
-        String mid = split[0];
-        val = split[1];
-        String csum = Long.toString(Utils.fieldChecksumWithoutHtmlMedia(val));
-        List<Long> nids = new ArrayList<>();
-        try (Cursor cur = mCol.getDb().query(
-                "select id, flds from notes where mid=? and csum=?",
-                mid, csum)) {
-            long nid = cur.getLong(0);
-            String flds = cur.getString(1);
-            if (Utils.stripHTMLMedia(Utils.splitFields(flds)[0]).equals(val)) {
-                nids.add(nid);
-            }
+        long mid;
+        try {
+            mid = Long.parseLong(split[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        List<Long> nids = mCol.getDuplicates().notesWithStrippedField(mid, split[1]);
+        if (nids.isEmpty()) {
+            return "0";
+        }
+        return "n.id in " + _idSet(nids).getSql();
+    }
+
+
+    /** An id set which is closed once the current search has run */
+    private IdSet _idSet(List<Long> ids) {
+        IdSet idSet = IdSet.of(mCol.getDb(), ids);
+        mIdSets.add(idSet);
+        return idSet;
+    }
+
+
+    private void _closeIdSets() {
+        for (IdSet idSet : mIdSets) {
+            idSet.close();
         }
-        return "n.id in " +  Utils.ids2str(nids);
+        mIdSets.clear();
     }
 
 
@@ -907,28 +978,38 @@ public class Finder {
         Pattern regex = Pattern.compile(src);
 
         ArrayList<Object[]> d = new ArrayList<>(nids.size());
-        String snids = Utils.ids2str(nids);
         Map<Long, java.util.Collection<Long>> midToNid = HashUtil.HashMapInit(col.getModels().count());
-        try (Cursor cur = col.getDb().query(
-                "select id, mid, flds from notes where id in " + snids)) {
+        try (IdSet snids = IdSet.of(col.getDb(), nids);
+             Cursor cur = col.getDb().query(
+                "select id, mid, flds from notes where id in " + snids.getSql())) {
             while (cur.moveToNext()) {
                 long mid = cur.getLong(1);
                 String flds = cur.getString(2);
                 String origFlds = flds;
-                // does it match?
-                String[] sflds = Utils.splitFields(flds);
+                FieldsView fieldsView = new FieldsView(flds);
+                int firstOrd = 0;
+                int lastOrd = fieldsView.getSize() - 1;
                 if (field != null) {
                     if (!mmap.containsKey(mid)) {
                         // note doesn't have that field
                         continue;
                     }
-                    int ord = mmap.get(mid);
-                    sflds[ord] = regex.matcher(sflds[ord]).replaceAll(dst);
-                } else {
-                    for (int i = 0; i < sflds.length; ++i) {
-                        sflds[i] = regex.matcher(sflds[i]).replaceAll(dst);
+                    firstOrd = lastOrd = mmap.get(mid);
+                }
+                // does it match? Fields are only copied once one does
+                String[] sflds = null;
+                for (int i = firstOrd; i <= lastOrd; ++i) {
+                    Matcher matcher = regex.matcher(fieldsView.field(i));
+                    if (matcher.find()) {
+                        if (sflds == null) {
+                            sflds = fieldsView.toArray();
+                        }
+                        sflds[i] = matcher.replaceAll(dst);
                     }
                 }
+                if (sflds == null) {
+                    continue;
+                }
                 flds = Utils.joinFields(sflds);
                 if (!flds.equals(origFlds)) {
                     long nid = cur.getLong(0);
@@ -994,41 +1075,6 @@ public class Finder {
      * @return List of Pair("dupestr", List[nids]), with nids note satisfying the search query, and having a field fieldName with value duepstr. Each list has at least two elements.
      */
     public static List<Pair<String, List<Long>>> findDupes(Collection col, String fieldName, String search) {
-        // limit search to notes with applicable field name
-    	if (!TextUtils.isEmpty(search)) {
-            search = "(" + search + ") ";
-    	}
-        search += "'" + fieldName + ":*'";
-        // go through notes
-        List<Long> nids = col.findNotes(search);
-        Map<String, List<Long>> vals = HashUtil.HashMapInit(nids.size());
-        List<Pair<String, List<Long>>> dupes = new ArrayList<>(nids.size());
-        Map<Long, Integer> fields = new HashMap<>();
-        try (Cursor cur = col.getDb().query(
-                "select id, mid, flds from notes where id in " + Utils.ids2str(col.findNotes(search)))) {
-            while (cur.moveToNext()) {
-                long nid = cur.getLong(0);
-                long mid = cur.getLong(1);
-                String[] flds = Utils.splitFields(cur.getString(2));
-                Integer ord = ordForMid(col, fields, mid, fieldName);
-                if (ord == null) {
-                    continue;
-                }
-                String val = flds[ord];
-                val = Utils.stripHTMLMedia(val);
-                // empty does not count as duplicate
-                if (TextUtils.isEmpty(val)) {
-                    continue;
-                }
-                if (!vals.containsKey(val)) {
-                    vals.put(val, new ArrayList<>());
-                }
-                vals.get(val).add(nid);
-                if (vals.get(val).size() == 2) {
-                    dupes.add(new Pair<>(val, vals.get(val)));
-                }
-            }
-        }
-        return dupes;
+        return col.getDuplicates().findDupes(fieldName, search == null ? "" : search);
     }
 }
@@ -0,0 +1,410 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki
+
+import androidx.core.text.HtmlCompat
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Strips HTML from field content with one scan over the text: comments, `<style>` and `<script>` blocks, tags and,
+ * optionally, images are skipped while the text is copied to a reusable buffer, then entities are decoded.
+ *
+ * The result is the one of the regular expressions of [Utils.stripHTMLMedia] applied one after the other. Those
+ * passes can see markup formed by an earlier pass, e.g. a tag whose name is split by a comment. When a skipped region
+ * contains the start of markup that an earlier pass removes first, the scanner gives up and returns null, and the
+ * caller runs the regular expressions instead. Field content practically never does that.
+ */
+class HtmlStripper private constructor() {
+    /** Text of the field without markup */
+    private var mText = StringBuilder()
+    /** [mText] with decoded entities */
+    private var mDecoded = StringBuilder()
+
+    /** Bounds of the file name of the last image matched by [imageEnd] */
+    private var mSourceStart = 0
+    private var mSourceEnd = 0
+
+    private fun strip(html: String, imageReplacement: String?): String? {
+        try {
+            var text: CharSequence = html
+            if (html.indexOf('<') >= 0) {
+                if (!stripMarkup(html, imageReplacement, mText)) {
+                    return null
+                }
+                text = mText
+            }
+            if (indexOf(text, '&') < 0) {
+                return text.toString()
+            }
+            decodeEntities(text, mDecoded)
+            return mDecoded.toString()
+        } finally {
+            mText = recycle(mText)
+            mDecoded = recycle(mDecoded)
+        }
+    }
+
+    /**
+     * Copies to [out] the text of [s] which is not part of a comment, a style or script block, a tag, or, if
+     * [imageReplacement] is not null, an image. Images are replaced by [imageReplacement].
+     *
+     * @return false if the result may differ from the one of the regular expressions
+     */
+    private fun stripMarkup(s: String, imageReplacement: String?, out: StringBuilder): Boolean {
+        val media = imageReplacement != null
+        var textStart = 0
+        var i = s.indexOf('<')
+        while (i >= 0) {
+            out.append(s, textStart, i)
+            var kind = IMAGE
+            var end = if (media && matchesAt(s, i, "<img")) imageEnd(s, i) else NO_MATCH
+            if (end == NO_MATCH && matchesAt(s, i, "<!--")) {
+                kind = COMMENT
+                val close = s.indexOf("-->", i + 4)
+                end = if (close < 0) NO_MATCH else close + 3
+            }
+            if (end == NO_MATCH && matchesAt(s, i, "<style")) {
+                kind = STYLE
+                end = blockEnd(s, i, "<style".length, "</style>")
+            }
+            if (end == NO_MATCH && matchesAt(s, i, "<script")) {
+                kind = SCRIPT
+                end = blockEnd(s, i, "<script".length, "</script>")
+            }
+            if (end == NO_MATCH) {
+                kind = TAG
+                val close = s.indexOf('>', i + 1)
+                if (close < 0) {
+                    // No '>' left, so no markup left either
+                    textStart = i
+                    break
+                }
+                end = close + 1
+            }
+            if (kind == IMAGE) {
+                if (indexOf(s, '<', mSourceStart, mSourceEnd) >= 0) {
+                    // The file name could form a tag with the following text
+                    return false
+                }
+                appendReplacement(s, imageReplacement!!, out)
+            } else if (hidesEarlierMarkup(s, i + 1, end, kind, media)) {
+                return false
+            }
+            textStart = end
+            i = s.indexOf('<', end)
+        }
+        out.append(s, textStart, s.length)
+        return true
+    }
+
+    /**
+     * Same as a match of `(?i)<img[^>]+src=["']?([^"'>]+)["']?[^>]*>` at [start]. Sets the bounds of the group.
+     * @return The end of the match, or [NO_MATCH]
+     */
+    private fun imageEnd(s: String, start: Int): Int {
+        val close = s.indexOf('>', start + 4)
+        if (close < 0) {
+            return NO_MATCH
+        }
+        // `[^>]+` is greedy: try the last "src=" first
+        var src = lastIndexOfIgnoreCase(s, "src=", start + 5, close)
+        while (src >= 0) {
+            var value = src + 4
+            if (value < close && endsFileName(s[value])) {
+                value++
+            }
+            var valueEnd = value
+            while (valueEnd < close && !endsFileName(s[valueEnd])) {
+                valueEnd++
+            }
+            if (valueEnd > value) {
+                mSourceStart = value
+                mSourceEnd = valueEnd
+                return close + 1
+            }
+            src = lastIndexOfIgnoreCase(s, "src=", start + 5, src)
+        }
+        return NO_MATCH
+    }
+
+    /** Appends [replacement] as [java.util.regex.Matcher.appendReplacement] would, with `$1` the image file name */
+    private fun appendReplacement(s: String, replacement: String, out: StringBuilder) {
+        var k = 0
+        while (k < replacement.length) {
+            when (val c = replacement[k]) {
+                '\\' -> {
+                    out.append(replacement[k + 1])
+                    k += 2
+                }
+                '$' -> {
+                    out.append(s, mSourceStart, mSourceEnd)
+                    k += 2
+                }
+                else -> {
+                    out.append(c)
+                    k++
+                }
+            }
+        }
+    }
+
+    /** Decodes entities as `Utils.entsToTxt` does, without going through [HtmlCompat] for the common ones */
+    private fun decodeEntities(text: CharSequence, out: StringBuilder) {
+        val n = text.length
+        var textStart = 0
+        var i = indexOf(text, '&', 0, n)
+        while (i >= 0) {
+            // &#?\w+;
+            var nameStart = i + 1
+            if (nameStart < n && text[nameStart] == '#') {
+                nameStart++
+            }
+            var nameEnd = nameStart
+            while (nameEnd < n && isWordChar(text[nameEnd])) {
+                nameEnd++
+            }
+            if (nameEnd == nameStart || nameEnd == n || text[nameEnd] != ';') {
+                i = indexOf(text, '&', i + 1, n)
+                continue
+            }
+            out.append(text, textStart, i)
+            appendEntity(text, i, nameStart, nameEnd, out)
+            textStart = nameEnd + 1
+            i = indexOf(text, '&', textStart, n)
+        }
+        out.append(text, textStart, n)
+    }
+
+    private fun appendEntity(text: CharSequence, start: Int, nameStart: Int, nameEnd: Int, out: StringBuilder) {
+        val numeric = nameStart > start + 1
+        if (numeric) {
+            val c = numericEntity(text, nameStart, nameEnd)
+            if (c >= 0) {
+                out.append(c.toChar())
+                return
+            }
+        } else {
+            when {
+                // entitydefs defines nbsp as \xa0 instead of a standard space, see entsToTxt
+                nameIs(text, nameStart, nameEnd, "nbsp") -> out.append(' ')
+                nameIs(text, nameStart, nameEnd, "amp") -> out.append('&')
+                nameIs(text, nameStart, nameEnd, "lt") -> out.append('<')
+                nameIs(text, nameStart, nameEnd, "gt") -> out.append('>')
+                nameIs(text, nameStart, nameEnd, "quot") -> out.append('"')
+                else -> out.append(namedEntity(text.subSequence(start, nameEnd + 1).toString()))
+            }
+            return
+        }
+        out.append(decode(text.subSequence(start, nameEnd + 1).toString()))
+    }
+
+    companion object {
+        private const val NO_MATCH = -1
+
+        /** Kinds of markup, in the order in which the regular expressions remove them */
+        private const val IMAGE = 0
+        private const val COMMENT = 1
+        private const val STYLE = 2
+        private const val SCRIPT = 3
+        private const val TAG = 4
+
+        /** Buffers which grew larger than this are not kept for the next field */
+        private const val MAX_KEPT_CAPACITY = 64 * 1024
+
+        /** Named entities are few, but the cache must not grow with arbitrary "&word;" in the text */
+        private const val MAX_CACHED_ENTITIES = 512
+
+        private val sStrippers = object : ThreadLocal<HtmlStripper>() {
+            override fun initialValue() = HtmlStripper()
+        }
+        private val sNamedEntities = ConcurrentHashMap<String, String>()
+
+        /**
+         * Same as [Utils.stripHTML].
+         * @return null if the regular expressions must be used for this text
+         */
+        @JvmStatic
+        fun stripHtml(html: String): String? = sStrippers.get()!!.strip(html, null)
+
+        /**
+         * Same as [Utils.stripHTMLMedia].
+         * @return null if the regular expressions must be used for this text or this replacement
+         */
+        @JvmStatic
+        fun stripHtmlMedia(html: String, replacement: String): String? {
+            if (!isSimpleReplacement(replacement)) {
+                return null
+            }
+            return sStrippers.get()!!.strip(html, replacement)
+        }
+
+        /** Whether [replacement] only refers to the file name, as `$1`, and can't open a tag */
+        private fun isSimpleReplacement(replacement: String): Boolean {
+            var k = 0
+            while (k < replacement.length) {
+                val c = replacement[k]
+                if (c == '\\' || c == '$') {
+                    if (k + 1 == replacement.length || c == '$' && replacement[k + 1] != '1' || replacement[k + 1] == '<') {
+                        return false
+                    }
+                    k += 2
+                } else if (c == '<') {
+                    return false
+                } else {
+                    k++
+                }
+            }
+            return true
+        }
+
+        /**
+         * Whether [s] contains, between [from] and [to], the start of markup which a pass before the one removing
+         * markup of [kind] would have removed first.
+         */
+        private fun hidesEarlierMarkup(s: String, from: Int, to: Int, kind: Int, media: Boolean): Boolean {
+            var i = indexOf(s, '<', from, to)
+            while (i >= 0) {
+                if (media && matchesAt(s, i, "<img") ||
+                    kind > COMMENT && matchesAt(s, i, "<!--") ||
+                    kind > STYLE && matchesAt(s, i, "<style") ||
+                    kind > SCRIPT && matchesAt(s, i, "<script")
+                ) {
+                    return true
+                }
+                i = indexOf(s, '<', i + 1, to)
+            }
+            return false
+        }
+
+        /** End of `(?si)<tag.*?>.*?</tag>` at [start], or [NO_MATCH] */
+        private fun blockEnd(s: String, start: Int, openLength: Int, close: String): Int {
+            val openEnd = s.indexOf('>', start + openLength)
+            if (openEnd < 0) {
+                return NO_MATCH
+            }
+            var i = s.indexOf('<', openEnd + 1)
+            while (i >= 0) {
+                if (matchesAt(s, i, close)) {
+                    return i + close.length
+                }
+                i = s.indexOf('<', i + 1)
+            }
+            return NO_MATCH
+        }
+
+        /**
+         * Whether [s] contains [lowerCase] at [i], ignoring the case of ASCII letters only, as
+         * [java.util.regex.Pattern.CASE_INSENSITIVE] does.
+         */
+        private fun matchesAt(s: String, i: Int, lowerCase: String): Boolean {
+            if (i + lowerCase.length > s.length) {
+                return false
+            }
+            for (k in lowerCase.indices) {
+                val c = s[i + k]
+                val expected = lowerCase[k]
+                if (c != expected && !(expected in 'a'..'z' && c == expected - ('a' - 'A'))) {
+                    return false
+                }
+            }
+            return true
+        }
+
+        /** Last index of [lowerCase] starting in [from, before) and ending before [before] */
+        private fun lastIndexOfIgnoreCase(s: String, lowerCase: String, from: Int, before: Int): Int {
+            var i = before - lowerCase.length
+            while (i >= from) {
+                if (matchesAt(s, i, lowerCase)) {
+                    return i
+                }
+                i--
+            }
+            return NO_MATCH
+        }
+
+        private fun indexOf(text: CharSequence, c: Char, from: Int = 0, to: Int = text.length): Int {
+            for (i in from until to) {
+                if (text[i] == c) {
+                    return i
+                }
+            }
+            return NO_MATCH
+        }
+
+        /** `["'>]`: characters which can't be part of an image file name */
+        private fun endsFileName(c: Char) = c == '"' || c == '\'' || c == '>'
+
+        /** `\w` without [java.util.regex.Pattern.UNICODE_CHARACTER_CLASS] */
+        private fun isWordChar(c: Char) = c in 'a'..'z' || c in 'A'..'Z' || c in '0'..'9' || c == '_'
+
+        /**
+         * The character of `&#digits;` or `&#xhex;` between [start] and [end], or -1 if [HtmlCompat] must decode it:
+         * whitespace, which it collapses, control characters, the range it maps as Windows-1252, and characters
+         * outside of the BMP.
+         */
+        private fun numericEntity(text: CharSequence, start: Int, end: Int): Int {
+            val hex = text[start] == 'x'
+            val digitsStart = if (hex) start + 1 else start
+            if (digitsStart == end || end - digitsStart > 6) {
+                return -1
+            }
+            var value = 0
+            for (i in digitsStart until end) {
+                val digit = Character.digit(text[i], if (hex) 16 else 10)
+                if (digit < 0) {
+                    return -1
+                }
+                value = value * (if (hex) 16 else 10) + digit
+            }
+            return when (value) {
+                in 0x21..0x7E, in 0xA0..0xD7FF, in 0xE000..0xFFFD -> value
+                else -> -1
+            }
+        }
+
+        private fun nameIs(text: CharSequence, start: Int, end: Int, name: String): Boolean {
+            if (end - start != name.length) {
+                return false
+            }
+            for (i in name.indices) {
+                if (text[start + i] != name[i]) {
+                    return false
+                }
+            }
+            return true
+        }
+
+        private fun namedEntity(entity: String): String {
+            sNamedEntities[entity]?.let { return it }
+            val decoded = decode(entity)
+            if (sNamedEntities.size < MAX_CACHED_ENTITIES) {
+                sNamedEntities[entity] = decoded
+            }
+            return decoded
+        }
+
+        private fun decode(entity: String): String {
+            return HtmlCompat.fromHtml(entity, HtmlCompat.FROM_HTML_MODE_LEGACY).toString()
+        }
+
+        private fun recycle(buffer: StringBuilder): StringBuilder {
+            if (buffer.capacity() > MAX_KEPT_CAPACITY) {
+                return StringBuilder()
+            }
+            buffer.setLength(0)
+            return buffer
+        }
+    }
+}
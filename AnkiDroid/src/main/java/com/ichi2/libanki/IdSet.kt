@@ -0,0 +1,109 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.libanki
+
+import androidx.sqlite.db.SupportSQLiteStatement
+import timber.log.Timber
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A set of ids to be used in an `in` clause: `"... where id in " + idSet.sql`.
+ *
+ * Small sets are inlined, as [Utils.ids2str] does. Larger sets are streamed once into a session temporary table,
+ * and [sql] selects from that table, so SQLite neither has to parse a statement of several megabytes, nor to
+ * rebuild the same list for every statement in which it appears. The temporary table lives on the connection
+ * of [DB], which must not be closed before this set is.
+ *
+ * Use in a try-with-resources block, the temporary table is dropped on [close].
+ */
+class IdSet private constructor(
+    private val mDb: DB?,
+    private val mTable: String?,
+    /** A parenthesised SQL expression, to be used after `in` */
+    val sql: String
+) : Closeable {
+    private var mClosed = false
+
+    /** Whether the ids are stored in a temporary table */
+    val isTable: Boolean
+        get() = mTable != null
+
+    override fun toString(): String = sql
+
+    override fun close() {
+        if (mTable == null || mClosed) {
+            return
+        }
+        mClosed = true
+        try {
+            mDb!!.executeUntracked("drop table if exists temp.$mTable")
+        } catch (e: Exception) {
+            // The table disappears with the connection anyway
+            Timber.w(e, "Could not drop %s", mTable)
+        }
+    }
+
+    companion object {
+        /** Sets with fewer ids than this are inlined in the SQL */
+        const val TEMP_TABLE_THRESHOLD = 500
+
+        private val sNextTable = AtomicInteger()
+
+        @JvmStatic
+        fun of(db: DB, ids: Collection<Long>): IdSet {
+            if (ids.size < TEMP_TABLE_THRESHOLD) {
+                return IdSet(null, null, Utils.ids2str(ids))
+            }
+            return fill(db) { statement -> ids.forEach { insert(statement, it) } }
+        }
+
+        @JvmStatic
+        fun of(db: DB, ids: LongArray): IdSet {
+            if (ids.size < TEMP_TABLE_THRESHOLD) {
+                return IdSet(null, null, Utils.ids2str(ids))
+            }
+            return fill(db) { statement -> ids.forEach { insert(statement, it) } }
+        }
+
+        private fun fill(db: DB, insertAll: (SupportSQLiteStatement) -> Unit): IdSet {
+            val table = "ids_" + sNextTable.incrementAndGet()
+            // integer primary key: the table is the index, and duplicated ids are ignored
+            db.executeUntracked("create temp table $table (id integer primary key)")
+            val set = IdSet(db, table, "(select id from temp.$table)")
+            try {
+                val database = db.untrackedDatabase
+                val insertRows = Runnable {
+                    database.compileStatement("insert or ignore into temp.$table values (?)").use { insertAll(it) }
+                }
+                if (database.inTransaction()) {
+                    insertRows.run()
+                } else {
+                    db.executeInTransaction(insertRows)
+                }
+            } catch (e: RuntimeException) {
+                set.close()
+                throw e
+            }
+            return set
+        }
+
+        private fun insert(statement: SupportSQLiteStatement, id: Long) {
+            statement.bindLong(1, id)
+            statement.execute()
+        }
+    }
+}
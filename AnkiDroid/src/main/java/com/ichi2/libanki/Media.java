@@ -33,6 +33,7 @@ import com.ichi2.utils.ExceptionUtil;
 import com.ichi2.utils.HashUtil;
 import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONObject;
+import com.ichi2.utils.Tracer;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -120,10 +121,12 @@ public class Media {
     private final Collection mCol;
     private final String mDir;
     private DB mDb;
+    private final MediaRefIndex mRefIndex;
 
 
     public Media(Collection col, boolean server) {
         mCol = col;
+        mRefIndex = new MediaRefIndex(col, this);
         if (server) {
             mDir = null;
             return;
@@ -151,6 +154,12 @@ public class Media {
         if (mCol.getServer()) {
             return;
         }
+        try (Tracer.Section ignored = Tracer.begin("Media.connect")) {
+            _connect();
+        }
+    }
+
+    private void _connect() {
         // NOTE: We use a custom prefix for AnkiDroid to avoid issues caused by copying
         // the db to the desktop or vice versa.
         String path = dir() + ".ad.db2";
@@ -161,6 +170,7 @@ public class Media {
             _initDB();
         }
         maybeUpgrade();
+        mRefIndex.createTables();
     }
 
 
@@ -438,25 +448,21 @@ public class Media {
     private @NonNull List<List<String>> check(File[] local) {
         File mdir = new File(dir());
         // gather all media references in NFC form
-        Set<String> allRefs = new HashSet<>();
-        try (Cursor cur = mCol.getDb().query("select id, mid, flds from notes")) {
-            while (cur.moveToNext()) {
-                long nid = cur.getLong(0);
-                long mid = cur.getLong(1);
-                String flds = cur.getString(2);
-                List<String> noteRefs = filesInStr(mid, flds);
-                // check the refs are in NFC
-                for (String f : noteRefs) {
-                    // if they're not, we'll need to fix them first
-                    if (!f.equals(Utils.nfcNormalized(f))) {
-                        _normalizeNoteRefs(nid);
-                        noteRefs = filesInStr(mid, flds);
-                        break;
-                    }
+        Set<String> allRefs = new HashSet<>(mRefIndex.allReferences());
+        // check the refs are in NFC
+        boolean normalizedNotes = false;
+        for (String f : allRefs) {
+            // if they're not, we'll need to fix them first
+            if (!f.equals(Utils.nfcNormalized(f))) {
+                for (long nid : mRefIndex.notesReferencing(f)) {
+                    _normalizeNoteRefs(nid);
                 }
-                allRefs.addAll(noteRefs);
+                normalizedNotes = true;
             }
         }
+        if (normalizedNotes) {
+            allRefs = new HashSet<>(mRefIndex.allReferences());
+        }
         // loop through media folder
         List<String> unused = new ArrayList<>();
         List<String> invalid = new ArrayList<>();
@@ -974,6 +980,12 @@ public class Media {
      * ***********************************************************
      */
 
+    /** The media files referenced by each note */
+    public MediaRefIndex getRefIndex() {
+        return mRefIndex;
+    }
+
+
     /**
      * Used by unit tests only.
      */
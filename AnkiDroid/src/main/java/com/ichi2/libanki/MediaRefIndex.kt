@@ -0,0 +1,219 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.libanki
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+import timber.log.Timber
+
+/**
+ * Index of the media files referenced by each note, kept in the media database.
+ *
+ * Extracting the references of a note ([Media.filesInStr]) expands clozes and renders LaTeX, which makes scanning
+ * every note of a large collection take minutes. The index stores the references of each note along with the
+ * note's `mod` when it was scanned. Before the index is read it is reconciled with the notes table: only notes which
+ * are new, whose `mod` changed (e.g. by a sync or an import), or which were saved since the last refresh are scanned
+ * again. The saved notes are only remembered in memory, as saving a note twice in a second does not change its `mod`.
+ *
+ * The index is derived data: deleting the media database rebuilds it on the next read. It is written without change
+ * tracking ([DB.executeUntracked]), so that maintaining it does not mark the media as needing a sync.
+ */
+class MediaRefIndex(private val mCol: Collection, private val mMedia: Media) {
+
+    /** null when the media database is closed, or in server mode */
+    private val db: DB?
+        get() = mMedia.db
+
+    /** The connection to the collection at the last [refresh], or null if the index may be outdated */
+    private var mRefreshedDb: DB? = null
+
+    /** [DB.getModificationCount] of [mRefreshedDb] at the last [refresh] */
+    private var mRefreshedModifications = 0L
+
+    /** Notes saved since the last [refresh] */
+    private val mSavedNotes = HashSet<Long>()
+
+    /** Creates the index tables in the media database, if they don't exist yet */
+    fun createTables() {
+        val db = db ?: return
+        mRefreshedDb = null
+        db.executeUntracked("create table if not exists note_refs (nid integer not null, fname text not null, primary key (nid, fname))")
+        db.executeUntracked("create index if not exists idx_note_refs_fname on note_refs (fname)")
+        db.executeUntracked("create table if not exists note_refs_mod (nid integer primary key, mod integer not null)")
+    }
+
+    /** The references of [nid] will be read again from the note at the next [refresh]. Does not write. */
+    @Synchronized
+    fun invalidate(nid: Long) {
+        mRefreshedDb = null
+        mSavedNotes.add(nid)
+    }
+
+    /** The references of [nids] will be read again from their notes at the next [refresh]. Does not write. */
+    @Synchronized
+    fun invalidate(nids: kotlin.collections.Collection<Long>) {
+        if (nids.isEmpty()) {
+            return
+        }
+        mRefreshedDb = null
+        mSavedNotes.addAll(nids)
+    }
+
+    /** Forgets the references of deleted notes */
+    fun remove(nids: kotlin.collections.Collection<Long>) {
+        val db = db ?: return
+        if (nids.isEmpty()) {
+            return
+        }
+        IdSet.of(db, nids).use { ids ->
+            db.executeInTransaction {
+                db.executeUntracked("delete from note_refs where nid in " + ids.sql)
+                db.executeUntracked("delete from note_refs_mod where nid in " + ids.sql)
+            }
+        }
+    }
+
+    /** Discards the index and scans every note again */
+    fun rebuild() {
+        val db = db ?: return
+        db.executeInTransaction {
+            db.executeUntracked("delete from note_refs")
+            db.executeUntracked("delete from note_refs_mod")
+        }
+        mRefreshedDb = null
+        refresh()
+    }
+
+    /**
+     * Brings the index up to date with the notes table. Does nothing if the collection was not modified since the last
+     * refresh.
+     * @return the number of notes which were scanned
+     */
+    fun refresh(): Int {
+        val db = db ?: return 0
+        val colDb = mCol.db
+        val modifications = colDb.modificationCount
+        if (mRefreshedDb === colDb && mRefreshedModifications == modifications) {
+            return 0
+        }
+        val saved = synchronized(this) { HashSet(mSavedNotes) }
+        val indexed = HashMap<Long, Long>()
+        db.query("select nid, mod from note_refs_mod").use { cur ->
+            while (cur.moveToNext()) {
+                indexed[cur.getLong(0)] = cur.getLong(1)
+            }
+        }
+        val stale = ArrayList<Long>()
+        mCol.db.query("select id, mod from notes").use { cur ->
+            while (cur.moveToNext()) {
+                val nid = cur.getLong(0)
+                if (indexed.remove(nid) != cur.getLong(1) || nid in saved) {
+                    stale.add(nid)
+                }
+            }
+        }
+        // what remains was indexed, but is not a note anymore
+        remove(indexed.keys)
+        if (stale.isNotEmpty()) {
+            Timber.d("Scanning media references of %d notes", stale.size)
+            scan(db, stale)
+        }
+        synchronized(this) { mSavedNotes.removeAll(saved) }
+        mRefreshedDb = colDb
+        mRefreshedModifications = modifications
+        return stale.size
+    }
+
+    private fun scan(db: DB, nids: List<Long>) {
+        val deletes = ArrayList<Array<Any>>(BATCH_SIZE)
+        val refs = ArrayList<Array<Any>>(BATCH_SIZE)
+        val mods = ArrayList<Array<Any>>(BATCH_SIZE)
+        IdSet.of(mCol.db, nids).use { ids ->
+            mCol.db.query("select id, mid, mod, flds from notes where id in " + ids.sql).use { cur ->
+                while (cur.moveToNext()) {
+                    val nid = cur.getLong(0)
+                    val mid = cur.getLong(1)
+                    deletes.add(arrayOf(nid))
+                    // a note of a missing note type can't be rendered, so has no references
+                    if (mCol.models.get(mid) != null) {
+                        for (fname in mMedia.filesInStr(mid, cur.getString(3))) {
+                            refs.add(arrayOf(nid, fname))
+                        }
+                    }
+                    mods.add(arrayOf(nid, cur.getLong(2)))
+                    if (mods.size >= BATCH_SIZE) {
+                        write(db, deletes, refs, mods)
+                    }
+                }
+            }
+        }
+        write(db, deletes, refs, mods)
+    }
+
+    private fun write(db: DB, deletes: MutableList<Array<Any>>, refs: MutableList<Array<Any>>, mods: MutableList<Array<Any>>) {
+        val database = db.untrackedDatabase
+        db.executeInTransaction {
+            executeMany(database, "delete from note_refs where nid = ?", deletes)
+            executeMany(database, "insert or ignore into note_refs values (?, ?)", refs)
+            executeMany(database, "insert or replace into note_refs_mod values (?, ?)", mods)
+        }
+        deletes.clear()
+        refs.clear()
+        mods.clear()
+    }
+
+    /** The files referenced by any note, in the form they are written in the notes */
+    fun allReferences(): Set<String> {
+        val db = db ?: return emptySet()
+        refresh()
+        return HashSet(db.queryStringList("select distinct fname from note_refs"))
+    }
+
+    /** The files referenced by [nids] */
+    fun referencesOf(nids: kotlin.collections.Collection<Long>): Set<String> {
+        val db = db ?: return emptySet()
+        refresh()
+        IdSet.of(db, nids).use { ids ->
+            return HashSet(db.queryStringList("select distinct fname from note_refs where nid in " + ids.sql))
+        }
+    }
+
+    /** The notes referencing [fname], according to the last refresh */
+    fun notesReferencing(fname: String): List<Long> {
+        val db = db ?: return emptyList()
+        return db.queryLongList("select nid from note_refs where fname = ?", fname)
+    }
+
+    companion object {
+        /** Number of notes whose references are written in one transaction */
+        private const val BATCH_SIZE = 1000
+
+        /** Executes [sql] once per row of [rows], whose values are ids or file names */
+        private fun executeMany(database: SupportSQLiteDatabase, sql: String, rows: List<Array<Any>>) {
+            database.compileStatement(sql).use { statement ->
+                for (row in rows) {
+                    for ((i, value) in row.withIndex()) {
+                        if (value is Long) {
+                            statement.bindLong(i + 1, value)
+                        } else {
+                            statement.bindString(i + 1, value.toString())
+                        }
+                    }
+                    statement.execute()
+                }
+            }
+        }
+    }
+}
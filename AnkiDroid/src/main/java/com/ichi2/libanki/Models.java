@@ -792,11 +792,11 @@ public class Models extends ModelManager {
         int nfields = newModel.getJSONArray("flds").length();
         long mid = newModel.getLong("id");
         String sflds = mCol.getDb().queryString("select flds from notes where id = ?", nid);
-        String[] flds = Utils.splitFields(sflds);
+        FieldsView flds = new FieldsView(sflds);
         Map<Integer, String> newflds = HashUtil.HashMapInit(map.size());
 
         for (Entry<Integer, Integer> entry : map.entrySet()) {
-            newflds.put(entry.getValue(), flds[entry.getKey()]);
+            newflds.put(entry.getValue(), flds.get(entry.getKey()));
         }
         List<String> flds2 = new ArrayList<>(nfields);
         for (int c = 0; c < nfields; ++c) {
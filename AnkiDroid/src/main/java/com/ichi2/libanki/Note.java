@@ -135,6 +135,7 @@ public class Note implements Cloneable {
         mMod = mod != null ? mod : mCol.getTime().intTime();
         mCol.getDb().execute("insert or replace into notes values (?,?,?,?,?,?,?,?,?,?,?)",
                 mId, mGuId, mMid, mMod, mUsn, tags, fields, sfld, csum, mFlags, mData);
+        mCol.getMedia().getRefIndex().invalidate(mId);
         mCol.getTags().register(mTags);
         _postFlush();
     }
@@ -290,17 +291,8 @@ public class Note implements Cloneable {
         if (val.trim().length() == 0) {
             return DupeOrEmpty.EMPTY;
         }
-        Pair<String, Long> csumAndStrippedFieldField = Utils.sfieldAndCsum(mFields, 0);
-        long csum = csumAndStrippedFieldField.second;
-        // find any matching csums and compare
-        String strippedFirstField = csumAndStrippedFieldField.first;
-        for (String flds : mCol.getDb().queryStringList(
-                "SELECT flds FROM notes WHERE csum = ? AND id != ? AND mid = ?",
-                csum, (mId), mMid)) {
-            if (Utils.stripHTMLMedia(
-                    Utils.splitFields(flds)[0]).equals(strippedFirstField)) {
-                return DupeOrEmpty.DUPE;
-            }
+        if (mCol.getDuplicates().isDuplicate(mMid, mId, val)) {
+            return DupeOrEmpty.DUPE;
         }
         return DupeOrEmpty.CORRECT;
     }
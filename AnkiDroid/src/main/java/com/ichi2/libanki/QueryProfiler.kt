@@ -0,0 +1,348 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.libanki
+
+import android.database.Cursor
+import android.database.CursorWrapper
+import androidx.annotation.VisibleForTesting
+import com.ichi2.utils.DatabaseChangeDecorator
+import timber.log.Timber
+import java.util.*
+
+/**
+ * Opt-in statistics about the SQL run through [DB]: for each statement shape (the SQL with its literals replaced
+ * by `?`), the number of executions, the latency and the number of rows returned.
+ *
+ * Statements slower than [slowQueryThresholdMs] are logged along with their `EXPLAIN QUERY PLAN`, so a missing index
+ * shows up as a `SCAN` in the dump. The dump is displayed in the debug info, and the statistics can be read by tests.
+ * Only the shapes of statements are kept: their literals may be note content, which must not end up in bug reports.
+ *
+ * Disabled by default: enabled by the "query_profiling" preference. The threshold is the "query_profiling_slow_ms"
+ * preference.
+ */
+object QueryProfiler {
+    /** Shapes beyond this number are counted together, so dynamic SQL can't exhaust the memory */
+    private const val MAX_SHAPES = 500
+
+    /** Latencies kept per shape to compute percentiles */
+    private const val SAMPLES = 256
+
+    /** Slow statements kept for the dump */
+    private const val MAX_SLOW_QUERIES = 50
+
+    private const val OTHER_SHAPES = "<other statements>"
+
+    const val DEFAULT_SLOW_QUERY_THRESHOLD_MS = 50
+
+    private val IN_LIST = Regex("\\(\\?(?:, ?\\?)*\\)")
+
+    @Volatile
+    @JvmStatic
+    var isEnabled = false
+
+    /** Statements taking longer than this are logged with their query plan */
+    @Volatile
+    @JvmStatic
+    var slowQueryThresholdMs = DEFAULT_SLOW_QUERY_THRESHOLD_MS.toLong()
+
+    private val mStats = HashMap<String, Stats>()
+    private val mSlowQueries = ArrayDeque<SlowQuery>()
+
+    /** Returns the query plan of a statement, one line per step */
+    fun interface QueryPlanner {
+        fun explain(sql: String, args: Array<out Any?>?): List<String>
+    }
+
+    /** Statistics about a statement shape */
+    class Stats internal constructor(val shape: String) {
+        var count = 0
+            private set
+        var totalNanos = 0L
+            private set
+        var maxNanos = 0L
+            private set
+        var rows = 0L
+            private set
+
+        /** The first method which ran the statement, outside of the database layer */
+        var caller: String? = null
+            internal set
+        internal var plan: List<String>? = null
+
+        private val mSamples = LongArray(SAMPLES)
+
+        internal fun add(nanos: Long, rowCount: Int) {
+            mSamples[count % SAMPLES] = nanos
+            count++
+            totalNanos += nanos
+            maxNanos = Math.max(maxNanos, nanos)
+            rows += rowCount
+        }
+
+        val totalMs: Double
+            get() = totalNanos / 1_000_000.0
+
+        /** @param percentile between 0 and 100, computed on the most recent executions */
+        fun percentileMs(percentile: Int): Double {
+            val samples = mSamples.copyOf(Math.min(count, SAMPLES))
+            if (samples.isEmpty()) {
+                return 0.0
+            }
+            samples.sort()
+            val index = Math.min(samples.size - 1, samples.size * percentile / 100)
+            return samples[index] / 1_000_000.0
+        }
+
+        override fun toString(): String {
+            return String.format(
+                Locale.ROOT, "%dx total %.1fms p50 %.2fms p95 %.2fms max %.2fms rows %d: %s",
+                count, totalMs, percentileMs(50), percentileMs(95), maxNanos / 1_000_000.0, rows, shape
+            )
+        }
+    }
+
+    class SlowQuery internal constructor(
+        /** The statement with its literals replaced by `?`, see [shapeOf] */
+        val shape: String,
+        val durationMs: Double,
+        val rows: Int,
+        val caller: String?,
+        val plan: List<String>
+    ) {
+        override fun toString(): String {
+            val builder = StringBuilder(String.format(Locale.ROOT, "%.1fms rows %d from %s: %s", durationMs, rows, caller, shape))
+            for (step in plan) {
+                builder.append("\n    ").append(step)
+            }
+            return builder.toString()
+        }
+    }
+
+    /** Records an execution of [sql] which took [nanos] and returned [rows] rows */
+    @JvmStatic
+    fun record(sql: String, args: Array<out Any?>?, nanos: Long, rows: Int, planner: QueryPlanner) {
+        val shape = shapeOf(sql)
+        val isSlow = nanos >= slowQueryThresholdMs * 1_000_000
+        val needsCaller: Boolean
+        val needsPlan: Boolean
+        synchronized(this) {
+            val stats = statsFor(shape)
+            stats.add(nanos, rows)
+            needsCaller = stats.caller == null
+            needsPlan = isSlow && stats.plan == null
+        }
+        if (!needsCaller && !isSlow) {
+            return
+        }
+        val caller = findCaller()
+        val plan = if (needsPlan) explain(sql, args, planner) else null
+        synchronized(this) {
+            val stats = statsFor(shape)
+            if (stats.caller == null) {
+                stats.caller = caller
+            }
+            if (plan != null) {
+                stats.plan = plan
+            }
+            if (isSlow) {
+                val slowQuery = SlowQuery(shape, nanos / 1_000_000.0, rows, caller, stats.plan ?: emptyList())
+                Timber.w("Slow query: %s", slowQuery)
+                mSlowQueries.addLast(slowQuery)
+                if (mSlowQueries.size > MAX_SLOW_QUERIES) {
+                    mSlowQueries.removeFirst()
+                }
+            }
+        }
+    }
+
+    private fun statsFor(shape: String): Stats {
+        mStats[shape]?.let { return it }
+        val key = if (mStats.size < MAX_SHAPES) shape else OTHER_SHAPES
+        return mStats.getOrPut(key) { Stats(key) }
+    }
+
+    private fun explain(sql: String, args: Array<out Any?>?, planner: QueryPlanner): List<String> {
+        if (!canExplain(sql)) {
+            return emptyList()
+        }
+        return try {
+            planner.explain(sql, args)
+        } catch (e: Exception) {
+            Timber.w(e, "Could not explain %s", shapeOf(sql))
+            emptyList()
+        }
+    }
+
+    private fun canExplain(sql: String): Boolean {
+        val start = sql.indexOfFirst { it > ' ' }
+        if (start == -1) {
+            return false
+        }
+        return sql.regionMatches(start, "select", 0, 6, ignoreCase = true) ||
+            sql.regionMatches(start, "with", 0, 4, ignoreCase = true) ||
+            DatabaseChangeDecorator.isModification(sql)
+    }
+
+    /** The first method of the stack outside of the database layer */
+    private fun findCaller(): String? {
+        for (element in Thread.currentThread().stackTrace) {
+            val className = element.className
+            if (className.startsWith("java.") || className.startsWith("dalvik.") || className.startsWith("android.database") ||
+                className.startsWith("androidx.sqlite") || className == DB::class.java.name ||
+                className.startsWith(QueryProfiler::class.java.name) || className.startsWith(DatabaseChangeDecorator::class.java.name)
+            ) {
+                continue
+            }
+            return element.toString()
+        }
+        return null
+    }
+
+    /** The statement with its literals replaced by `?`, and lists of values collapsed, so similar statements are counted together */
+    @JvmStatic
+    @VisibleForTesting
+    fun shapeOf(sql: String): String {
+        val builder = StringBuilder(sql.length)
+        var i = 0
+        while (i < sql.length) {
+            val c = sql[i]
+            when {
+                c == '\'' -> {
+                    // string literal, quotes are escaped by doubling them
+                    i++
+                    while (i < sql.length) {
+                        if (sql[i] == '\'') {
+                            if (i + 1 < sql.length && sql[i + 1] == '\'') {
+                                i++
+                            } else {
+                                break
+                            }
+                        }
+                        i++
+                    }
+                    builder.append('?')
+                }
+                c <= ' ' -> {
+                    if (builder.isNotEmpty() && builder[builder.length - 1] != ' ') {
+                        builder.append(' ')
+                    }
+                }
+                Character.isDigit(c) && (builder.isEmpty() || !isIdentifierPart(builder[builder.length - 1])) -> {
+                    while (i + 1 < sql.length && (Character.isLetterOrDigit(sql[i + 1]) || sql[i + 1] == '.')) {
+                        i++
+                    }
+                    builder.append('?')
+                }
+                else -> builder.append(c)
+            }
+            i++
+        }
+        return IN_LIST.replace(builder.trim(), "(?)")
+    }
+
+    private fun isIdentifierPart(c: Char): Boolean {
+        return Character.isLetterOrDigit(c) || c == '_'
+    }
+
+    /** Statistics of each statement shape, most expensive first */
+    @JvmStatic
+    @Synchronized
+    fun stats(): List<Stats> = mStats.values.sortedByDescending { it.totalNanos }
+
+    @JvmStatic
+    fun stats(sql: String): Stats? = synchronized(this) { mStats[shapeOf(sql)] }
+
+    /** The most recent slow statements, oldest first */
+    @JvmStatic
+    @Synchronized
+    fun slowQueries(): List<SlowQuery> = ArrayList(mSlowQueries)
+
+    @JvmStatic
+    @Synchronized
+    fun reset() {
+        mStats.clear()
+        mSlowQueries.clear()
+    }
+
+    /** Human readable statistics for the debug info */
+    @JvmStatic
+    fun dump(): String {
+        if (!isEnabled) {
+            return "Query profiling disabled\n"
+        }
+        val builder = StringBuilder()
+        for (stats in stats()) {
+            builder.append(stats).append('\n')
+        }
+        builder.append("\nSlow queries (over ").append(slowQueryThresholdMs).append("ms):\n")
+        for (slowQuery in slowQueries()) {
+            builder.append(slowQuery).append('\n')
+        }
+        return builder.toString()
+    }
+
+    /**
+     * Wraps a cursor returned by [DB.query] so the time spent moving through it and the number of rows read are
+     * recorded once it is closed
+     */
+    @JvmStatic
+    fun profile(cursor: Cursor, sql: String, args: Array<out Any?>?, queryNanos: Long, planner: QueryPlanner): Cursor {
+        return ProfiledCursor(cursor, sql, args, queryNanos, planner)
+    }
+
+    private class ProfiledCursor(
+        cursor: Cursor,
+        private val mSql: String,
+        private val mArgs: Array<out Any?>?,
+        private var mNanos: Long,
+        private val mPlanner: QueryPlanner
+    ) : CursorWrapper(cursor) {
+        private var mRows = 0
+        private var mRecorded = false
+
+        private inline fun <T> timed(block: () -> T): T {
+            val start = System.nanoTime()
+            try {
+                return block()
+            } finally {
+                mNanos += System.nanoTime() - start
+            }
+        }
+
+        private inline fun timedMove(block: () -> Boolean): Boolean {
+            val moved = timed(block)
+            if (moved) {
+                mRows = Math.max(mRows, position + 1)
+            }
+            return moved
+        }
+
+        override fun moveToNext(): Boolean = timedMove { super.moveToNext() }
+        override fun moveToFirst(): Boolean = timedMove { super.moveToFirst() }
+        override fun moveToLast(): Boolean = timedMove { super.moveToLast() }
+        override fun moveToPosition(position: Int): Boolean = timedMove { super.moveToPosition(position) }
+        override fun move(offset: Int): Boolean = timedMove { super.move(offset) }
+        override fun getCount(): Int = timed { super.getCount() }
+
+        override fun close() {
+            super.close()
+            if (!mRecorded) {
+                mRecorded = true
+                record(mSql, mArgs, mNanos, mRows, mPlanner)
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.libanki
+
+import android.database.Cursor
+import timber.log.Timber
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * The before-image of some rows of the `cards` or `notes` table, which [restore] writes back. Used to undo bulk
+ * actions without keeping a [Card] or [Note] object per row.
+ *
+ * Up to [IN_MEMORY_MAX_ROWS] rows are kept as column values. Larger snapshots are copied to a session temporary
+ * table, which [close] drops. Either way, [restore] is a single statement, or a single compiled statement bound
+ * once per row.
+ *
+ * The temporary table lives on the connection the snapshot was captured on, so a snapshot must be closed before
+ * the collection is: [Collection.close] clears the undo queue.
+ */
+class RowSnapshot private constructor(
+    /** The connection holding [mTempTable] */
+    private val mDb: DB,
+    private val mTable: String,
+    /** Columns of [mRows], in the order of their values */
+    private val mColumns: Array<String>?,
+    private val mRows: List<Array<Any?>>?,
+    private val mTempTable: String?,
+    /** Number of rows */
+    val size: Int
+) : Closeable {
+    private var mClosed = false
+
+    /** Whether the rows are stored in a temporary table */
+    val isSpilled: Boolean
+        get() = mTempTable != null
+
+    /**
+     * Writes the rows back, replacing the current version of each row. Rows removed since are inserted again.
+     *
+     * Unless [preserveModification], the rows are marked as modified now, so that the next sync sends them, even if
+     * a sync happened between the change and its undo.
+     */
+    @JvmOverloads
+    fun restore(col: Collection, preserveModification: Boolean = false) {
+        check(!mClosed) { "snapshot of $mTable was discarded" }
+        val db = col.db
+        db.executeInTransaction {
+            if (mTempTable != null) {
+                db.execute("insert or replace into $mTable select * from temp.$mTempTable")
+                if (!preserveModification) {
+                    db.execute(
+                        "update $mTable set mod = ?, usn = ? where id in (select id from temp.$mTempTable)",
+                        col.time.intTime(), col.usn()
+                    )
+                }
+            } else if (mRows!!.isNotEmpty()) {
+                val sql = "insert or replace into $mTable (" + mColumns!!.joinToString(", ") + ") values (" +
+                    Array(mColumns.size) { "?" }.joinToString(", ") + ")"
+                db.executeManyNoTransaction(sql, if (preserveModification) mRows else touched(mRows, col.time.intTime(), col.usn()))
+            }
+        }
+    }
+
+    /** Copies of [rows] with the modification time [mod] and update sequence number [usn] */
+    private fun touched(rows: List<Array<Any?>>, mod: Long, usn: Int): List<Array<Any?>> {
+        val modIndex = mColumns!!.indexOf("mod")
+        val usnIndex = mColumns.indexOf("usn")
+        return rows.map { row ->
+            row.copyOf().also {
+                it[modIndex] = mod
+                it[usnIndex] = usn.toLong()
+            }
+        }
+    }
+
+    override fun close() {
+        if (mTempTable == null || mClosed) {
+            mClosed = true
+            return
+        }
+        mClosed = true
+        try {
+            mDb.executeUntracked("drop table if exists temp.$mTempTable")
+        } catch (e: Exception) {
+            // The table disappears with the connection anyway
+            Timber.w(e, "Could not drop %s", mTempTable)
+        }
+    }
+
+    companion object {
+        /** Snapshots with more rows than this are stored in a temporary table */
+        const val IN_MEMORY_MAX_ROWS = 100
+
+        private val sNextTable = AtomicInteger()
+
+        /** The rows of the cards [cids] */
+        @JvmStatic
+        fun cards(db: DB, cids: LongArray): RowSnapshot = capture(db, "cards", "id", cids)
+
+        /** The rows of the cards of the notes [nids] */
+        @JvmStatic
+        fun cardsOfNotes(db: DB, nids: LongArray): RowSnapshot = capture(db, "cards", "nid", nids)
+
+        /** The rows of the notes [nids] */
+        @JvmStatic
+        fun notes(db: DB, nids: LongArray): RowSnapshot = capture(db, "notes", "id", nids)
+
+        private fun capture(db: DB, table: String, column: String, ids: LongArray): RowSnapshot {
+            IdSet.of(db, ids).use { idSet ->
+                val where = " from $table where $column in " + idSet.sql
+                val count = db.queryScalar("select count()$where")
+                if (count > IN_MEMORY_MAX_ROWS) {
+                    val tempTable = "undo_" + sNextTable.incrementAndGet()
+                    db.executeUntracked("create temp table $tempTable as select *$where")
+                    return RowSnapshot(db, table, null, null, tempTable, count)
+                }
+                db.query("select *$where").use { cur ->
+                    val rows = ArrayList<Array<Any?>>(cur.count)
+                    while (cur.moveToNext()) {
+                        rows.add(Array(cur.columnCount) { i -> value(cur, i) })
+                    }
+                    return RowSnapshot(db, table, cur.columnNames, rows, null, rows.size)
+                }
+            }
+        }
+
+        private fun value(cur: Cursor, i: Int): Any? {
+            return when (cur.getType(i)) {
+                Cursor.FIELD_TYPE_NULL -> null
+                Cursor.FIELD_TYPE_INTEGER -> cur.getLong(i)
+                Cursor.FIELD_TYPE_FLOAT -> cur.getDouble(i)
+                Cursor.FIELD_TYPE_BLOB -> cur.getBlob(i)
+                else -> cur.getString(i)
+            }
+        }
+    }
+}
@@ -30,6 +30,7 @@ import com.ichi2.libanki.utils.Time;
 import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONException;
 import com.ichi2.utils.JSONObject;
+import com.ichi2.utils.Tracer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -76,6 +77,12 @@ public class Storage {
         return Collection(context, path, server, log, new SystemTime());
     }
     public static Collection Collection(Context context, @NonNull String path, boolean server, boolean log, @NonNull Time time) {
+        try (Tracer.Section ignored = Tracer.begin("Storage.Collection")) {
+            return openCollection(context, path, server, log, time);
+        }
+    }
+
+    private static Collection openCollection(Context context, @NonNull String path, boolean server, boolean log, @NonNull Time time) {
         assert (path.endsWith(".anki2") || path.endsWith(".anki21"));
         File dbFile = new File(path);
         boolean create = !dbFile.exists();
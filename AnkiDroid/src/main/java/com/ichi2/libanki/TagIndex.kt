@@ -0,0 +1,365 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki
+
+import timber.log.Timber
+import java.util.Arrays
+import java.util.TreeMap
+import java.util.TreeSet
+import kotlin.math.min
+
+/**
+ * The notes of each tag, so that `tag:` searches read the notes of the matching tags instead of comparing
+ * `notes.tags` of every note with a LIKE pattern.
+ *
+ * Searches only read: the index is built and maintained by [update], when the collection is saved. It is built once a
+ * search could have used it. Temporary triggers on `notes` then record each note whose tags may have changed, with the
+ * tags the index has for it, whatever made the change: saving a note, bulk tagging, sync, import, undo. [update]
+ * applies those changes; until then, searches read the changed notes and correct the notes found in the index.
+ *
+ * Tags are compared as `notes.tags like '% tag %'` compares them: ASCII letters ignoring case, other characters as
+ * they are. This relies on Anki's format of `notes.tags`, each tag followed and preceded by a space. While the tags of
+ * a note are stored otherwise, the index is not used.
+ */
+class TagIndex(private val mCol: Collection) {
+    /** The connection whose triggers maintain [mNotes] */
+    private var mDb: DB? = null
+
+    /** Notes by tag, ASCII letters of the tag in lower case. Null when not built. */
+    private var mNotes: TreeMap<String, NoteIds>? = null
+
+    /** Number of (tag, note) pairs in [mNotes] */
+    private var mSize = 0
+
+    /** Notes whose tags are not delimited by spaces as Anki writes them */
+    private val mIrregularNotes = HashSet<Long>()
+
+    /** Set when the collection of [mDb] is too large to be indexed */
+    private var mTooLarge = false
+
+    /** Set when a search could have used the index before it was built */
+    private var mWanted = false
+
+    /**
+     * Ids of the notes found by the search `tag:[search]`, or null if the index can't answer it. Only whole tags
+     * and tags with a given prefix, `tag:prefix*`, are looked up.
+     */
+    @Synchronized
+    fun notesMatching(search: String): List<Long>? {
+        val prefix = search.endsWith("*")
+        val tag = if (prefix) search.substring(0, search.length - 1) else search
+        if (!isLiteral(tag)) {
+            return null
+        }
+        val db = mCol.db
+        val notes = mNotes
+        if (mDb !== db || notes == null) {
+            mWanted = true
+            return null
+        }
+        if (mIrregularNotes.isNotEmpty()) {
+            return null
+        }
+        val key = asciiLowerCase(tag)
+        val indexed = if (prefix) {
+            notes.tailMap(key).entries.takeWhile { it.key.startsWith(key) }.map { it.value }
+        } else {
+            listOfNotNull(notes[key])
+        }
+        val pending = db.queryScalar("select count() from temp.$CHANGES")
+        if (pending > REBUILD_MIN_CHANGES) {
+            // Reading them for each search would cost more than comparing the tags of each note
+            return null
+        }
+        if (pending == 0 && indexed.size <= 1) {
+            return indexed.firstOrNull()?.toList() ?: emptyList()
+        }
+        val nids = TreeSet<Long>()
+        for (ids in indexed) {
+            ids.addTo(nids)
+        }
+        if (pending == 0) {
+            return ArrayList(nids)
+        }
+        // The notes changed since the last update: their tags in the index may be outdated
+        db.query("select nid from temp.$CHANGES").use { cur ->
+            while (cur.moveToNext()) {
+                nids.remove(cur.getLong(0))
+            }
+        }
+        db.query("select id, tags from notes where id in (select nid from temp.$CHANGES)").use { cur ->
+            while (cur.moveToNext()) {
+                val nid = cur.getLong(0)
+                val tags = cur.getString(1)
+                if (!isRegular(tags)) {
+                    return null
+                }
+                forEachTag(tags) { noteTag ->
+                    if (if (prefix) noteTag.startsWith(key) else noteTag == key) {
+                        nids.add(nid)
+                    }
+                }
+            }
+        }
+        return ArrayList(nids)
+    }
+
+    /**
+     * Builds the index if a search needed it, installing the triggers, and applies the changes they recorded since.
+     * Called when the collection is saved, by the task modifying it.
+     */
+    @Synchronized
+    fun update() {
+        val db = mCol.db
+        if (mDb !== db) {
+            mDb = db
+            mNotes = null
+            mTooLarge = false
+        }
+        // Changes made in a transaction may still be rolled back
+        if (mTooLarge || db.database.inTransaction()) {
+            return
+        }
+        if (mNotes == null) {
+            if (mWanted) {
+                build(db)
+            }
+            return
+        }
+        val pending = db.queryScalar("select count() from temp.$CHANGES")
+        if (pending == 0) {
+            return
+        }
+        if (pending > REBUILD_MIN_CHANGES && pending > mCol.noteCount() / 4) {
+            build(db)
+            return
+        }
+        db.executeInTransaction {
+            db.query("select nid, tags from temp.$CHANGES").use { cur ->
+                while (cur.moveToNext()) {
+                    removeNote(cur.getLong(0), if (cur.isNull(1)) null else cur.getString(1))
+                }
+            }
+            db.query("select id, tags from notes where id in (select nid from temp.$CHANGES)").use { cur ->
+                while (cur.moveToNext()) {
+                    addNote(cur.getLong(0), cur.getString(1))
+                }
+            }
+            clearChanges(db)
+        }
+    }
+
+    private fun build(db: DB) {
+        Timber.d("Building the tag index")
+        mNotes = TreeMap()
+        mSize = 0
+        mIrregularNotes.clear()
+        installTriggers(db)
+        db.query("select id, tags from notes").use { cur ->
+            while (cur.moveToNext()) {
+                addNote(cur.getLong(0), cur.getString(1))
+                if (mSize > MAX_SIZE) {
+                    Timber.i("Too many tagged notes to index tags")
+                    mNotes = null
+                    mTooLarge = true
+                    dropTriggers(db)
+                    return
+                }
+            }
+        }
+    }
+
+    private fun addNote(nid: Long, tags: String) {
+        if (!isRegular(tags)) {
+            mIrregularNotes.add(nid)
+            return
+        }
+        val notes = mNotes!!
+        forEachTag(tags) { tag ->
+            if (notes.getOrPut(tag) { NoteIds() }.add(nid)) {
+                mSize++
+            }
+        }
+    }
+
+    /** Removes [nid], which had [tags] when it was indexed, or was not a note if [tags] is null */
+    private fun removeNote(nid: Long, tags: String?) {
+        if (tags == null) {
+            return
+        }
+        if (!isRegular(tags)) {
+            mIrregularNotes.remove(nid)
+            return
+        }
+        val notes = mNotes!!
+        forEachTag(tags) { tag ->
+            val ids = notes[tag]
+            if (ids != null && ids.remove(nid)) {
+                mSize--
+                if (ids.isEmpty()) {
+                    notes.remove(tag)
+                }
+            }
+        }
+    }
+
+    /** Sorted note ids, without the overhead of boxing them */
+    private class NoteIds {
+        private var mIds = LongArray(4)
+        private var mSize = 0
+
+        fun isEmpty() = mSize == 0
+
+        /** @return whether [nid] was added */
+        fun add(nid: Long): Boolean {
+            // Notes are mostly indexed in creation order
+            if (mSize > 0 && mIds[mSize - 1] >= nid) {
+                val index = Arrays.binarySearch(mIds, 0, mSize, nid)
+                if (index >= 0) {
+                    return false
+                }
+                insertAt(-index - 1, nid)
+            } else {
+                insertAt(mSize, nid)
+            }
+            return true
+        }
+
+        /** @return whether [nid] was removed */
+        fun remove(nid: Long): Boolean {
+            val index = Arrays.binarySearch(mIds, 0, mSize, nid)
+            if (index < 0) {
+                return false
+            }
+            System.arraycopy(mIds, index + 1, mIds, index, mSize - index - 1)
+            mSize--
+            return true
+        }
+
+        fun toList(): List<Long> = List(mSize) { mIds[it] }
+
+        fun addTo(nids: MutableCollection<Long>) {
+            for (i in 0 until mSize) {
+                nids.add(mIds[i])
+            }
+        }
+
+        private fun insertAt(index: Int, nid: Long) {
+            if (mSize == mIds.size) {
+                mIds = mIds.copyOf(mSize * 2)
+            }
+            System.arraycopy(mIds, index, mIds, index + 1, mSize - index)
+            mIds[index] = nid
+            mSize++
+        }
+    }
+
+    companion object {
+        /** Table of the notes whose tags changed since they were indexed, with the tags they had */
+        private const val CHANGES = "tag_index_changes"
+
+        /**
+         * Beyond this number of (tag, note) pairs, searches compare the tags of each note instead. A pair takes 8 to
+         * 16 bytes of [NoteIds]: the index uses at most 1/32 of the heap, and 8 MB on devices with a large heap.
+         */
+        private val MAX_SIZE = min(500_000L, Runtime.getRuntime().maxMemory() / 32 / 16).toInt()
+
+        /**
+         * Fewer changes than this are always applied rather than rebuilding the index. Searches correct the notes of
+         * the index with at most this number of changes.
+         */
+        private const val REBUILD_MIN_CHANGES = 1000
+
+        private fun installTriggers(db: DB) {
+            db.executeUntracked("create temp table if not exists $CHANGES (nid integer primary key, tags text)")
+            // "insert or replace" does not fire delete triggers: read the tags before they are replaced
+            db.executeUntracked(
+                "create temp trigger if not exists ${CHANGES}_insert before insert on notes begin " +
+                    "insert or ignore into $CHANGES select id, tags from notes where id = new.id; " +
+                    "insert or ignore into $CHANGES values (new.id, null); end"
+            )
+            db.executeUntracked(
+                "create temp trigger if not exists ${CHANGES}_update after update on notes " +
+                    "when old.tags is not new.tags or old.id is not new.id begin " +
+                    "insert or ignore into $CHANGES values (old.id, old.tags); " +
+                    "insert or ignore into $CHANGES values (new.id, null); end"
+            )
+            db.executeUntracked(
+                "create temp trigger if not exists ${CHANGES}_delete after delete on notes begin " +
+                    "insert or ignore into $CHANGES values (old.id, old.tags); end"
+            )
+            clearChanges(db)
+        }
+
+        private fun dropTriggers(db: DB) {
+            for (trigger in arrayOf("insert", "update", "delete")) {
+                db.executeUntracked("drop trigger if exists temp.${CHANGES}_$trigger")
+            }
+            db.executeUntracked("drop table if exists temp.$CHANGES")
+        }
+
+        private fun clearChanges(db: DB) {
+            db.executeUntracked("delete from temp.$CHANGES")
+        }
+
+        /** Whether `like '% [tag] %'` only matches [tag] */
+        private fun isLiteral(tag: String): Boolean {
+            if (tag.isEmpty()) {
+                return false
+            }
+            for (c in tag) {
+                if (c == '*' || c == '%' || c == '_' || c == '\\' || c == ' ') {
+                    return false
+                }
+            }
+            return true
+        }
+
+        /** Whether each tag of [tags] is preceded and followed by a space */
+        private fun isRegular(tags: String) = tags.isEmpty() || tags[0] == ' ' && tags[tags.length - 1] == ' '
+
+        private inline fun forEachTag(tags: String, action: (String) -> Unit) {
+            var start = 0
+            while (start < tags.length) {
+                var end = tags.indexOf(' ', start)
+                if (end < 0) {
+                    end = tags.length
+                }
+                if (end > start) {
+                    action(asciiLowerCase(tags.substring(start, end)))
+                }
+                start = end + 1
+            }
+        }
+
+        private fun asciiLowerCase(s: String): String {
+            var i = 0
+            while (i < s.length && s[i] !in 'A'..'Z') {
+                i++
+            }
+            if (i == s.length) {
+                return s
+            }
+            val chars = s.toCharArray()
+            while (i < chars.size) {
+                if (chars[i] in 'A'..'Z') {
+                    chars[i] = chars[i] + ('a' - 'A')
+                }
+                i++
+            }
+            return String(chars)
+        }
+    }
+}
@@ -137,4 +137,11 @@ abstract class TagManager {
     /** Whether any tags have a usn of -1 */
     @RustCleanup("not optimised")
     open fun minusOneValue(): Boolean = allItems().any { it.usn == -1 }
+
+    /**
+     * Ids of the notes found by the search `tag:[search]`, or null if they must be found by comparing the tags of
+     * each note.
+     */
+    @RustCleanup("Tags.java only")
+    open fun notesMatching(search: String): List<Long>? = null
 }
@@ -26,6 +26,7 @@ import com.ichi2.libanki.backend.model.TagUsnTuple;
 import com.ichi2.utils.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -38,6 +39,8 @@ import java.util.stream.Collectors;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
 
 
 /**
@@ -56,8 +59,20 @@ public class Tags extends TagManager {
 
     private static final Pattern sCanonify = Pattern.compile("[\"']");
 
+    /** Number of notes {@link #bulkAdd(List, String, boolean)} reads and writes at once */
+    @VisibleForTesting
+    static final int BULK_BATCH_SIZE = 1000;
+    /** Maximal number of distinct tag strings whose rewrite {@link #bulkAdd(List, String, boolean)} remembers */
+    private static final int BULK_REWRITE_CACHE_SIZE = 10000;
+
     private final Collection mCol;
     private final TreeMap<String, Integer> mTags = new TreeMap<>();
+    /**
+     * The registered tags, ignoring case. If several tags differ only by case, the one which comes last in
+     * {@link #mTags}.
+     */
+    private final TreeMap<String, String> mTagsIgnoringCase = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final TagIndex mIndex;
     private boolean mChanged;
 
 
@@ -68,18 +83,28 @@ public class Tags extends TagManager {
 
     public Tags(Collection col) {
         mCol = col;
+        mIndex = new TagIndex(col);
     }
 
 
     public void load(@NonNull String json) {
         JSONObject tags = new JSONObject(json);
         for (String t : tags) {
-            mTags.put(t, tags.getInt(t));
+            put(t, tags.getInt(t));
         }
         mChanged = false;
     }
 
 
+    private void put(@NonNull String tag, @Nullable Integer usn) {
+        mTags.put(tag, usn);
+        String sameIgnoringCase = mTagsIgnoringCase.get(tag);
+        if (sameIgnoringCase == null || sameIgnoringCase.compareTo(tag) < 0) {
+            mTagsIgnoringCase.put(tag, tag);
+        }
+    }
+
+
     public void flush() {
         if (mChanged) {
             JSONObject tags = new JSONObject();
@@ -92,6 +117,8 @@ public class Tags extends TagManager {
             mCol.getDb().update("col", val);
             mChanged = false;
         }
+        // Searches only read the index: it is maintained when the collection is saved
+        mIndex.update();
     }
 
 
@@ -105,7 +132,7 @@ public class Tags extends TagManager {
         //boolean found = false;
         for (String t : tags) {
             if (!mTags.containsKey(t)) {
-                mTags.put(t, usn == null ? mCol.usn() : usn);
+                put(t, usn == null ? mCol.usn() : usn);
                 mChanged = true;
             }
         }
@@ -129,15 +156,15 @@ public class Tags extends TagManager {
         } else {
             lim = "";
             mTags.clear();
+            mTagsIgnoringCase.clear();
             mChanged = true;
         }
-        List<String> tags = new ArrayList<>(mCol.noteCount());
+        Set<String> tagSet = new HashSet<>();
         try (Cursor cursor = mCol.getDb().query("SELECT DISTINCT tags FROM notes" + lim)) {
             while (cursor.moveToNext()) {
-                tags.add(cursor.getString(0));
+                tagSet.addAll(split(cursor.getString(0)));
             }
         }
-        HashSet<String> tagSet = new HashSet<>(split(TextUtils.join(" ", tags)));
         register(tagSet);
     }
 
@@ -170,9 +197,13 @@ public class Tags extends TagManager {
         } else {
             tags = mCol.getDb().queryStringList("SELECT DISTINCT n.tags FROM cards c, notes n WHERE c.nid = n.id AND c.did = ?", did);
         }
-        // Cast to set to remove duplicates
+        // Use a set to remove duplicates
         // Use methods used to get all tags to parse tags here as well.
-        return new ArrayList<>(new HashSet<>(split(TextUtils.join(" ", tags))));
+        Set<String> tagSet = new HashSet<>();
+        for (String noteTags : tags) {
+            tagSet.addAll(split(noteTags));
+        }
+        return new ArrayList<>(tagSet);
     }
 
 
@@ -181,14 +212,21 @@ public class Tags extends TagManager {
      * ***********************************************************
      */
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Notes missing one of the tags (or having one of them, to remove them) are read and rewritten
+     * {@link #BULK_BATCH_SIZE} at a time with a single prepared statement, in one transaction. A tag string shared by
+     * many notes is only rewritten once.
+     */
     public void bulkAdd(@NonNull List<Long> ids, @NonNull String tags, boolean add) {
         List<String> newTags = split(tags);
-        if (newTags == null || newTags.isEmpty()) {
+        if (newTags.isEmpty()) {
             return;
         }
-        // cache tag names
+        // cache tag names once, with the case notes will be written with
         if (add) {
+            newTags = new ArrayList<>(canonify(newTags));
             register(newTags);
         }
         // find notes missing the tags
@@ -206,24 +244,49 @@ public class Tags extends TagManager {
             t = t.replace("*", "%");
             lim.append(l).append("like '% ").append(t).append(" %'");
         }
-        ArrayList<Object[]> res = new ArrayList<>(mCol.getDb().queryScalar("select count() from notes where id in "+ Utils.ids2str(ids) + " and (" + lim + ")"));
-        try (Cursor cur = mCol
-                .getDb()
-                .query("select id, tags from notes where id in " + Utils.ids2str(ids) +
-                        " and (" + lim + ")")) {
-            if (add) {
-                while (cur.moveToNext()) {
-                    res.add(new Object[] { addToStr(tags, cur.getString(1)), mCol.getTime().intTime(), mCol.usn(), cur.getLong(0) });
-                }
-            } else {
+        DB db = mCol.getDb();
+        try (IdSet sids = IdSet.of(db, ids)) {
+            // Batches are selected by id, as rewritten notes may no longer match the query
+            String query = "select id, tags from notes where id in " + sids.getSql() + " and id > ? and (" + lim + ")" +
+                    " order by id limit " + BULK_BATCH_SIZE;
+            db.executeInTransaction(() -> rewriteTags(db, query, tags, add));
+        }
+    }
+
+
+    private void rewriteTags(@NonNull DB db, @NonNull String query, @NonNull String tags, boolean add) {
+        long mod = mCol.getTime().intTime();
+        int usn = mCol.usn();
+        Map<String, String> rewritten = new HashMap<>();
+        List<Object[]> updates = new ArrayList<>(BULK_BATCH_SIZE);
+        long lastId = Long.MIN_VALUE;
+        int read;
+        do {
+            read = 0;
+            updates.clear();
+            try (Cursor cur = db.query(query, lastId)) {
                 while (cur.moveToNext()) {
-                    res.add(new Object[] { remFromStr(tags, cur.getString(1)), mCol.getTime().intTime(), mCol.usn(),
-                            cur.getLong(0) });
+                    read++;
+                    lastId = cur.getLong(0);
+                    String oldTags = cur.getString(1);
+                    String newTags = rewritten.get(oldTags);
+                    if (newTags == null) {
+                        newTags = add ? addToStr(tags, oldTags) : remFromStr(tags, oldTags);
+                        if (rewritten.size() >= BULK_REWRITE_CACHE_SIZE) {
+                            rewritten.clear();
+                        }
+                        rewritten.put(oldTags, newTags);
+                    }
+                    // The like patterns also match some notes which need no change
+                    if (!newTags.equals(oldTags)) {
+                        updates.add(new Object[] { newTags, mod, usn, lastId });
+                    }
                 }
             }
-        }
-        // update tags
-        mCol.getDb().executeMany("update notes set tags=:t,mod=:n,usn=:u where id = :id", res);
+            if (!updates.isEmpty()) {
+                db.executeManyNoTransaction("update notes set tags=:t,mod=:n,usn=:u where id = :id", updates);
+            }
+        } while (read == BULK_BATCH_SIZE);
     }
 
 
@@ -308,12 +371,8 @@ public class Tags extends TagManager {
         TreeSet<String> strippedTags = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
         for (String t : tagList) {
             String s = sCanonify.matcher(t).replaceAll("");
-            for (String existingTag : mTags.keySet()) {
-                if (s.equalsIgnoreCase(existingTag)) {
-                    s = existingTag;
-                }
-            }
-            strippedTags.add(s);
+            String existingTag = mTagsIgnoringCase.get(s);
+            strippedTags.add(existingTag != null ? existingTag : s);
         }
         return strippedTags;
     }
@@ -357,7 +416,7 @@ public class Tags extends TagManager {
 
     /** Add a tag to the collection. We use this method instead of exposing mTags publicly.*/
     public void add(@NonNull String key, @Nullable Integer value) {
-        mTags.put(key, value);
+        put(key, value);
     }
 
     /** Whether any tags have a usn of -1 */
@@ -365,4 +424,12 @@ public class Tags extends TagManager {
     public boolean minusOneValue() {
         return mTags.containsValue(-1);
     }
+
+
+    /** {@inheritDoc} */
+    @Nullable
+    @Override
+    public List<Long> notesMatching(@NonNull String search) {
+        return mIndex.notesMatching(search);
+    }
 }
@@ -81,6 +81,13 @@ public abstract class UndoAction {
      * Returned positive integers are card id. Those ids is the card that was discarded and that may be sent back to the reviewer.*/
     public abstract @Nullable Card undo(@NonNull Collection col);
 
+    /**
+     * Called once the action left the undo stack, undone or not. Releases what the action holds outside of the JVM,
+     * e.g. a {@link RowSnapshot} stored in a temporary table.
+     */
+    public void discard() {
+    }
+
     /**
      * Create an UndoAction that set back `card` and its siblings to the current states.
      * @param undoNameId The id of the string representing an action that could be undone
@@ -52,7 +52,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -73,10 +72,10 @@ import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.core.text.HtmlCompat;
 import timber.log.Timber;
 
-import static com.ichi2.libanki.Consts.FIELD_SEPARATOR;
 
 @SuppressWarnings({"PMD.AvoidThrowingRawExceptionTypes","PMD.AvoidReassigningParameters",
         "PMD.MethodNamingConventions","PMD.FieldDeclarationsShouldBeAtStartOfClass"})
@@ -297,6 +296,17 @@ public class Utils {
      * @return The text without the aforementioned tags.
      */
     public static String stripHTML(String s) {
+        String stripped = HtmlStripper.stripHtml(s);
+        return stripped != null ? stripped : stripHTMLWithPatterns(s);
+    }
+
+
+    /**
+     * {@link #stripHTML(String)} as a sequence of regular expressions. Used for the rare text where
+     * {@link HtmlStripper} can't tell that removing all markup at once gives the same result.
+     */
+    @VisibleForTesting
+    static String stripHTMLWithPatterns(String s) {
         s = commentPattern.matcher(s).replaceAll("");
         s = stripHTMLScriptAndStyleTags(s);
         Matcher htmlMatcher = tagPattern.matcher(s);
@@ -326,8 +336,15 @@ public class Utils {
 
 
     public static String stripHTMLMedia(@NonNull String s, String replacement) {
+        String stripped = HtmlStripper.stripHtmlMedia(s, replacement);
+        return stripped != null ? stripped : stripHTMLMediaWithPatterns(s, replacement);
+    }
+
+
+    @VisibleForTesting
+    static String stripHTMLMediaWithPatterns(@NonNull String s, String replacement) {
         Matcher imgMatcher = imgPattern.matcher(s);
-        return stripHTML(imgMatcher.replaceAll(replacement));
+        return stripHTMLWithPatterns(imgMatcher.replaceAll(replacement));
     }
 
 
@@ -536,9 +553,12 @@ public class Utils {
     }
 
 
+    /**
+     * All the fields of a note, empty fields at the end included. Use {@link FieldsView} when only some of them are
+     * read.
+     */
     public static String[] splitFields(String fields) {
-        // -1 ensures that we don't drop empty fields at the ends
-        return fields.split(FIELD_SEPARATOR, -1);
+        return new FieldsView(fields).toArray();
     }
 
     /*
@@ -553,35 +573,12 @@ public class Utils {
      * @param data the string to generate hash from
      * @return A string of length 40 containing the hexadecimal representation of the MD5 checksum of data.
      */
-    @SuppressWarnings("CharsetObjectCanBeUsed")
     @NonNull
     public static String checksum(String data) {
-        String result = "";
-        if (data != null) {
-            MessageDigest md;
-            byte[] digest = null;
-            try {
-                md = MessageDigest.getInstance("SHA1");
-                digest = md.digest(data.getBytes("UTF-8"));
-            } catch (NoSuchAlgorithmException e) {
-                Timber.e(e, "Utils.checksum: No such algorithm.");
-                throw new RuntimeException(e);
-            } catch (UnsupportedEncodingException e) {
-                Timber.e(e, "Utils.checksum :: UnsupportedEncodingException");
-            }
-            BigInteger biginteger = new BigInteger(1, digest);
-            result = biginteger.toString(16);
-
-            // pad with zeros to length of 40 This method used to pad
-            // to the length of 32. As it turns out, sha1 has a digest
-            // size of 160 bits, leading to a hex digest size of 40,
-            // not 32.
-            if (result.length() < 40) {
-                String zeroes = "0000000000000000000000000000000000000000";
-                result = zeroes.substring(0, zeroes.length() - result.length()) + result;
-            }
+        if (data == null) {
+            return "";
         }
-        return result;
+        return FieldChecksum.hex(data);
     }
 
 
@@ -597,6 +594,14 @@ public class Utils {
         return new Pair<>(sortStripped, fieldChecksumWithoutHtmlMedia(firstStripped));
     }
 
+
+    /** {@link #sfieldAndCsum(String[], int)}, copying only the first and the sort field */
+    public static Pair<String, Long> sfieldAndCsum(FieldsView fields, int sortIdx) {
+        String firstStripped = stripHTMLMedia(fields.get(0));
+        String sortStripped = (sortIdx == 0) ?  firstStripped: stripHTMLMedia(fields.get(sortIdx));
+        return new Pair<>(sortStripped, fieldChecksumWithoutHtmlMedia(firstStripped));
+    }
+
     /**
      * @param data the string to generate hash from.
      * @return 32 bit unsigned number from first 8 digits of sha1 hash
@@ -610,7 +615,7 @@ public class Utils {
      * @return 32 bit unsigned number from first 8 digits of sha1 hash
      */
     public static long fieldChecksumWithoutHtmlMedia(String data) {
-        return Long.valueOf(checksum(data).substring(0, 8), 16);
+        return FieldChecksum.of(data);
     }
 
     /**
@@ -32,6 +32,7 @@ import com.ichi2.libanki.Media;
 import com.ichi2.libanki.Model;
 import com.ichi2.libanki.Storage;
 import com.ichi2.libanki.Utils;
+import com.ichi2.libanki.sched.DueCountSnapshots;
 import com.ichi2.libanki.DeckConfig;
 import com.ichi2.libanki.Deck;
 import com.ichi2.utils.HashUtil;
@@ -43,12 +44,17 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -69,6 +75,9 @@ public class Anki2Importer extends Importer {
 
     private static final int MEDIAPICKLIMIT = 1024;
 
+    /** Threads comparing and copying media while notes and cards are imported. Media import is bound by IO */
+    private static final int MEDIA_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     private final String mDeckPrefix;
     private final boolean mAllowUpdate;
     private boolean mDupeOnSchemaChange;
@@ -93,6 +102,20 @@ public class Anki2Importer extends Importer {
     private int mAdded;
     private int mUpdated;
 
+    /** Compares and copies media files. Only the importing thread writes to the databases */
+    private ExecutorService mMediaExecutor;
+    /** How each source media file compares to the destination, computed ahead of the notes referring to it */
+    private Map<String, Future<MediaState>> mMediaStates;
+    /** Media copies to the destination folder, by destination name. Recorded in the media database once done */
+    private Map<String, Future<Boolean>> mMediaCopies;
+
+    private enum MediaState {
+        MISSING_FROM_SOURCE,
+        MISSING_FROM_DESTINATION,
+        SAME_AS_DESTINATION,
+        DIFFERENT_FROM_DESTINATION
+    }
+
     /** If importing SchedV1 into SchedV2 we need to reset the learning cards */
     private boolean mMustResetLearning;
 
@@ -114,6 +137,7 @@ public class Anki2Importer extends Importer {
                 _import();
             } finally {
                 mSrc.close(false);
+                DueCountSnapshots.invalidate();
             }
         } catch (Exception e) {
             Timber.e(e, "Exception while importing");
@@ -140,6 +164,8 @@ public class Anki2Importer extends Importer {
 
     private void _import() {
         mDecks = HashUtil.HashMapInit(mSrc.getDecks().count());
+        mMediaExecutor = Executors.newFixedThreadPool(MEDIA_THREADS);
+        mMediaCopies = new HashMap<>();
         try {
             // Use transactions for performance and rollbacks in case of error
             mDst.getDb().getDatabase().beginTransaction();
@@ -150,6 +176,7 @@ public class Anki2Importer extends Importer {
                 mDst.getDecks().select(id);
             }
             Timber.i("Preparing Import");
+            _prefetchMediaStates();
             _prepareTS();
             _prepareModels();
             Timber.i("Importing notes");
@@ -158,6 +185,8 @@ public class Anki2Importer extends Importer {
             _importCards();
             Timber.i("Importing Media");
             _importStaticMedia();
+            Timber.i("Waiting for media copies");
+            _finishMediaCopies();
             publishProgress(100, 100, 25);
             Timber.i("Performing post-import");
             _postImport();
@@ -168,6 +197,8 @@ public class Anki2Importer extends Importer {
             Timber.e(err, "_import() exception");
             throw err;
         } finally {
+            // no-op if the copies completed, otherwise the import failed and there's no use for them
+            mMediaExecutor.shutdownNow();
             // endTransaction throws about invalid transaction even when you check first!
             DB.safeEndInTransaction(mDst.getDb());
             DB.safeEndInTransaction(mDst.getMedia().getDb());
@@ -697,13 +728,91 @@ public class Anki2Importer extends Importer {
         }
         for (File f : new File(dir).listFiles()) {
             String fname = f.getName();
-            if (fname.startsWith("_") && ! mDst.getMedia().have(fname)) {
-                try (BufferedInputStream data = _srcMediaData(fname)) {
-                    _writeDstMedia(fname, data);
-                } catch (IOException e) {
-                    Timber.w(e, "Failed to close stream");
-                }
+            if (fname.startsWith("_") && ! _haveDstMedia(fname)) {
+                _writeDstMedia(fname, fname);
+            }
+        }
+    }
+
+
+    /**
+     * The names of the media files of the source collection, which may be referred to by the imported notes.
+     * Not in libAnki.
+     */
+    @NonNull
+    protected java.util.Collection<String> _srcMediaNames() {
+        String[] names = new File(mSrc.getMedia().dir()).list();
+        return names == null ? Collections.emptyList() : Arrays.asList(names);
+    }
+
+
+    /** Starts comparing the source media files with the destination, so the notes don't wait on the disk */
+    private void _prefetchMediaStates() {
+        java.util.Collection<String> names = _srcMediaNames();
+        mMediaStates = HashUtil.HashMapInit(names.size());
+        for (String fname : names) {
+            mMediaStates.put(fname, mMediaExecutor.submit(() -> _compareMedia(fname)));
+        }
+    }
+
+
+    private MediaState _mediaState(String fname) {
+        Future<MediaState> state = mMediaStates.get(fname);
+        if (state == null) {
+            // not a file of the source media folder, for example a reference with a different encoding
+            return _compareMedia(fname);
+        }
+        return _await(state);
+    }
+
+
+    private MediaState _compareMedia(String fname) {
+        try (BufferedInputStream srcData = _srcMediaData(fname);
+             BufferedInputStream dstData = _dstMediaData(fname)) {
+            if (srcData == null) {
+                return MediaState.MISSING_FROM_SOURCE;
+            }
+            if (dstData == null) {
+                return MediaState.MISSING_FROM_DESTINATION;
+            }
+            return compareMedia(srcData, dstData) ? MediaState.SAME_AS_DESTINATION : MediaState.DIFFERENT_FROM_DESTINATION;
+        } catch (IOException e) {
+            Timber.w(e, "Failed to close stream");
+            return MediaState.MISSING_FROM_SOURCE;
+        }
+    }
+
+
+    /** Whether the destination has the file, or will have it once the pending copies are done */
+    private boolean _haveDstMedia(String fname) {
+        return mMediaCopies.containsKey(fname) || mDst.getMedia().have(fname);
+    }
+
+
+    /** Waits for the media copies, and records the copied files in the media database */
+    private void _finishMediaCopies() {
+        for (Map.Entry<String, Future<Boolean>> copy : mMediaCopies.entrySet()) {
+            if (_await(copy.getValue())) {
+                // Mark file addition to media db (see note in Media.java)
+                mDst.getMedia().markFileAdd(copy.getKey());
+            }
+        }
+        mMediaCopies.clear();
+    }
+
+
+    private static <T> T _await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
     }
 
@@ -738,12 +847,28 @@ public class Anki2Importer extends Importer {
     }
 
 
-    private void _writeDstMedia(String fname, BufferedInputStream data) {
-        try {
+    /**
+     * Copies the source file SRCNAME to FNAME in the destination, in the background.
+     * The file is recorded in the media database by {@link #_finishMediaCopies()}
+     */
+    private void _writeDstMedia(String srcName, String fname) {
+        if (mMediaCopies.containsKey(fname)) {
+            // already being copied from the same source file
+            return;
+        }
+        mMediaCopies.put(fname, mMediaExecutor.submit(() -> _copyDstMedia(srcName, fname)));
+    }
+
+
+    /** @return Whether the file was copied */
+    private boolean _copyDstMedia(String srcName, String fname) {
+        try (BufferedInputStream data = _srcMediaData(srcName)) {
+            if (data == null) {
+                return false;
+            }
             String path = new File(mDst.getMedia().dir(), Utils.nfcNormalized(fname)).getAbsolutePath();
             Utils.writeToFile(data, path);
-            // Mark file addition to media db (see note in Media.java)
-            mDst.getMedia().markFileAdd(fname);
+            return true;
         } catch (IOException e) {
 
             // the user likely used subdirectories
@@ -755,6 +880,7 @@ public class Anki2Importer extends Importer {
                 Timber.e("We are out of space, bubbling up the file copy exception");
                 throw new RuntimeException(e);
             }
+            return false;
         }
     }
 
@@ -767,36 +893,32 @@ public class Anki2Importer extends Importer {
             int fnameIdx = Media.indexOfFname(p);
             while (m.find()) {
                 String fname = m.group(fnameIdx);
-                try (BufferedInputStream srcData = _srcMediaData(fname);
-                     BufferedInputStream dstData = _dstMediaData(fname)) {
-                    if (srcData == null) {
-                        // file was not in source, ignore
-                        m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
-                        continue;
-                    }
-                    // if model-local file exists from a previous import, use that
-                    String[] split = Utils.splitFilename(fname);
-                    String name = split[0];
-                    String ext = split[1];
-
-                    String lname = String.format(Locale.US, "%s_%s%s", name, mid, ext);
-                    if (mDst.getMedia().have(lname)) {
-                        m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0).replace(fname, lname)));
-                        continue;
-                    } else if (dstData == null || compareMedia(srcData, dstData)) { // if missing or the same, pass unmodified
-                        // need to copy?
-                        if (dstData == null) {
-                            _writeDstMedia(fname, srcData);
-                        }
-                        m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
-                        continue;
-                    }
-                    // exists but does not match, so we need to dedupe
-                    _writeDstMedia(lname, srcData);
+                MediaState state = _mediaState(fname);
+                if (state == MediaState.MISSING_FROM_SOURCE) {
+                    // file was not in source, ignore
+                    m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
+                    continue;
+                }
+                // if model-local file exists from a previous import, use that
+                String[] split = Utils.splitFilename(fname);
+                String name = split[0];
+                String ext = split[1];
+
+                String lname = String.format(Locale.US, "%s_%s%s", name, mid, ext);
+                if (_haveDstMedia(lname)) {
                     m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0).replace(fname, lname)));
-                } catch (IOException e) {
-                    Timber.w(e, "Failed to close stream");
+                    continue;
+                } else if (state != MediaState.DIFFERENT_FROM_DESTINATION) { // if missing or the same, pass unmodified
+                    // need to copy? Nothing happens if an earlier note already started the copy
+                    if (state == MediaState.MISSING_FROM_DESTINATION) {
+                        _writeDstMedia(fname, fname);
+                    }
+                    m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
+                    continue;
                 }
+                // exists but does not match, so we need to dedupe
+                _writeDstMedia(fname, lname);
+                m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0).replace(fname, lname)));
             }
             m.appendTail(sb);
             fields = sb.toString();
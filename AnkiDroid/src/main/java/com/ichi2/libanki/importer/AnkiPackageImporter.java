@@ -40,6 +40,7 @@ import java.util.HashMap;
 import java.util.Map;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
+import androidx.annotation.NonNull;
 import timber.log.Timber;
 
 @SuppressWarnings({"PMD.NPathComplexity"})
@@ -180,6 +181,14 @@ public class AnkiPackageImporter extends Anki2Importer {
         publishProgress(100, 100, 100);
     }
 
+    @NonNull
+    @Override
+    protected java.util.Collection<String> _srcMediaNames() {
+        return mNameToNum.keySet();
+    }
+
+
+    /** Called concurrently from the media threads: {@link ZipFile} entries can be read in parallel */
     @Override
     protected BufferedInputStream _srcMediaData(String fname) {
         if (mNameToNum.containsKey(fname)) {
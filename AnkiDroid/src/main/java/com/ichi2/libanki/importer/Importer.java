@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.res.Resources;
 
 import com.ichi2.anki.exception.ImportExportException;
+import com.ichi2.async.CancelListener;
 import com.ichi2.async.CollectionTask;
 import com.ichi2.async.TaskManager;
 import com.ichi2.libanki.Collection;
@@ -29,6 +30,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 @SuppressWarnings({"PMD.MethodNamingConventions"})
 public abstract class Importer {
@@ -46,6 +48,8 @@ public abstract class Importer {
 
     protected final Context mContext;
     protected TaskManager.ProgressCallback<String> mProgress;
+    @Nullable
+    private CancelListener mCancelListener;
 
     public Importer(Collection col, @NonNull String file) {
         mFile = file;
@@ -86,6 +90,17 @@ public abstract class Importer {
     }
 
 
+    /** Importers which support it stop at a safe point once the listener is cancelled */
+    public void setCancelListener(@Nullable CancelListener cancelListener) {
+        mCancelListener = cancelListener;
+    }
+
+
+    protected boolean isCancelled() {
+        return CancelListener.isCancelled(mCancelListener);
+    }
+
+
     protected Resources getRes() {
         return mContext.getResources();
     }
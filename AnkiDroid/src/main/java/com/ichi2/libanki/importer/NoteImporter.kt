@@ -14,6 +14,8 @@ import com.ichi2.utils.Assert
 import com.ichi2.utils.HashUtil
 import com.ichi2.utils.HtmlUtils
 import com.ichi2.utils.JSONObject
+import timber.log.Timber
+import java.util.*
 
 // Ported from https://github.com/ankitects/anki/blob/50fdf9b03dec33c99a501f332306f378db5eb4ea/pylib/anki/importing/noteimp.py
 // Aside from 9f676dbe0b2ad9b87a3bf89d7735b4253abd440e, which allows empty notes.
@@ -36,15 +38,31 @@ open class NoteImporter(col: com.ichi2.libanki.Collection, file: String) : Impor
 
     /** _nextID in python  */
     private var mNextId: Long = 0
-    private var mIds: ArrayList<Long>? = null
+
+    /** Notes with an id below this value existed before the import. The ids above belong to notes added by the import */
+    private var mFirstNewId: Long = 0
+
+    /** The notes added or updated in the batch being imported, _ids in python. Cleared after each batch */
+    private val mBatchIds: MutableList<Long> = ArrayList()
+
+    /** Existing notes whose first field appeared in the file. Bounded by the size of the collection */
+    private val mSeenExistingIds: MutableSet<Long> = HashSet()
+
     private var mEmptyNotes = false
+    private var mEmptyCards = false
+    private var mAddedCount = 0
     private var mUpdateCount = 0
+    private var mDupeCount = 0
     private val mTemplateParsed: List<ParsedNode> = mModel!!.parsedNodes()
     override fun run() {
         Assert.that(mMapping != null)
         Assert.that(mMapping!!.isNotEmpty())
-        val c = foreignNotes()
-        importNotes(c)
+        try {
+            val c = foreignNotes()
+            importNotes(c)
+        } finally {
+            close()
+        }
     }
 
     /** The number of fields. */
@@ -72,8 +90,12 @@ open class NoteImporter(col: com.ichi2.libanki.Collection, file: String) : Impor
         return mMapping!!.contains(mModel!!.getJSONArray("flds").getJSONObject(0).getString("name"))
     }
 
-    protected open fun foreignNotes(): List<ForeignNote> {
-        return ArrayList()
+    /**
+     * The notes to import. They are read lazily, so the whole file is never held in memory.
+     * Rows which could not be read should be logged in [mLog] while iterating.
+     */
+    protected open fun foreignNotes(): Iterator<ForeignNote> {
+        return Collections.emptyIterator()
     }
 
     /** Open file and ensure it's in the right format.  */
@@ -82,12 +104,24 @@ open class NoteImporter(col: com.ichi2.libanki.Collection, file: String) : Impor
     }
 
     /** Closes the open file.  */
-    protected fun close() {
+    protected open fun close() {
         // intentionally empty
     }
 
-    /** Convert each card into a note, apply attributes and add to col.  */
-    fun importNotes(notes: List<ForeignNote>) {
+    /** Percentage of the input which was read by [foreignNotes], for progress reporting */
+    protected open fun inputProgress(): Int {
+        return 0
+    }
+
+    /**
+     * Convert each card into a note, apply attributes and add to col.
+     *
+     * PORT: Unlike python, notes are deduplicated and written in batches of [BATCH_SIZE], each batch in its own
+     * transaction, so memory use does not depend on the size of the file. Duplicates are looked up through the
+     * csum index rather than by loading the checksums of every note of the model.
+     * If the import is cancelled, the batches which were already written are kept.
+     */
+    fun importNotes(notes: Iterator<ForeignNote>) {
         Assert.that(mappingOk())
         // note whether tags are mapped
         mTagsMapped = false
@@ -97,32 +131,76 @@ open class NoteImporter(col: com.ichi2.libanki.Collection, file: String) : Impor
                 break
             }
         }
-        // gather checks for duplicate comparison
-        val csums = HashMap<Long, MutableList<Long>>()
-        mCol.db.query("select csum, id from notes where mid = ?", mModel!!.getLong("id")).use { c ->
-            while (c.moveToNext()) {
-                val csum = c.getLong(0)
-                val id = c.getLong(1)
-                if (csums.containsKey(csum)) {
-                    csums[csum]!!.add(id)
-                } else {
-                    csums[csum] = ArrayList(listOf(id))
+        val fld0index = mMapping!!.indexOf(mModel!!.getJSONArray("flds").getJSONObject(0).getString("name"))
+        mFMap = Models.fieldMap(mModel)
+        // ids above any existing note, so notes added by this import can be told apart from existing ones
+        mNextId = Math.max(mCol.time.timestampID(mCol.db, "notes"), mCol.db.queryLongScalar("select max(id) from notes") + 1)
+        mFirstNewId = mNextId
+        mBatchIds.clear()
+        mSeenExistingIds.clear()
+        mEmptyNotes = false
+        mEmptyCards = false
+        mAddedCount = 0
+        mUpdateCount = 0
+        mDupeCount = 0
+        mTotal = 0
+        // PORT: Translations moved closer to their sources
+        val importLog: MutableList<String> = ArrayList()
+        val updateLog: MutableList<String> = ArrayList()
+        val dupes: MutableSet<String> = HashSet()
+        val batch: MutableList<ForeignNote> = ArrayList(BATCH_SIZE)
+        var cancelled = false
+        publishProgress(0, 0, 0)
+        while (notes.hasNext()) {
+            batch.add(notes.next())
+            if (batch.size == BATCH_SIZE) {
+                importBatch(batch, fld0index, importLog, updateLog, dupes)
+                batch.clear()
+                if (isCancelled()) {
+                    Timber.i("Text import cancelled")
+                    cancelled = true
+                    break
                 }
+                publishProgress(inputProgress(), 0, 0)
             }
         }
-        val firsts = HashUtil.HashSetInit<String>(notes.size)
-        val fld0index = mMapping!!.indexOf(mModel.getJSONArray("flds").getJSONObject(0).getString("name"))
-        mFMap = Models.fieldMap(mModel)
-        mNextId = mCol.time.timestampID(mCol.db, "notes")
-        // loop through the notes
-        val updates: MutableList<Array<Any>> = ArrayList(notes.size)
-        val updateLog: MutableList<String> = ArrayList(notes.size)
-        // PORT: Translations moved closer to their sources
-        val _new: MutableList<Array<Any>> = ArrayList()
-        mIds = ArrayList()
-        mEmptyNotes = false
-        var dupeCount = 0
-        val dupes: MutableList<String> = ArrayList(notes.size)
+        if (!cancelled && batch.isNotEmpty()) {
+            importBatch(batch, fld0index, importLog, updateLog, dupes)
+        }
+        // The cards of each batch were generated with its notes
+        publishProgress(100, 100, 0)
+        // Rows which could not be read were logged while reading the file
+        mLog.addAll(importLog)
+        if (mEmptyCards) {
+            mLog.add(0, getString(R.string.note_importer_empty_cards_found))
+        }
+
+        // we randomize or order here, to ensure that siblings
+        // have the same due#
+        val did = mCol.decks.selected()
+        val conf = mCol.decks.confForDid(did)
+        // in order due?
+        if (conf.getJSONObject("new").getInt("order") == Consts.NEW_CARDS_RANDOM) {
+            mCol.sched.randomizeCards(did)
+        }
+        publishProgress(100, 100, 100)
+        val part1 = getQuantityString(R.plurals.note_importer_notes_added, mAddedCount)
+        val part2 = getQuantityString(R.plurals.note_importer_notes_updated, mUpdateCount)
+        val unchanged: Int = when (mImportMode) {
+            ImportMode.UPDATE_MODE -> mDupeCount - mUpdateCount
+            ImportMode.IGNORE_MODE -> mDupeCount
+            else -> 0
+        }
+        val part3 = getQuantityString(R.plurals.note_importer_notes_unchanged, unchanged)
+        mLog.add(String.format("%s, %s, %s.", part1, part2, part3))
+        mLog.addAll(updateLog)
+        if (mEmptyNotes) {
+            mLog.add(getString(R.string.note_importer_error_empty_notes))
+        }
+    }
+
+    /** Deduplicates [notes] against the collection and the previous rows of the file, and writes them */
+    private fun importBatch(notes: List<ForeignNote>, fld0index: Int, importLog: MutableList<String>, updateLog: MutableList<String>, dupes: MutableSet<String>) {
         for (n in notes) {
             for (c in n.mFields.indices) {
                 if (!mAllowHTML) {
@@ -133,51 +211,58 @@ open class NoteImporter(col: com.ichi2.libanki.Collection, file: String) : Impor
                     n.mFields[c] = n.mFields[c]!!.replace("\n", "<br>")
                 }
             }
+        }
+        // gather checks for duplicate comparison
+        val csums = existingNotesByCsum(notes, fld0index)
+        // first fields of this batch. Earlier batches are found in the collection
+        val firsts = HashUtil.HashSetInit<String>(notes.size)
+        val updates: MutableList<Array<Any>> = ArrayList()
+        val _new: MutableList<Array<Any>> = ArrayList()
+        for (n in notes) {
             val fld0 = n.mFields[fld0index]
-            val csum = Utils.fieldChecksum(fld0)
             // first field must exist
             if (fld0 == null || fld0.isEmpty()) {
-                log.add(getString(R.string.note_importer_error_empty_first_field, TextUtils.join(" ", n.mFields)))
+                addRowMessage(importLog, getString(R.string.note_importer_error_empty_first_field, TextUtils.join(" ", n.mFields)))
                 continue
             }
+            val csum = Utils.fieldChecksum(fld0)
+            val candidates = csums[csum] ?: emptyList<ExistingNote>()
             // earlier in import?
-            if (firsts.contains(fld0) && mImportMode != ImportMode.ADD_MODE) {
+            if (mImportMode != ImportMode.ADD_MODE && appearedEarlier(fld0, firsts, candidates)) {
                 // duplicates in source file; log and ignore
-                log.add(getString(R.string.note_importer_error_appeared_twice, fld0))
+                addRowMessage(importLog, getString(R.string.note_importer_error_appeared_twice, fld0))
                 continue
             }
             firsts.add(fld0)
             // already exists?
             var found = false
-            if (csums.containsKey(csum)) {
+            for (existing in candidates) {
                 // csum is not a guarantee; have to check
-                for (id in csums[csum]!!) {
-                    val flds = mCol.db.queryString("select flds from notes where id = ?", id)
-                    val sflds = Utils.splitFields(flds)
-                    if (fld0 == sflds[0]) {
-                        // duplicate
+                if (existing.id >= mFirstNewId || !existing.fields.contentEquals(0, fld0)) {
+                    continue
+                }
+                mSeenExistingIds.add(existing.id)
+                // duplicate
+                found = true
+                if (mImportMode == ImportMode.UPDATE_MODE) {
+                    val data = updateData(n, existing.id, existing.fields.toArray())
+                    if (data != null && data.isNotEmpty()) {
+                        updates.add(data)
+                        addRowMessage(updateLog, getString(R.string.note_importer_error_first_field_matched, fld0))
+                        mDupeCount += 1
                         found = true
-                        if (mImportMode == ImportMode.UPDATE_MODE) {
-                            val data = updateData(n, id, sflds)
-                            if (data != null && data.isNotEmpty()) {
-                                updates.add(data)
-                                updateLog.add(getString(R.string.note_importer_error_first_field_matched, fld0))
-                                dupeCount += 1
-                                found = true
-                            }
-                        } else if (mImportMode == ImportMode.IGNORE_MODE) {
-                            dupeCount += 1
-                        } else if (mImportMode == ImportMode.ADD_MODE) {
-                            // allow duplicates in this case
-                            if (!dupes.contains(fld0)) {
-                                // only show message once, no matter how many
-                                // duplicates are in the collection already
-                                updateLog.add(getString(R.string.note_importer_error_added_duplicate_first_field, fld0))
-                                dupes.add(fld0)
-                            }
-                            found = false
-                        }
                     }
+                } else if (mImportMode == ImportMode.IGNORE_MODE) {
+                    mDupeCount += 1
+                } else if (mImportMode == ImportMode.ADD_MODE) {
+                    // allow duplicates in this case
+                    if (!dupes.contains(fld0)) {
+                        // only show message once, no matter how many
+                        // duplicates are in the collection already
+                        addRowMessage(updateLog, getString(R.string.note_importer_error_added_duplicate_first_field, fld0))
+                        dupes.add(fld0)
+                    }
+                    found = false
                 }
             }
             // newly add
@@ -185,48 +270,62 @@ open class NoteImporter(col: com.ichi2.libanki.Collection, file: String) : Impor
                 val data = newData(n)
                 if (data != null && data.isNotEmpty()) {
                     _new.add(data)
-                    // note that we've seen this note once already
-                    firsts.add(fld0)
                 }
             }
         }
-        addNew(_new)
-        addUpdates(updates)
-        // make sure to update sflds, etc
-        mCol.updateFieldCache(mIds)
-        // generate cards
-        if (mCol.genCards(mIds, mModel).isNotEmpty()) {
-            this.log.add(0, getString(R.string.note_importer_empty_cards_found))
+        mCol.db.executeInTransaction {
+            addNew(_new)
+            addUpdates(updates)
+            // make sure to update sflds, etc
+            mCol.updateFieldCache(mBatchIds)
+            // generate cards
+            if (mCol.genCards(mBatchIds, mModel!!).isNotEmpty()) {
+                mEmptyCards = true
+            }
         }
+        mAddedCount += _new.size
+        mTotal += mBatchIds.size
+        mBatchIds.clear()
+    }
 
-        // we randomize or order here, to ensure that siblings
-        // have the same due#
-        val did = mCol.decks.selected()
-        val conf = mCol.decks.confForDid(did)
-        // in order due?
-        if (conf.getJSONObject("new").getInt("order") == Consts.NEW_CARDS_RANDOM) {
-            mCol.sched.randomizeCards(did)
+    /**
+     * Whether a row of the file with the same first field was already imported: in this batch according to [firsts],
+     * in an earlier batch according to the notes written. A row of an earlier batch which was not written, as it would
+     * generate no cards, is not remembered.
+     */
+    private fun appearedEarlier(fld0: String, firsts: Set<String>, candidates: List<ExistingNote>): Boolean {
+        if (firsts.contains(fld0)) {
+            return true
         }
-        val part1 = getQuantityString(R.plurals.note_importer_notes_added, _new.size)
-        val part2 = getQuantityString(R.plurals.note_importer_notes_updated, mUpdateCount)
-        val unchanged: Int = when (mImportMode) {
-            ImportMode.UPDATE_MODE -> dupeCount - mUpdateCount
-            ImportMode.IGNORE_MODE -> dupeCount
-            else -> 0
+        return candidates.any { (it.id >= mFirstNewId || mSeenExistingIds.contains(it.id)) && it.fields.contentEquals(0, fld0) }
+    }
+
+    /** Notes of the model whose checksum matches the first field of one of [notes], using the csum index */
+    private fun existingNotesByCsum(notes: List<ForeignNote>, fld0index: Int): Map<Long, List<ExistingNote>> {
+        val batchCsums = HashUtil.HashSetInit<Long>(notes.size)
+        for (n in notes) {
+            val fld0 = n.mFields[fld0index]
+            if (fld0 != null && fld0.isNotEmpty()) {
+                batchCsums.add(Utils.fieldChecksum(fld0))
+            }
         }
-        val part3 = getQuantityString(R.plurals.note_importer_notes_unchanged, unchanged)
-        mLog.add(String.format("%s, %s, %s.", part1, part2, part3))
-        mLog.addAll(updateLog)
-        if (mEmptyNotes) {
-            mLog.add(getString(R.string.note_importer_error_empty_notes))
+        val csums = HashMap<Long, MutableList<ExistingNote>>()
+        if (batchCsums.isEmpty()) {
+            return csums
         }
-        mTotal = mIds!!.size
+        mCol.db.query("select csum, id, flds from notes where mid = ? and csum in " + Utils.ids2str(batchCsums), mModel!!.getLong("id")).use { c ->
+            while (c.moveToNext()) {
+                val existing = ExistingNote(c.getLong(1), FieldsView(c.getString(2)))
+                csums.getOrPut(c.getLong(0)) { ArrayList() }.add(existing)
+            }
+        }
+        return csums
     }
 
     private fun newData(n: ForeignNote): Array<Any>? {
         val id = mNextId
         mNextId++
-        mIds!!.add(id)
+        mBatchIds.add(id)
         return if (!processFields(n)) {
             null
         } else arrayOf(
@@ -245,11 +344,11 @@ open class NoteImporter(col: com.ichi2.libanki.Collection, file: String) : Impor
     }
 
     private fun addNew(rows: List<Array<Any>>) {
-        mCol.db.executeMany("insert or replace into notes values (?,?,?,?,?,?,?,?,?,?,?)", rows)
+        mCol.db.executeManyNoTransaction("insert or replace into notes values (?,?,?,?,?,?,?,?,?,?,?)", rows)
     }
 
     private fun updateData(n: ForeignNote, id: Long, sflds: Array<String>): Array<Any>? {
-        mIds!!.add(id)
+        mBatchIds.add(id)
         if (!processFields(n, sflds)) {
             return null
         }
@@ -276,26 +375,37 @@ open class NoteImporter(col: com.ichi2.libanki.Collection, file: String) : Impor
     private fun addUpdates(rows: List<Array<Any>>) {
         val changes = mCol.db.queryScalar("select total_changes()")
         if (mTagsMapped) {
-            mCol.db.executeMany(
+            mCol.db.executeManyNoTransaction(
                 "update notes set mod = ?, usn = ?, flds = ?, tags = ? " +
                     "where id = ? and (flds != ? or tags != ?)",
                 rows
             )
         } else if (mTagModified != null) {
-            mCol.db.executeMany(
+            mCol.db.executeManyNoTransaction(
                 "update notes set mod = ?, usn = ?, flds = ?, tags = ? " +
                     "where id = ? and flds != ?",
                 rows
             )
         } else {
-            mCol.db.executeMany(
+            mCol.db.executeManyNoTransaction(
                 "update notes set mod = ?, usn = ?, flds = ? " +
                     "where id = ? and flds != ?",
                 rows
             )
         }
         val changes2 = mCol.db.queryScalar("select total_changes()")
-        mUpdateCount = changes2 - changes
+        mUpdateCount += changes2 - changes
+    }
+
+    /** Adds a message about a row of the file to [log], up to [MAX_ROW_MESSAGES] messages */
+    protected fun addRowMessage(log: MutableList<String>, message: String) {
+        if (log.size < MAX_ROW_MESSAGES) {
+            log.add(message)
+        }
+    }
+
+    private fun publishProgress(notesDone: Int, cardsDone: Int, postProcess: Int) {
+        mProgress?.publishProgress(getString(R.string.import_progress, notesDone, cardsDone, postProcess))
     }
 
     private fun processFields(note: ForeignNote, fields: Array<String>? = null): Boolean {
@@ -374,9 +484,19 @@ open class NoteImporter(col: com.ichi2.libanki.Collection, file: String) : Impor
     }
 
     private class Triple(val nid: Long, val ord: Int, val card: ForeignCard)
+
+    /** A note of the collection which may be a duplicate of a row of the file */
+    private class ExistingNote(val id: Long, val fields: FieldsView)
+
     companion object {
         /** A magic string used in [this.mMapping] when a csv field should be mapped to the tags of a note  */
         const val TAGS_IDENTIFIER = "_tags"
+
+        /** Number of rows of the file deduplicated and written together */
+        const val BATCH_SIZE = 1000
+
+        /** Limit on messages about individual rows, so a large file with many errors can't fill the memory */
+        const val MAX_ROW_MESSAGES = 1000
     }
 
     init {
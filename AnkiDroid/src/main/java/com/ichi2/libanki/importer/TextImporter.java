@@ -22,12 +22,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import timber.log.Timber;
 
@@ -47,6 +49,12 @@ public class TextImporter extends NoteImporter {
 
     private boolean mFirstLineWasTags;
 
+    /** The lines of the file being imported. Closed once the import is done */
+    @Nullable
+    private Stream<String> mData;
+    private long mCharsRead;
+    private long mFileLength;
+
 
     public TextImporter(Collection col, @NonNull String file) {
         super(col, file);
@@ -58,48 +66,107 @@ public class TextImporter extends NoteImporter {
 
     @NonNull
     @Override
-    protected List<ForeignNote> foreignNotes() {
+    protected Iterator<ForeignNote> foreignNotes() {
         open();
-        // process all lines
-        List<String> log = new ArrayList<>(); //Number of element is reader's size
-        List<ForeignNote> notes = new ArrayList<>(); //Number of element is reader's size
-        int lineNum = 0;
-        int ignored = 0;
+        // rows which can't be imported are logged while the notes are read
+        mLog = new ArrayList<>();
+        mCharsRead = 0;
+        mFileLength = new File(mFile).length();
         // Note: This differs from libAnki as we don't have csv.reader
-        Iterator<String> data = getDataStream().iterator();
+        mData = getDataStream();
+        Iterator<String> data = mData.peek(line -> mCharsRead += line.length()).iterator();
         CsvReader reader;
         if (mDelimiter != '\0') {
             reader = CsvReader.fromDelimiter(data, mDelimiter);
         } else {
             reader = CsvReader.fromDialect(data, mDialect);
         }
-        try {
-            for (List<? extends String> row : reader) {
-                if (row == null) {
-                    continue;
-                }
-                List<String> rowAsString = new ArrayList<>(row);
-                if (rowAsString.size() != mNumFields) {
-                    if (!rowAsString.isEmpty()) {
-                        String formatted = getString(R.string.csv_importer_error_invalid_field_count,
-                                TextUtils.join(" ", rowAsString),
-                                rowAsString.size(),
-                                mNumFields);
-                        log.add(formatted);
-                        ignored += 1;
+        return new ForeignNoteIterator(reader.iterator());
+    }
+
+
+    @Override
+    protected void close() {
+        if (mData != null) {
+            mData.close();
+            mData = null;
+        }
+        if (mFileobj != null) {
+            mFileobj.close();
+        }
+    }
+
+
+    /** Approximation: characters read against the size of the file in bytes */
+    @Override
+    protected int inputProgress() {
+        if (mFileLength <= 0) {
+            return 0;
+        }
+        return (int) Math.min(100, mCharsRead * 100 / mFileLength);
+    }
 
+
+    /** Reads the notes from the file one row at a time */
+    private class ForeignNoteIterator implements Iterator<ForeignNote> {
+        private final Iterator<List<String>> mRows;
+        @Nullable
+        private ForeignNote mNext;
+        private boolean mFinished = false;
+
+
+        private ForeignNoteIterator(Iterator<List<String>> rows) {
+            mRows = rows;
+        }
+
+
+        @Override
+        public boolean hasNext() {
+            if (mNext == null && !mFinished) {
+                mNext = readNext();
+                mFinished = mNext == null;
+            }
+            return mNext != null;
+        }
+
+
+        @Override
+        public ForeignNote next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ForeignNote note = mNext;
+            mNext = null;
+            return note;
+        }
+
+
+        @Nullable
+        private ForeignNote readNext() {
+            try {
+                while (mRows.hasNext()) {
+                    List<String> row = mRows.next();
+                    if (row == null) {
+                        continue;
+                    }
+                    List<String> rowAsString = new ArrayList<>(row);
+                    if (rowAsString.size() != mNumFields) {
+                        if (!rowAsString.isEmpty()) {
+                            String formatted = getString(R.string.csv_importer_error_invalid_field_count,
+                                    TextUtils.join(" ", rowAsString),
+                                    rowAsString.size(),
+                                    mNumFields);
+                            addRowMessage(mLog, formatted);
+                        }
+                        continue;
                     }
-                    continue;
+                    return noteFromFields(rowAsString);
                 }
-                ForeignNote note = noteFromFields(rowAsString);
-                notes.add(note);
+            } catch (CsvException e) {
+                mLog.add(getString(R.string.csv_importer_error_exception, e));
             }
-        } catch (CsvException e) {
-            log.add(getString(R.string.csv_importer_error_exception, e));
+            return null;
         }
-        mLog = log;
-        mFileobj.close();
-        return notes;
     }
 
     /**
@@ -69,6 +69,12 @@ abstract class AbstractSched {
     /** Ensure that the question on the potential next card can be accessed quickly. */
     abstract fun preloadNextCard()
 
+    /**
+     * Ensure that the questions of up to [limit] cards of each queue which may provide the next card can be accessed quickly.
+     * @return The loaded cards
+     */
+    abstract fun preloadNextCards(limit: Int): List<Card>
+
     /** Recompute the counts of the currently selected deck.  */
     abstract fun resetCounts()
     abstract fun resetCounts(cancelListener: CancelListener?)
@@ -183,6 +189,18 @@ abstract class AbstractSched {
      */
     abstract fun deckDueList(): List<DeckDueTreeNode?>
 
+    /**
+     * @param cancelListener A task that is potentially cancelled
+     * @return [deckname, did, rev, lrn, new]. null if task is cancelled
+     */
+    abstract fun deckDueList(cancelListener: CancelListener?): List<DeckDueTreeNode>?
+
+    /**
+     * Groups the result of [deckDueList] into the due tree.
+     * The nodes of [deckDueList] are modified: their counts become the counts of their subtree.
+     */
+    abstract fun groupDeckDueList(deckDueList: List<DeckDueTreeNode>): List<DeckDueTreeNode>
+
     /**
      * @param cancelListener A task that is potentially cancelled
      * @return the due tree. null if task is cancelled
@@ -19,8 +19,10 @@ package com.ichi2.libanki.sched;
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -38,10 +40,25 @@ abstract class CardQueue<T extends Card.Cache> {
 
 
     public void loadFirstCard() {
-        if (!mQueue.isEmpty()) {
+        loadFirstCards(1);
+    }
+
+    /**
+     * Ensure the question and answer of the first cards of the queue are rendered
+     * @param limit The maximal number of cards to load
+     * @return The loaded cards, in queue order
+     */
+    public List<Card> loadFirstCards(int limit) {
+        List<Card> cards = new ArrayList<>(Math.min(limit, mQueue.size()));
+        for (T cache : mQueue) {
+            if (cards.size() >= limit) {
+                break;
+            }
             // No nead to reload. If the card was changed, reset would have been called and emptied the queue
-            mQueue.get(0).loadQA(false, false);
+            cache.loadQA(false, false);
+            cards.add(cache.getCard());
         }
+        return cards;
     }
 
     public Card removeFirstCard() throws NoSuchElementException {
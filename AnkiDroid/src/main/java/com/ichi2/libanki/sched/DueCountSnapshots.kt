@@ -0,0 +1,151 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+
+package com.ichi2.libanki.sched
+
+import com.ichi2.async.CancelListener
+import com.ichi2.libanki.Collection
+import com.ichi2.libanki.Consts
+import com.ichi2.libanki.DB
+import com.ichi2.utils.Tracer
+import timber.log.Timber
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The deck due counts, computed once and shared by the deck list, the widget, the reminders and the content provider.
+ *
+ * Computing the due tree costs a few queries per deck. A snapshot is reused until:
+ * * the collection database is modified or reopened (see [DB.getModificationCount]),
+ * * the scheduler day rolls over,
+ * * a learning card becomes due within the collapse time, which adds it to the learning count of its deck,
+ * * [invalidate] is called: deck and option group changes, sync, import, closing the collection.
+ *
+ * The nodes of a snapshot are shared between its consumers: they must not be modified.
+ */
+object DueCountSnapshots {
+    fun interface Listener {
+        /** Called on the thread which computed [snapshot], with the collection still in use by this thread */
+        fun onSnapshot(col: Collection, snapshot: Snapshot)
+    }
+
+    class Snapshot internal constructor(
+        private val mDb: DB,
+        private val mModificationCount: Long,
+        private val mInvalidation: Long,
+        val today: Int,
+        /** Time, in seconds, at which a learning card starts to be counted. [Long.MAX_VALUE] if none would */
+        private val mExpiry: Long,
+        /** Counts of each deck on its own, as [AbstractSched.deckDueList] */
+        val list: List<DeckDueTreeNode>,
+        /** Top level decks, with the counts of their subtree, as [AbstractSched.deckDueTree] */
+        val tree: List<DeckDueTreeNode>
+    ) {
+        internal fun isCurrent(db: DB, today: Int, now: Long): Boolean =
+            mDb === db && mModificationCount == db.modificationCount && mInvalidation == mInvalidations.get() &&
+                this.today == today && now < mExpiry
+    }
+
+    private val mInvalidations = AtomicLong()
+    private val mListeners = CopyOnWriteArrayList<Listener>()
+    private val mLock = Any()
+
+    @Volatile
+    private var mSnapshot: Snapshot? = null
+
+    /** The due tree of [col], as [AbstractSched.deckDueTree] */
+    @JvmStatic
+    fun tree(col: Collection): List<DeckDueTreeNode> = get(col, null)!!.tree
+
+    /** The due tree of [col], as [AbstractSched.deckDueTree]. null if [cancelListener] is cancelled */
+    @JvmStatic
+    fun tree(col: Collection, cancelListener: CancelListener?): List<DeckDueTreeNode>? = get(col, cancelListener)?.tree
+
+    /** The counts of each deck of [col], as [AbstractSched.deckDueList] */
+    @JvmStatic
+    fun list(col: Collection): List<DeckDueTreeNode> = get(col, null)!!.list
+
+    /** The current snapshot of [col], computing it if needed. null if [cancelListener] is cancelled */
+    @JvmStatic
+    fun get(col: Collection, cancelListener: CancelListener?): Snapshot? {
+        val snapshot: Snapshot
+        synchronized(mLock) {
+            val sched = col.sched
+            // May unbury cards: done before reading the modification count
+            sched._checkDay()
+            val db = col.db
+            val now = col.time.intTime()
+            mSnapshot?.let {
+                if (it.isCurrent(db, sched.today, now)) {
+                    return it
+                }
+            }
+            snapshot = Tracer.trace("DueCountSnapshots.compute") {
+                // Read first, so that changes made while computing make the snapshot stale. This includes the repairs
+                // of checkIntegrity(), which cost one extra computation.
+                val modificationCount = db.modificationCount
+                val invalidation = mInvalidations.get()
+                val expiry = learningCountsExpiry(col, now)
+                val list = sched.deckDueList(cancelListener) ?: return null
+                val flat = ArrayList<DeckDueTreeNode>(list.size)
+                for (node in list) {
+                    flat.add(DeckDueTreeNode(col, node.fullDeckName, node.did, node.revCount, node.lrnCount, node.newCount))
+                }
+                val tree = sched.groupDeckDueList(list)
+                Snapshot(db, modificationCount, invalidation, sched.today, expiry, Collections.unmodifiableList(flat), Collections.unmodifiableList(tree))
+            }
+            mSnapshot = snapshot
+        }
+        for (listener in mListeners) {
+            try {
+                listener.onSnapshot(col, snapshot)
+            } catch (e: RuntimeException) {
+                Timber.w(e, "Due counts listener failed")
+            }
+        }
+        return snapshot
+    }
+
+    /**
+     * The time at which the learning counts computed at [now] become outdated: the schedulers count the learning
+     * cards due before now + collapse time, see `SchedV2._lrnForDeck`.
+     */
+    private fun learningCountsExpiry(col: Collection, now: Long): Long {
+        val collapseTime = col.get_config_int("collapseTime").toLong()
+        val nextDue = col.db.queryLongScalar(
+            "select min(due) from cards where queue = " + Consts.QUEUE_TYPE_LRN + " and due >= ?",
+            now + collapseTime
+        )
+        return if (nextDue == 0L) Long.MAX_VALUE else nextDue - collapseTime
+    }
+
+    /** Drops the current snapshot. For changes which do not go through the collection database connection. */
+    @JvmStatic
+    fun invalidate() {
+        mInvalidations.incrementAndGet()
+        mSnapshot = null
+    }
+
+    @JvmStatic
+    fun addListener(listener: Listener) {
+        mListeners.addIfAbsent(listener)
+    }
+
+    @JvmStatic
+    fun removeListener(listener: Listener) {
+        mListeners.remove(listener)
+    }
+}
@@ -38,7 +38,9 @@ import com.ichi2.async.TaskManager;
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.DB;
 import com.ichi2.libanki.Decks;
+import com.ichi2.libanki.IdSet;
 import com.ichi2.libanki.Note;
 import com.ichi2.libanki.SortOrder;
 import com.ichi2.libanki.Utils;
@@ -54,6 +56,7 @@ import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONException;
 import com.ichi2.utils.JSONObject;
 import com.ichi2.utils.SyncStatus;
+import com.ichi2.utils.Tracer;
 
 import net.ankiweb.rsdroid.RustCleanup;
 
@@ -90,6 +93,8 @@ public class SchedV2 extends AbstractSched {
     // Not in libanki
     private static final int[] FACTOR_ADDITION_VALUES = { -150, 0, 150 };
     public static final int RESCHEDULE_FACTOR = Consts.STARTING_FACTOR;
+    /** Cards found by the current term of a filtered deck being rebuilt, with their position */
+    private static final String DYN_IDS_TABLE = "temp.dyn_ids";
 
     protected final int mQueueLimit;
     protected int mReportLimit;
@@ -525,6 +530,7 @@ public class SchedV2 extends AbstractSched {
     }
 
     // Overridden
+    @Override
     public @Nullable List<DeckDueTreeNode> deckDueList(@Nullable CancelListener collectionTask) {
         _checkDay();
         mCol.getDecks().checkIntegrity();
@@ -591,11 +597,18 @@ public class SchedV2 extends AbstractSched {
 
     @Nullable
     public List<DeckDueTreeNode> deckDueTree(@Nullable CancelListener cancelListener) {
-        List<DeckDueTreeNode> deckDueTree = deckDueList(cancelListener);
-        if (deckDueTree == null) {
-            return null;
+        try (Tracer.Section ignored = Tracer.begin("Sched.deckDueTree")) {
+            List<DeckDueTreeNode> deckDueTree = deckDueList(cancelListener);
+            if (deckDueTree == null) {
+                return null;
+            }
+            return groupDeckDueList(deckDueTree);
         }
-        return _groupChildren(deckDueTree, true);
+    }
+
+    @Override
+    public @NonNull List<DeckDueTreeNode> groupDeckDueList(@NonNull List<DeckDueTreeNode> deckDueList) {
+        return _groupChildren(deckDueList, true);
     }
 
     private @NonNull <T extends AbstractDeckTreeNode<T>> List<T> _groupChildren(@NonNull List<T> decks, boolean checkDone) {
@@ -762,6 +775,12 @@ public class SchedV2 extends AbstractSched {
     /** pre load the potential next card. It may loads many card because, depending on the time taken, the next card may
      * be a card in review or not. */
     public void preloadNextCard() {
+        preloadNextCards(1);
+    }
+
+    /** pre load the potential next cards. Up to `limit` cards are loaded in each queue which may provide the next card.
+     * @return The loaded cards. */
+    public @NonNull List<Card> preloadNextCards(int limit) {
         _checkDay();
         if (!mHaveCounts) {
              resetCounts(false);
@@ -769,9 +788,11 @@ public class SchedV2 extends AbstractSched {
         if (!mHaveQueues) {
             resetQueues(false);
         }
+        List<Card> cards = new ArrayList<>();
         for (CardQueue<? extends Card.Cache> caches: _fillNextCard()) {
-            caches.loadFirstCard();
+            cards.addAll(caches.loadFirstCards(limit));
         }
+        return cards;
     }
 
 
@@ -1886,9 +1907,12 @@ public class SchedV2 extends AbstractSched {
             return;
         }
         // move any existing cards back first, then fill
-        emptyDyn(did);
-        int cnt = _fillDyn(deck);
-        if (cnt == 0) {
+        int[] cnt = new int[1];
+        mCol.getDb().executeInTransaction(() -> {
+            emptyDyn(deck.getLong("id"));
+            cnt[0] = _fillDyn(deck);
+        });
+        if (cnt[0] == 0) {
             return;
         }
         // and change to our new deck
@@ -1899,32 +1923,42 @@ public class SchedV2 extends AbstractSched {
     /**
      * Whether the filtered deck is empty
      * Overriden
+     * <p>
+     * The ids found by each term are inserted by SQL into a temporary table, whose rowid is their position in the
+     * search order, and the cards are moved with one update per term.
      */
     private int _fillDyn(Deck deck) {
         int start = -100000;
         int total = 0;
-        List<Long> ids;
-        JSONArray terms = deck.getJSONArray("terms");
-        for (JSONArray term: terms.jsonArrayIterable()) {
-            String search = term.getString(0);
-            int limit = term.getInt(1);
-            int order = term.getInt(2);
-
-            String orderlimit = _dynOrder(order, limit);
-            if (!TextUtils.isEmpty(search.trim())) {
-                search = String.format(Locale.US, "(%s)", search);
-            }
-            search = String.format(Locale.US, "%s -is:suspended -is:buried -deck:filtered", search);
-            ids = mCol.findCards(search, new SortOrder.AfterSqlOrderBy(orderlimit));
-            if (ids.isEmpty()) {
-                return total;
+        DB db = mCol.getDb();
+        db.execute("create temp table if not exists " + DYN_IDS_TABLE + " (pos integer primary key, id integer not null unique)");
+        try {
+            JSONArray terms = deck.getJSONArray("terms");
+            for (JSONArray term: terms.jsonArrayIterable()) {
+                String search = term.getString(0);
+                int limit = term.getInt(1);
+                int order = term.getInt(2);
+
+                String orderlimit = _dynOrder(order, limit);
+                if (!TextUtils.isEmpty(search.trim())) {
+                    search = String.format(Locale.US, "(%s)", search);
+                }
+                search = String.format(Locale.US, "%s -is:suspended -is:buried -deck:filtered", search);
+                // positions restart from 1 in an empty table
+                db.execute("delete from " + DYN_IDS_TABLE);
+                int found = mCol.insertCardIds(DYN_IDS_TABLE, search, new SortOrder.AfterSqlOrderBy(orderlimit));
+                if (found == 0) {
+                    return total;
+                }
+                // move the cards over
+                mCol.log(deck.getLong("id"), found);
+                _moveToDyn(deck.getLong("id"), start + total);
+                total += found;
             }
-            // move the cards over
-            mCol.log(deck.getLong("id"), ids);
-            _moveToDyn(deck.getLong("id"), ids, start + total);
-            total += ids.size();
+            return total;
+        } finally {
+            db.execute("drop table if exists " + DYN_IDS_TABLE);
         }
-        return total;
     }
 
 
@@ -1948,11 +1982,15 @@ public class SchedV2 extends AbstractSched {
 
 
     public void remFromDyn(long[] cids) {
-        emptyDyn(0, "id IN " + Utils.ids2str(cids) + " AND odid");
+        try (IdSet ids = IdSet.of(mCol.getDb(), cids)) {
+            emptyDyn(0, "id IN " + ids.getSql() + " AND odid");
+        }
     }
 
     public void remFromDyn(List<Long> cids) {
-        emptyDyn(0, "id IN " + Utils.ids2str(cids) + " AND odid");
+        try (IdSet ids = IdSet.of(mCol.getDb(), cids)) {
+            emptyDyn(0, "id IN " + ids.getSql() + " AND odid");
+        }
     }
 
 
@@ -2002,25 +2040,19 @@ public class SchedV2 extends AbstractSched {
     }
 
 
-    protected void _moveToDyn(long did, @NonNull List<Long> ids, int start) {
+    /** Moves the cards of {@link #DYN_IDS_TABLE} to {@code did}, the card at position 1 being due at {@code start} */
+    protected void _moveToDyn(long did, int start) {
         Deck deck = mCol.getDecks().get(did);
-        ArrayList<Object[]> data = new ArrayList<>(ids.size());
-        int u = mCol.usn();
-        int due = start;
-        for (Long id : ids) {
-            data.add(new Object[] {
-                did, due, u, id
-            });
-            due += 1;
-        }
         String queue = "";
         if (!deck.getBoolean("resched")) {
             queue = ", queue = " + Consts.QUEUE_TYPE_REV + "";
         }
 
-        mCol.getDb().executeMany(
+        mCol.getDb().execute(
                 "UPDATE cards SET odid = did, " +
-                        "odue = due, did = ?, due = (case when due <= 0 then due else ? end), usn = ? " + queue + " WHERE id = ?", data);
+                        "odue = due, did = ?, due = (case when due <= 0 then due else ? + (SELECT pos FROM " + DYN_IDS_TABLE + " d WHERE d.id = cards.id) end), usn = ? " + queue +
+                        " WHERE id IN (SELECT id FROM " + DYN_IDS_TABLE + ")",
+                did, start - 1, mCol.usn());
     }
 
 
@@ -38,6 +38,7 @@ import com.ichi2.libanki.Utils;
 import com.ichi2.libanki.Deck;
 import com.ichi2.libanki.DeckConfig;
 import com.ichi2.libanki.sched.Counts;
+import com.ichi2.libanki.sched.DueCountSnapshots;
 import com.ichi2.utils.HashUtil;
 import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONException;
@@ -284,6 +285,8 @@ public class Syncer {
                 mCol.getDb().getDatabase().setTransactionSuccessful();
             } finally {
                 DB.safeEndInTransaction(mCol.getDb());
+                // The transaction may have been rolled back, or decks merged in memory
+                DueCountSnapshots.invalidate();
             }
         } catch (IllegalStateException e) {
             throw new RuntimeException(e);
@@ -19,12 +19,24 @@ import android.content.ContentValues
 import android.database.SQLException
 import androidx.sqlite.db.SupportSQLiteDatabase
 import androidx.sqlite.db.SupportSQLiteStatement
-import java.util.*
+import java.util.concurrent.atomic.AtomicLong
 
-/** Detects any database modifications and notifies the sync status of the application  */
+/** Detects any database modifications, counts them and notifies the sync status of the application  */
 class DatabaseChangeDecorator(val wrapped: SupportSQLiteDatabase) : SupportSQLiteDatabase by wrapped {
+    private val modifications = AtomicLong()
+
+    /**
+     * Number of modifying statements executed through this connection.
+     * Caches of data derived from the collection compare it to detect that they are stale.
+     */
+    val modificationCount: Long
+        get() = modifications.get()
+
     private fun markDataAsChanged() {
-        SyncStatus.markDataAsChanged()
+        modifications.incrementAndGet()
+        if (needsComplexCheck()) {
+            SyncStatus.markDataAsChanged()
+        }
     }
 
     private fun needsComplexCheck(): Boolean {
@@ -33,28 +45,41 @@ class DatabaseChangeDecorator(val wrapped: SupportSQLiteDatabase) : SupportSQLit
     }
 
     private fun checkForChanges(sql: String) {
-        if (!needsComplexCheck()) {
-            return
-        }
-        val lower = sql.lowercase(Locale.ROOT)
-        val upper = sql.uppercase(Locale.ROOT)
-        for (modString in MOD_SQLS) {
-            if (startsWithIgnoreCase(lower, upper, modString)) {
-                markDataAsChanged()
-                break
-            }
+        if (isModification(sql)) {
+            markDataAsChanged()
         }
     }
 
-    private fun startsWithIgnoreCase(lowerHaystack: String, upperHaystack: String, needle: String): Boolean {
-        // Needs to do both according to https://stackoverflow.com/a/38947571
-        return lowerHaystack.startsWith(needle) || upperHaystack.startsWith(needle.uppercase(Locale.ROOT))
-    }
-
+    /**
+     * The SQL is checked once, when the statement is compiled, as the statement may be cached and executed many times.
+     * The data is marked as changed each time a modifying statement is executed.
+     */
     override fun compileStatement(sql: String): SupportSQLiteStatement {
         val supportSQLiteStatement = wrapped.compileStatement(sql)
-        checkForChanges(sql) // technically a little hasty - as the statement hasn't been executed.
-        return supportSQLiteStatement
+        return if (isModification(sql)) ChangeTrackingStatement(supportSQLiteStatement) else supportSQLiteStatement
+    }
+
+    private inner class ChangeTrackingStatement(private val statement: SupportSQLiteStatement) : SupportSQLiteStatement by statement {
+        override fun execute() {
+            statement.execute()
+            onExecuted()
+        }
+
+        override fun executeUpdateDelete(): Int {
+            val changes = statement.executeUpdateDelete()
+            onExecuted()
+            return changes
+        }
+
+        override fun executeInsert(): Long {
+            val id = statement.executeInsert()
+            onExecuted()
+            return id
+        }
+
+        private fun onExecuted() {
+            markDataAsChanged()
+        }
     }
 
     @Throws(SQLException::class)
@@ -90,5 +115,20 @@ class DatabaseChangeDecorator(val wrapped: SupportSQLiteDatabase) : SupportSQLit
 
     companion object {
         private val MOD_SQLS = arrayOf("insert", "update", "delete")
+
+        /** Whether [sql] is an insert, update or delete. Does not allocate: called for most statements */
+        @JvmStatic
+        fun isModification(sql: String): Boolean {
+            var start = 0
+            while (start < sql.length && sql[start] <= ' ') {
+                start++
+            }
+            for (modString in MOD_SQLS) {
+                if (sql.regionMatches(start, modString, 0, modString.length, ignoreCase = true)) {
+                    return true
+                }
+            }
+            return false
+        }
     }
 }
@@ -0,0 +1,160 @@
+/***************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.utils
+
+import android.os.Trace
+import timber.log.Timber
+import java.io.Closeable
+import java.util.*
+
+/**
+ * Named timing spans around the phases we care about (collection open, scheduler load, major tasks...).
+ *
+ * Each span is forwarded to [android.os.Trace] so it shows up in systrace/perfetto, and is also recorded in a
+ * small in-memory ring buffer, so the most recent timings can be copied from the debug info screen or read
+ * by unit tests and benchmarks.
+ *
+ * Usage from Java:
+ * <pre>
+ *   try (Tracer.Section ignored = Tracer.begin("Collection.load")) {
+ *       ...
+ *   }
+ * </pre>
+ */
+object Tracer {
+    /** Number of spans kept in memory. Older spans are overwritten. */
+    const val CAPACITY = 256
+
+    /** [android.os.Trace] rejects section names longer than this */
+    private const val MAX_SECTION_NAME_LENGTH = 127
+
+    private val mRecords = arrayOfNulls<Record>(CAPACITY)
+    private var mNext = 0
+    private var mSize = 0
+
+    /** Unit tests without Robolectric do not have an implementation of [android.os.Trace] */
+    private var mSystemTraceAvailable = true
+
+    /** A completed span */
+    class Record(
+        val name: String,
+        val thread: String,
+        /** [System.nanoTime] when the span started */
+        val startNanos: Long,
+        val durationNanos: Long
+    ) {
+        val durationMs: Double
+            get() = durationNanos / 1_000_000.0
+
+        override fun toString(): String {
+            return String.format(Locale.ROOT, "%s [%s]: %.2fms", name, thread, durationMs)
+        }
+    }
+
+    /** An open span. Closing it records its duration. Must be closed on the thread which opened it. */
+    class Section internal constructor(private val mName: String) : Closeable {
+        private val mStart = System.nanoTime()
+        private var mClosed = false
+
+        override fun close() {
+            if (mClosed) {
+                return
+            }
+            mClosed = true
+            val duration = System.nanoTime() - mStart
+            endSystemSection()
+            record(Record(mName, Thread.currentThread().name, mStart, duration))
+        }
+    }
+
+    /** Opens a span named [name]. Use in a try-with-resources block. */
+    @JvmStatic
+    fun begin(name: String): Section {
+        beginSystemSection(name)
+        return Section(name)
+    }
+
+    /** Runs [block] inside a span named [name] */
+    inline fun <T> trace(name: String, block: () -> T): T {
+        return begin(name).use { block() }
+    }
+
+    @Synchronized
+    private fun record(record: Record) {
+        mRecords[mNext] = record
+        mNext = (mNext + 1) % CAPACITY
+        if (mSize < CAPACITY) {
+            mSize++
+        }
+    }
+
+    /** The recorded spans, oldest first. */
+    @JvmStatic
+    @Synchronized
+    fun records(): List<Record> {
+        val result = ArrayList<Record>(mSize)
+        val first = (mNext - mSize + CAPACITY) % CAPACITY
+        for (i in 0 until mSize) {
+            result.add(mRecords[(first + i) % CAPACITY]!!)
+        }
+        return result
+    }
+
+    /** The recorded spans with the given name, oldest first. */
+    @JvmStatic
+    fun records(name: String): List<Record> = records().filter { it.name == name }
+
+    @JvmStatic
+    @Synchronized
+    fun clear() {
+        Arrays.fill(mRecords, null)
+        mNext = 0
+        mSize = 0
+    }
+
+    /** One line per recorded span, oldest first. Suitable for the debug info. */
+    @JvmStatic
+    fun dump(): String {
+        val builder = StringBuilder()
+        for (record in records()) {
+            builder.append(record).append('\n')
+        }
+        return builder.toString()
+    }
+
+    private fun beginSystemSection(name: String) {
+        if (!mSystemTraceAvailable) {
+            return
+        }
+        try {
+            Trace.beginSection(if (name.length > MAX_SECTION_NAME_LENGTH) name.substring(0, MAX_SECTION_NAME_LENGTH) else name)
+        } catch (e: RuntimeException) {
+            // "Method ... not mocked" under plain JVM unit tests
+            Timber.w(e, "System tracing unavailable")
+            mSystemTraceAvailable = false
+        }
+    }
+
+    private fun endSystemSection() {
+        if (!mSystemTraceAvailable) {
+            return
+        }
+        try {
+            Trace.endSection()
+        } catch (e: RuntimeException) {
+            mSystemTraceAvailable = false
+        }
+    }
+}
@@ -17,6 +17,8 @@ package com.ichi2.widget;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Pair;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
@@ -29,8 +31,10 @@ import com.ichi2.async.BaseAsyncTask;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.sched.Counts;
 import com.ichi2.libanki.sched.DeckDueTreeNode;
+import com.ichi2.libanki.sched.DueCountSnapshots;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import timber.log.Timber;
 
@@ -44,6 +48,15 @@ public final class WidgetStatus {
     private static boolean sSmallWidgetEnabled = false;
     @SuppressWarnings("deprecation") // #7108: AsyncTask
     private static android.os.AsyncTask<Context, Void, Context> sUpdateDeckStatusAsyncTask;
+    private static final AtomicBoolean sSubscribed = new AtomicBoolean(false);
+
+    /**
+     * Counts computed elsewhere (e.g. by the deck list) refresh the widget.
+     * When the update task computed them itself, the next update is either skipped because the task is still running,
+     * or reuses the snapshot.
+     */
+    private static final DueCountSnapshots.Listener sSnapshotListener = (col, snapshot) ->
+            new Handler(Looper.getMainLooper()).post(() -> update(AnkiDroidApp.getInstance()));
 
 
     /** This class should not be instantiated. */
@@ -63,6 +76,9 @@ public final class WidgetStatus {
         sSmallWidgetEnabled = preferences.getBoolean("widgetSmallEnabled", false);
         boolean notificationEnabled = Integer.parseInt(preferences.getString(MINIMUM_CARDS_DUE_FOR_NOTIFICATION, "1000001")) < 1000000;
         boolean canExecuteTask = ((sUpdateDeckStatusAsyncTask == null) || (sUpdateDeckStatusAsyncTask.getStatus() == android.os.AsyncTask.Status.FINISHED));
+        if ((sSmallWidgetEnabled || notificationEnabled) && sSubscribed.compareAndSet(false, true)) {
+            DueCountSnapshots.addListener(sSnapshotListener);
+        }
         if ((sSmallWidgetEnabled || notificationEnabled) && canExecuteTask) {
             Timber.d("WidgetStatus.update(): updating");
             sUpdateDeckStatusAsyncTask = new UpdateDeckStatusAsyncTask();
@@ -123,11 +139,8 @@ public final class WidgetStatus {
         private void updateCounts(Context context) {
             Counts total = new Counts();
             Collection col = CollectionHelper.getInstance().getCol(context);
-            // Ensure queues are reset if we cross over to the next day.
-            col.getSched()._checkDay();
-
-            // Only count the top-level decks in the total
-            List<DeckDueTreeNode> nodes = col.getSched().deckDueTree();
+            // Only count the top-level decks in the total. Checks whether we crossed over to the next day.
+            List<DeckDueTreeNode> nodes = DueCountSnapshots.tree(col);
             for (DeckDueTreeNode node : nodes) {
                 total.addNew(node.getNewCount());
                 total.addLrn(node.getLrnCount());
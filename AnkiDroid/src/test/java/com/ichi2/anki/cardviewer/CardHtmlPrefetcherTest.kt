@@ -0,0 +1,109 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.anki.cardviewer
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import com.ichi2.libanki.Card
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class CardHtmlPrefetcherTest : RobolectricTest() {
+
+    private lateinit var mGenerator: HtmlGenerator
+    private lateinit var mPrefetcher: CardHtmlPrefetcher
+
+    @Before
+    override fun setUp() {
+        super.setUp()
+        mGenerator = HtmlGenerator.createInstance(targetContext, TypeAnswer(false, false, true), "http://localhost/")
+        mPrefetcher = CardHtmlPrefetcher(mGenerator)
+    }
+
+    @Test
+    fun prefetchedCardMatchesRender() {
+        val card = addNoteUsingBasicModel("Hello", "World").firstCard()
+        mPrefetcher.prefetch(col, listOf(card), null)
+
+        val prerendered = mPrefetcher.take(card)!!
+
+        assertThat(prerendered.questionHtml, equalTo(mGenerator.generateHtml(card, false, Side.FRONT).getTemplateHtml()))
+        assertThat(prerendered.answerHtml, equalTo(mGenerator.generateHtml(card, false, Side.BACK).getTemplateHtml()))
+    }
+
+    @Test
+    fun renderIsTakenOnce() {
+        val card = addNoteUsingBasicModel("Hello", "World").firstCard()
+        mPrefetcher.prefetch(col, listOf(card), null)
+
+        assertThat(mPrefetcher.take(card), notNullValue())
+        assertThat(mPrefetcher.take(card), nullValue())
+    }
+
+    @Test
+    fun otherInstanceOfCardIsNotReturned() {
+        val card = addNoteUsingBasicModel("Hello", "World").firstCard()
+        mPrefetcher.prefetch(col, listOf(card), null)
+
+        assertThat(mPrefetcher.take(col.getCard(card.id)), nullValue())
+    }
+
+    @Test
+    fun invalidatedRenderIsNotReturned() {
+        val card = addNoteUsingBasicModel("Hello", "World").firstCard()
+        mPrefetcher.prefetch(col, listOf(card), null)
+
+        mPrefetcher.invalidateAll()
+
+        assertThat(mPrefetcher.take(card), nullValue())
+    }
+
+    @Test
+    fun cancelledPrefetchRendersNothing() {
+        val card = addNoteUsingBasicModel("Hello", "World").firstCard()
+        mPrefetcher.prefetch(col, listOf(card)) { true }
+
+        assertThat(mPrefetcher.take(card), nullValue())
+    }
+
+    @Test
+    fun cardsNoLongerUpcomingAreDiscarded() {
+        val first = addNoteUsingBasicModel("Hello", "World").firstCard()
+        val second = addNoteUsingBasicModel("Foo", "Bar").firstCard()
+        mPrefetcher.prefetch(col, listOf(first), null)
+
+        mPrefetcher.prefetch(col, listOf(second), null)
+
+        assertThat(mPrefetcher.take(first), nullValue())
+        assertThat(mPrefetcher.take(second), notNullValue())
+    }
+
+    @Test
+    fun answerDependingOnTypedInputIsNotPrerendered() {
+        val card = addNoteUsingBasicTypedModel("Hello", "World").firstCard()
+        mPrefetcher.prefetch(col, listOf(card), null)
+
+        val prerendered = mPrefetcher.take(card)!!
+
+        assertThat(prerendered.answer, nullValue())
+        assertThat(prerendered.answerHtml, nullValue())
+    }
+
+    private fun com.ichi2.libanki.Note.firstCard(): Card = cards()[0]
+}
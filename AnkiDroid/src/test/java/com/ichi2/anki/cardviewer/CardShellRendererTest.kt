@@ -0,0 +1,91 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.anki.cardviewer
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.cardviewer.CardHtml.PageParts
+import com.ichi2.testutils.EmptyApplication
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.annotation.Config
+
+@RunWith(AndroidJUnit4::class) // dependency on org.json
+@Config(application = EmptyApplication::class)
+class CardShellRendererTest {
+    private val renderer = CardShellRenderer()
+
+    @Test
+    fun nothingIsReplacedBeforeThePageIsLoaded() {
+        assertThat(renderer.getSwapScript(parts("a")), nullValue())
+        renderer.onPageLoading(parts("a"))
+        assertThat("page is still loading", renderer.getSwapScript(parts("b")), nullValue())
+    }
+
+    @Test
+    fun contentIsReplacedOnceThePageIsLoaded() {
+        loadPage(parts("a"))
+        val script = renderer.getSwapScript(parts("b\"<br>", cardClass = "card card1"))
+        assertThat(script, equalTo("_updateCardContent(\"b\\\"<br>\", \"card card1\");"))
+    }
+
+    @Test
+    fun differentStyleRequiresANewPage() {
+        loadPage(parts("a", style = ".card { color: red }"))
+        assertThat(renderer.getSwapScript(parts("b", style = ".card { color: blue }")), nullValue())
+    }
+
+    @Test
+    fun mathJaxPageCanDisplayCardsWithoutMathJax() {
+        loadPage(parts("a", script = MATHJAX))
+        assertThat(renderer.getSwapScript(parts("b")), notNullValue())
+        assertThat(renderer.getSwapScript(parts("\\(x\\)", script = MATHJAX)), notNullValue())
+    }
+
+    @Test
+    fun mathJaxCardRequiresANewPageIfMathJaxIsNotLoaded() {
+        loadPage(parts("a"))
+        assertThat(renderer.getSwapScript(parts("\\(x\\)", script = MATHJAX)), nullValue())
+    }
+
+    @Test
+    fun cardsWithScriptsAreAlwaysLoadedInANewPage() {
+        loadPage(parts("a"))
+        assertThat(renderer.getSwapScript(parts("<SCRIPT>alert(1)</SCRIPT>")), nullValue())
+
+        loadPage(parts("<script>var x = 1;</script>"))
+        assertThat("page state of a card with scripts is not reused", renderer.getSwapScript(parts("b")), nullValue())
+    }
+
+    @Test
+    fun resetRequiresANewPage() {
+        loadPage(parts("a"))
+        renderer.reset()
+        assertThat(renderer.getSwapScript(parts("b")), nullValue())
+    }
+
+    private fun loadPage(parts: PageParts) {
+        renderer.onPageLoading(parts)
+        renderer.onPageFinished()
+    }
+
+    private fun parts(content: String, style: String = "", script: String = "", cardClass: String = "card") =
+        PageParts(content, style, script, cardClass)
+
+    companion object {
+        private const val MATHJAX = "<script src=\"/android_asset/mathjax/tex-chtml.js\"></script>"
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class CollectionLogTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val file: File
+        get() = File(folder.root, "collection.log")
+
+    @Test
+    fun linesAreFormattedInTheBackground() {
+        CollectionLog(file).use { log ->
+            log.log(1234, arrayOf("message", 5, longArrayOf(1, 2), listOf(3L, 4L), null))
+            log.flush()
+        }
+
+        assertThat(file.readLines(), contains(endsWith("): message,  5,  [1, 2],  [3, 4],  null")))
+        assertThat(file.readText(), startsWith("[1234] CollectionLogTest.kt:linesAreFormattedInTheBackground()"))
+    }
+
+    @Test
+    fun argumentsAreCapturedWhenLogged() {
+        val ids = mutableListOf(1L)
+        val array = longArrayOf(1)
+        val builder = StringBuilder("before")
+        CollectionLog(file).use { log ->
+            log.log(0, arrayOf(ids, array, builder))
+            ids.add(2)
+            array[0] = 2
+            builder.append(" after")
+        }
+
+        assertThat(file.readText(), containsString("[1],  [1],  before\n"))
+    }
+
+    @Test
+    fun recordsFromManyThreadsAreAllWritten() {
+        val threads = 4
+        val perThread = CollectionLog.CAPACITY / 2
+        val dropped = CollectionLog(file).use { log ->
+            (0 until threads).map { t ->
+                Thread { repeat(perThread) { log.log(0, arrayOf("thread $t", it)) } }.apply { start() }
+            }.forEach { it.join() }
+            log.droppedCount
+        }
+
+        val lines = file.readLines()
+        assertThat("the writer may fall behind, but what is lost is counted", lines.size + dropped, equalTo((threads * perThread).toLong()))
+        assertThat(lines.toSet(), hasSize(lines.size))
+    }
+
+    @Test
+    fun largeLogIsRotatedOnOpen() {
+        file.writeBytes(ByteArray((CollectionLog.MAX_FILE_SIZE + 1).toInt()))
+
+        CollectionLog(file).use { log ->
+            log.log(0, arrayOf("new"))
+        }
+
+        assertThat(File("$file.old").length(), equalTo(CollectionLog.MAX_FILE_SIZE + 1))
+        assertThat(file.readLines(), hasSize(1))
+    }
+}
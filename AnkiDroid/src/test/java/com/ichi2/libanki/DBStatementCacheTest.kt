@@ -0,0 +1,109 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import com.ichi2.utils.DatabaseChangeDecorator
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class DBStatementCacheTest : RobolectricTest() {
+    private val db: DB
+        get() = col.db
+
+    @Before
+    override fun setUp() {
+        super.setUp()
+        db.execute("create table if not exists bench_rows (id integer primary key, a, b)")
+    }
+
+    @Test
+    fun executeManyBindsLikeExecSql() {
+        val rows = listOf<Array<Any?>>(
+            arrayOf(1L, "text", null),
+            arrayOf(2, 1.5, true),
+            arrayOf(3, 2.5f, byteArrayOf(1, 2)),
+            arrayOf(4, StringBuilder("builder"), false)
+        )
+        db.executeMany("insert into bench_rows values (?, ?, ?)", rows)
+
+        assertThat(db.queryString("select a from bench_rows where id = 1"), equalTo("text"))
+        assertThat(db.queryScalar("select b is null from bench_rows where id = 1"), equalTo(1))
+        assertThat(db.queryString("select typeof(a) from bench_rows where id = 2"), equalTo("real"))
+        assertThat(db.queryScalar("select b from bench_rows where id = 2"), equalTo(1))
+        assertThat(db.queryString("select typeof(b) from bench_rows where id = 3"), equalTo("blob"))
+        assertThat(db.queryString("select a from bench_rows where id = 4"), equalTo("builder"))
+        assertThat(db.queryScalar("select b from bench_rows where id = 4"), equalTo(0))
+    }
+
+    @Test
+    fun cachedStatementsCanBeReusedAndEvicted() {
+        val sql = "insert into bench_rows (a) values (?)"
+        db.executeMany(sql, listOf(arrayOf("a"), arrayOf("b")))
+        // more distinct statements than the cache holds
+        for (i in 0 until 40) {
+            db.executeMany("update bench_rows set b = $i where a = ?", listOf(arrayOf("a"), arrayOf("b")))
+        }
+        db.executeMany(sql, listOf(arrayOf("c"), arrayOf("d")))
+
+        assertThat(db.queryScalar("select count() from bench_rows"), equalTo(4))
+        assertThat(db.queryScalar("select count() from bench_rows where b = 39"), equalTo(2))
+    }
+
+    @Test
+    fun modificationsAreDetectedWithoutCaseOrLeadingWhitespace() {
+        assertThat(DatabaseChangeDecorator.isModification("  \n\tUPDATE cards set mod = 1"), equalTo(true))
+        assertThat(DatabaseChangeDecorator.isModification("Insert into cards values (?)"), equalTo(true))
+        assertThat(DatabaseChangeDecorator.isModification("delete from cards"), equalTo(true))
+        assertThat(DatabaseChangeDecorator.isModification("select * from cards"), equalTo(false))
+        assertThat(DatabaseChangeDecorator.isModification("upd"), equalTo(false))
+
+        db.mod = false
+        db.execute("select 1")
+        assertThat(db.mod, equalTo(false))
+        db.execute(" UPDATE bench_rows set a = 1")
+        assertThat(db.mod, equalTo(true))
+    }
+
+    @Test
+    fun untrackedWritesAreNotModifications() {
+        db.mod = false
+        val modifications = db.modificationCount
+        db.executeUntracked("insert into bench_rows (a) values (?)", "untracked")
+
+        assertThat(db.queryScalar("select count() from bench_rows where a = 'untracked'"), equalTo(1))
+        assertThat(db.mod, equalTo(false))
+        assertThat(db.modificationCount, equalTo(modifications))
+    }
+
+    @Test
+    fun cachedStatementInsertsAsExecSqlPerRow() {
+        val rows = (0 until 10).map { arrayOf<Any>("front $it", it) }
+        db.executeInTransaction {
+            for (row in rows) {
+                db.database.execSQL("insert into bench_rows (a, b) values (?, ?)", row)
+            }
+            db.executeManyNoTransaction("insert into bench_rows (a, b) values (?, ?)", rows)
+        }
+
+        assertThat(db.queryScalar("select count() from bench_rows"), equalTo(rows.size * 2))
+        assertThat(db.queryScalar("select count(distinct a || b) from bench_rows"), equalTo(rows.size))
+    }
+}
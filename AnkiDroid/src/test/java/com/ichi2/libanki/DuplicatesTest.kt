@@ -0,0 +1,75 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class DuplicatesTest : RobolectricTest() {
+    @Test
+    fun addedNotesAreSeenByLaterChecks() {
+        val note = addNoteUsingBasicModel("one", "back")
+        val duplicates = col.duplicates
+        assertThat(duplicates.isDuplicate(note.mid, 0, "<b>two</b>"), equalTo(false))
+
+        val second = addNoteUsingBasicModel("two", "back")
+        assertThat(duplicates.isDuplicate(note.mid, 0, "<b>two</b>"), equalTo(true))
+        assertThat("a note is not its own duplicate", duplicates.isDuplicate(note.mid, second.id, "two"), equalTo(false))
+
+        col.remNotes(longArrayOf(second.id))
+        assertThat(duplicates.isDuplicate(note.mid, 0, "two"), equalTo(false))
+    }
+
+    @Test
+    fun dupeSearch() {
+        val first = addNoteUsingBasicModel("one", "back")
+        val second = addNoteUsingBasicModel("<b>one</b>", "back")
+        addNoteUsingBasicModel("two", "back")
+
+        assertThat(col.findNotes("\"dupe:${first.mid},one\""), containsInAnyOrder(first.id, second.id))
+        assertThat(col.findNotes("\"dupe:${first.mid},three\""), empty())
+    }
+
+    @Test
+    fun findDupesComparesFieldsAtAnyPosition() {
+        val reversed = addNonClozeModel("Reversed fields", arrayOf("Back", "Front"), "{{Front}}", "{{Back}}")
+        val first = addNoteUsingBasicModel("same", "back")
+        val second = addNoteUsingModelName(reversed, "back", "<b>same</b>")
+        addNoteUsingBasicModel("different", "back")
+        addNoteUsingModelName(reversed, "back", "other")
+        addNoteUsingModelName(reversed, "back", "other")
+
+        val published = ArrayList<android.util.Pair<String, List<Long>>>()
+        val dupes = col.duplicates.findDupes("front", "", { published.add(it!!) }, null)
+
+        assertThat(dupes.map { it.first }, containsInAnyOrder("same", "other"))
+        assertThat(dupes.first { it.first == "same" }.second, contains(first.id, second.id))
+        assertThat("each group is published", published, equalTo(dupes))
+        assertThat("back is the second field of Basic and the first of the other type", col.findDupes("Back").single().second.size, equalTo(5))
+    }
+
+    @Test
+    fun findDupesStopsWhenCancelled() {
+        addNoteUsingBasicModel("same", "back")
+        addNoteUsingBasicModel("same", "back")
+
+        assertThat(col.duplicates.findDupes("Front", "", null, { true }), empty())
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.math.BigInteger
+import java.security.MessageDigest
+
+@RunWith(AndroidJUnit4::class)
+class FieldChecksumTest : RobolectricTest() {
+    @Test
+    fun hexIsPythonHexdigest() {
+        assertThat(Utils.checksum(""), equalTo("da39a3ee5e6b4b0d3255bfef95601890afd80709"))
+        assertThat(Utils.checksum("abc"), equalTo("a9993e364706816aba3e25717850c26c9cd0d89d"))
+        assertThat(Utils.checksum(null), equalTo(""))
+    }
+
+    @Test
+    fun checksumsAreTheOnesOfTheHexDigest() {
+        for (data in STRINGS) {
+            assertThat(data, Utils.checksum(data), equalTo(referenceHex(data)))
+            assertThat(data, Utils.fieldChecksumWithoutHtmlMedia(data), equalTo(referenceHex(data).substring(0, 8).toLong(16)))
+        }
+    }
+
+    @Test
+    fun checksumIsUnsigned() {
+        // sha1("abc") starts with a9993e36: the sign bit of the first byte is set
+        assertThat(FieldChecksum.of("abc"), equalTo(0xa9993e36L))
+    }
+
+    @Test
+    fun notesKeepTheirChecksum() {
+        val note = addNoteUsingBasicModel("<b>café</b> 😀", "back")
+        col.updateFieldCache(longArrayOf(note.id))
+        assertThat(col.db.queryLongScalar("select csum from notes where id = ?", note.id), equalTo(referenceHex("café 😀").substring(0, 8).toLong(16)))
+    }
+
+    @Test
+    fun checksumIsTheOneParsedFromTheHexDigest() {
+        val fields = (0 until 100).map { "field number $it with some text" }
+        assertThat(fields.map { FieldChecksum.of(it) }, equalTo(fields.map { referenceHex(it).substring(0, 8).toLong(16) }))
+    }
+
+    companion object {
+        private val STRINGS = listOf(
+            "",
+            "a",
+            "front",
+            "café naïve 中文",
+            "emoji 😀 pair",
+            "unpaired \ud83d high and \ude00 low",
+            "\u0000\u007f\u0080߿ࠀ￿",
+            "long ".repeat(10_000)
+        )
+
+        /** The implementation of [Utils.checksum] before [FieldChecksum] */
+        fun referenceHex(data: String): String {
+            val digest = MessageDigest.getInstance("SHA1").digest(data.toByteArray(Charsets.UTF_8))
+            return BigInteger(1, digest).toString(16).padStart(40, '0')
+        }
+    }
+}
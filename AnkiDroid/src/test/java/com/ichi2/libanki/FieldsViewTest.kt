@@ -0,0 +1,64 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+
+class FieldsViewTest {
+    @Test
+    fun fieldsAreTheOnesOfSplit() {
+        for (flds in listOf("", "one", "front\u001fback", "\u001f", "a\u001f\u001fc\u001f", "\u001f\u001f\u001f")) {
+            val expected = flds.split("\u001f").toTypedArray()
+            val view = FieldsView(flds)
+            assertThat(view.size, equalTo(expected.size))
+            assertThat(view.toArray(), equalTo(expected))
+            for (ord in expected.indices) {
+                assertThat(view[ord], equalTo(expected[ord]))
+                assertThat(view.field(ord).toString(), equalTo(expected[ord]))
+                assertThat(view.length(ord), equalTo(expected[ord].length))
+                assertThat(view.contentEquals(ord, expected[ord]), equalTo(true))
+                assertThat(FieldsView.fieldAt(flds, ord), equalTo(expected[ord]))
+            }
+        }
+    }
+
+    @Test
+    fun contentEqualsComparesOnlyTheField() {
+        val view = FieldsView("front\u001fback")
+        assertThat(view.contentEquals(0, "front"), equalTo(true))
+        assertThat(view.contentEquals(0, "fron"), equalTo(false))
+        assertThat(view.contentEquals(0, "front\u001fback"), equalTo(false))
+        assertThat(view.contentEquals(1, "back"), equalTo(true))
+    }
+
+    @Test
+    fun fieldsCanBeMatchedWithoutCopy() {
+        val view = FieldsView("cat\u001fdog")
+        assertThat("^dog$".toRegex().toPattern().matcher(view.field(1)).matches(), equalTo(true))
+        assertThat("^dog$".toRegex().toPattern().matcher(view.field(0)).matches(), equalTo(false))
+    }
+
+    @Test(expected = IndexOutOfBoundsException::class)
+    fun missingFieldIsAnError() {
+        FieldsView("front\u001fback")[2]
+    }
+
+    @Test(expected = IndexOutOfBoundsException::class)
+    fun missingFieldAtIsAnError() {
+        FieldsView.fieldAt("front\u001fback", 2)
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import com.ichi2.libanki.template.ParsedNode
+import com.ichi2.testutils.BenchmarkReport
+import com.ichi2.utils.DiffEngine
+import com.ichi2.utils.JSONObject
+import org.junit.BeforeClass
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Micro-benchmarks of the libanki and utils code run for each note, card or search.
+ *
+ * Results are appended to `AnkiDroid/build/benchmarks/hotpaths.jsonl` with the median time per call. To judge a
+ * change, run the benchmark on the base commit and on the change, on the same machine, and compare the two lines of
+ * each operation:
+ * ```
+ * ./gradlew AnkiDroid:testPlayDebugUnitTest --tests "com.ichi2.libanki.HotPathsBenchmarkTest" \
+ *     -Dankidroid.benchmark.enabled=true -Dankidroid.benchmark.microIterations=30
+ * ```
+ */
+@RunWith(AndroidJUnit4::class)
+class HotPathsBenchmarkTest : RobolectricTest() {
+    @Test
+    fun hotPaths() {
+        val report = BenchmarkReport("hotpaths")
+
+        val fields = Utils.splitFields(FIELDS)
+        report.microbenchmark("Utils.splitFields", CALLS) { Utils.splitFields(FIELDS) }
+        report.microbenchmark("Utils.joinFields", CALLS) { Utils.joinFields(fields) }
+        report.microbenchmark("Utils.stripHTML", CALLS) { Utils.stripHTML(HTML) }
+        report.microbenchmark("Utils.stripHTMLMedia", CALLS) { Utils.stripHTMLMedia(HTML) }
+        // The chain of regular expressions which HtmlStripper replaced
+        report.microbenchmark("Utils.stripHTMLMediaWithPatterns", CALLS) { Utils.stripHTMLMediaWithPatterns(HTML, " $1 ") }
+        report.microbenchmark("Utils.checksum", CALLS) { Utils.checksum(HTML) }
+        report.microbenchmark("FieldChecksum.of", CALLS) { FieldChecksum.of(HTML) }
+        // Parsing the hexadecimal digest, as the field checksum was computed before FieldChecksum
+        report.microbenchmark("FieldChecksum.ofHexDigest", CALLS) { FieldChecksumTest.referenceHex(HTML).substring(0, 8).toLong(16) }
+
+        val parsed = ParsedNode.parse_inner(TEMPLATE)
+        val values = mapOf("Front" to "front <b>text</b>", "Back" to "back", "Extra" to "")
+        report.microbenchmark("ParsedNode.parse_inner", CALLS) { ParsedNode.parse_inner(TEMPLATE) }
+        report.microbenchmark("ParsedNode.render", CALLS) { parsed.render(values, true, targetContext) }
+
+        val finder = Finder(col)
+        val tokens = finder._tokenize(QUERY)
+        report.microbenchmark("Finder._tokenize", CALLS) { finder._tokenize(QUERY) }
+        report.microbenchmark("Finder._where", CALLS / 10) { finder._where(tokens) }
+
+        report.microbenchmark("Decks.path", CALLS) { Decks.path(DECK) }
+        report.microbenchmark("Decks.parent", CALLS) { Decks.parent(DECK) }
+        report.microbenchmark("Decks.normalizeName", CALLS) { Decks.normalizeName(DECK) }
+
+        val deck = col.decks.get(1).toString()
+        val model = col.models.byName("Basic")!!.toString()
+        report.microbenchmark("JSONObject(deck)", CALLS / 10) { JSONObject(deck) }
+        report.microbenchmark("JSONObject(model)", CALLS / 10) { JSONObject(model) }
+
+        val diffEngine = DiffEngine()
+        report.microbenchmark("DiffEngine.diffedHtmlStrings", CALLS / 10) { diffEngine.diffedHtmlStrings(TYPED, CORRECT) }
+
+        report.write()
+    }
+
+    /** [DB.executeManyNoTransaction] with a cached statement, against one execSQL per row as it used to do */
+    @Test
+    fun inserts() {
+        val report = BenchmarkReport("hotpaths")
+        val db = col.db
+        db.execute("create table bench_rows (id integer primary key, a, b)")
+        val rows = (0 until INSERTED_ROWS).map { arrayOf<Any>("front $it", it) }
+
+        report.measure("DB.execSQL per row") {
+            db.executeInTransaction { rows.forEach { db.database.execSQL("insert into bench_rows (a, b) values (?, ?)", it) } }
+        }
+        report.measure("DB.executeManyNoTransaction") {
+            db.executeInTransaction { db.executeManyNoTransaction("insert into bench_rows (a, b) values (?, ?)", rows) }
+        }
+
+        report.write()
+    }
+
+    companion object {
+        private const val CALLS = 2_000
+        private const val INSERTED_ROWS = 5_000
+
+        @JvmStatic
+        @BeforeClass
+        fun assumeBenchmarksEnabled() = BenchmarkReport.assumeEnabled()
+
+        private const val FIELDS = "front <b>text</b>\u001fback text\u001f<img src=\"image.jpg\">\u001f\u001fextra [sound:a.mp3]"
+        private const val HTML = "<div>The <b>quick</b> brown&nbsp;fox <!-- note --> jumps <img src=\"fox.jpg\"> over the lazy dog</div>"
+        private const val TEMPLATE = "{{Front}}<hr id=answer>{{#Extra}}<div class=extra>{{Extra}}</div>{{/Extra}}{{^Back}}none{{/Back}}{{Back}}"
+        private const val QUERY = "deck:Default is:due -is:suspended prop:ivl>5 front* added:7 (flag:1 or flag:2)"
+        private const val DECK = "Language::Japanese::Vocabulary::N5"
+        private const val TYPED = "the quik brown fox"
+        private const val CORRECT = "the quick brown fox"
+    }
+}
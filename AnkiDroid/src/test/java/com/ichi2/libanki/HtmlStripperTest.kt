@@ -0,0 +1,107 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.*
+
+@RunWith(AndroidJUnit4::class)
+class HtmlStripperTest : RobolectricTest() {
+    @Test
+    fun fieldsAreStrippedAsByThePatterns() {
+        for (field in FIELDS) {
+            assertSameAsPatterns(field)
+        }
+    }
+
+    @Test
+    fun entitiesAreDecodedAsByThePatterns() {
+        assertSameAsPatterns("&amp; &lt;b&gt; &quot;q&quot; &nbsp;x&nbsp;")
+        assertSameAsPatterns("caf&eacute; &Eacute;t&eacute; &euro;5 &unknown; &amp")
+        assertSameAsPatterns("&#65;&#x42;&#X43; &#32;&#10;&#150; &#128512; &#0; &#xD800; &#99999999;")
+        assertSameAsPatterns("&am<b>p;</b> &&amp;; &#;")
+    }
+
+    @Test
+    fun markupFormedByAnEarlierPassUsesThePatterns() {
+        val splitTag = "<b<!-- > -->>bold"
+        assertThat(HtmlStripper.stripHtml(splitTag), nullValue())
+        assertThat(Utils.stripHTML(splitTag), equalTo(Utils.stripHTMLWithPatterns(splitTag)))
+
+        val styleInScript = "<script>a<style>b</script>c</style>d"
+        assertThat(HtmlStripper.stripHtml(styleInScript), nullValue())
+        assertThat(Utils.stripHTML(styleInScript), equalTo("ad"))
+    }
+
+    @Test
+    fun onlyReplacementsOfTheFileNameAreHandled() {
+        assertThat(HtmlStripper.stripHtmlMedia("<img src=a.jpg>", " $1 "), equalTo(" a.jpg "))
+        assertThat(HtmlStripper.stripHtmlMedia("<img src=a.jpg>", "\\$"), equalTo("$"))
+        assertThat(HtmlStripper.stripHtmlMedia("<img src=a.jpg>", "$0"), nullValue())
+        assertThat(HtmlStripper.stripHtmlMedia("<img src=a.jpg>", "<$1>"), nullValue())
+        assertThat(Utils.stripHTMLMedia("<img src=a.jpg>", "[$0]"), equalTo("[]"))
+    }
+
+    @Test
+    fun randomMarkupIsStrippedAsByThePatterns() {
+        val random = Random(42)
+        repeat(20_000) {
+            val html = StringBuilder()
+            repeat(random.nextInt(12)) { html.append(TOKENS[random.nextInt(TOKENS.size)]) }
+            assertSameAsPatterns(html.toString())
+        }
+    }
+
+    @Test
+    fun defaultMediaReplacementIsTheOneOfThePatterns() {
+        for (field in FIELDS) {
+            assertThat(field, Utils.stripHTMLMedia(field), equalTo(Utils.stripHTMLMediaWithPatterns(field, " $1 ")))
+        }
+    }
+
+    private fun assertSameAsPatterns(html: String) {
+        val escaped = html.replace("\n", "\\n")
+        assertThat(escaped, Utils.stripHTML(html), equalTo(Utils.stripHTMLWithPatterns(html)))
+        for (replacement in listOf(" $1 ", " ")) {
+            assertThat(escaped, Utils.stripHTMLMedia(html, replacement), equalTo(Utils.stripHTMLMediaWithPatterns(html, replacement)))
+        }
+    }
+
+    companion object {
+        private val FIELDS = listOf(
+            "plain text without markup",
+            "<div>Hello <b>world</b><br></div>",
+            "<span style=\"color: rgb(255, 0, 0);\">rouge</span>&nbsp;[sound:rouge.mp3]",
+            "<div><img src=\"paste-4f2a1b.jpg\"></div><div>caption&nbsp;&amp; more</div>",
+            "<IMG SRC='upper.png' width=\"200\"/>",
+            "<!-- comment --><style>.card { color: black; }</style><p>Text</p><script>var a = 1 < 2;</script>",
+            "<ul><li>one</li><li>two &lt;three&gt;</li></ul>",
+            "a < b and c > d",
+            "<table><tr><td>der</td><td>Hund</td></tr></table>\n<i>noun</i>",
+            "unterminated <b"
+        )
+
+        private val TOKENS = listOf(
+            "<", ">", "<!--", "-->", "<style>", "</style>", "<STYLE a>", "<script>", "</script>", "<scr", "ipt>",
+            "<img src=a.jpg>", "<IMG SRC=\"b.png\" alt='x'>", "<img src=''>", "<img src='c<d>", "<img src=x src=y>",
+            "src=", "\"", "'", "<b>", "</b>", "x", " ", "\n", "<sty", "le>", "&amp;", "&#65;", "&nbsp;", "<br/>"
+        )
+    }
+}
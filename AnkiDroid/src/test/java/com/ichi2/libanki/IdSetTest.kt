@@ -0,0 +1,71 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class IdSetTest : RobolectricTest() {
+    @Test
+    fun smallSetsAreInlined() {
+        IdSet.of(col.db, listOf(1L, 2L, 3L)).use { ids ->
+            assertThat(ids.isTable, equalTo(false))
+            assertThat(ids.sql, equalTo(Utils.ids2str(listOf(1L, 2L, 3L))))
+        }
+    }
+
+    @Test
+    fun largeSetsAreStoredInATemporaryTable() {
+        val ids = LongArray(IdSet.TEMP_TABLE_THRESHOLD * 2) { it.toLong() / 2 }
+        val table: String
+        IdSet.of(col.db, ids).use { idSet ->
+            assertThat(idSet.isTable, equalTo(true))
+            assertThat(idSet.sql, not(containsString(",")))
+            table = idSet.sql.substringAfter("temp.").removeSuffix(")")
+            assertThat("duplicates are ignored", col.db.queryScalar("select count() from temp.$table"), equalTo(IdSet.TEMP_TABLE_THRESHOLD))
+            assertThat(col.db.queryScalar("select count() from (select 1 where 7 in ${idSet.sql})"), equalTo(1))
+        }
+        assertThat("table is dropped on close", col.db.queryScalar("select count() from sqlite_temp_master where name = ?", table), equalTo(0))
+    }
+
+    @Test
+    fun manyCardsCanBeRemoved() {
+        val cids = ArrayList<Long>()
+        for (i in 0 until IdSet.TEMP_TABLE_THRESHOLD + 10) {
+            cids.addAll(addNoteUsingBasicModel("front $i", "back").cids())
+        }
+        val kept = addNoteUsingBasicModel("kept", "back")
+
+        col.remCards(cids)
+
+        assertThat(col.cardCount(), equalTo(1))
+        assertThat(col.noteCount(), equalTo(1))
+        assertThat(col.db.queryLongScalar("select id from notes"), equalTo(kept.id))
+    }
+
+    @Test
+    fun tagsCanBeAddedToManyNotes() {
+        val nids = (0 until IdSet.TEMP_TABLE_THRESHOLD + 10).map { addNoteUsingBasicModel("front $it", "back").id }
+
+        col.tags.bulkAdd(nids, "many")
+
+        assertThat(col.findNotes("tag:many").size, equalTo(nids.size))
+    }
+}
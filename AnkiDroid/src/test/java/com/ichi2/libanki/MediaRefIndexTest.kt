@@ -0,0 +1,110 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class MediaRefIndexTest : RobolectricTest() {
+    private val index: MediaRefIndex
+        get() = col.media.refIndex
+
+    @Test
+    fun referencesOfNotesAreIndexed() {
+        val first = addNoteUsingBasicModel("<img src=\"a.jpg\">", "[sound:b.mp3]")
+        addNoteUsingBasicModel("<img src=\"c.jpg\"> <img src=\"http://example.com/remote.jpg\">", "")
+
+        assertThat(index.allReferences(), containsInAnyOrder("a.jpg", "b.mp3", "c.jpg"))
+        assertThat(index.referencesOf(listOf(first.id)), containsInAnyOrder("a.jpg", "b.mp3"))
+        assertThat(index.notesReferencing("c.jpg"), not(contains(first.id)))
+    }
+
+    @Test
+    fun onlyChangedNotesAreScannedAgain() {
+        val note = addNoteUsingBasicModel("<img src=\"a.jpg\">", "")
+        addNoteUsingBasicModel("<img src=\"b.jpg\">", "")
+        index.refresh()
+        assertThat("nothing changed", index.refresh(), equalTo(0))
+
+        note.setField(1, "<img src=\"edited.jpg\">")
+        note.flush()
+
+        assertThat(index.refresh(), equalTo(1))
+        assertThat(index.allReferences(), containsInAnyOrder("a.jpg", "edited.jpg", "b.jpg"))
+    }
+
+    @Test
+    fun savingANoteDoesNotWriteTheIndex() {
+        val note = addNoteUsingBasicModel("<img src=\"a.jpg\">", "")
+        index.refresh()
+
+        note.setField(1, "<img src=\"edited.jpg\">")
+        note.flush()
+
+        assertThat(col.media.db.queryScalar("select count() from note_refs_mod where nid = ?", note.id), equalTo(1))
+        assertThat("the note is scanned again even if its mod did not change", index.refresh(), equalTo(1))
+    }
+
+    @Test
+    fun notesChangedBehindTheIndexAreScannedAgain() {
+        val note = addNoteUsingBasicModel("<img src=\"a.jpg\">", "")
+        index.refresh()
+
+        // e.g. a sync
+        col.db.execute("update notes set flds = ?, mod = mod + 1 where id = ?", "<img src=\"synced.jpg\">\u001f", note.id)
+
+        assertThat(index.allReferences(), contains("synced.jpg"))
+    }
+
+    @Test
+    fun removedNotesAreForgotten() {
+        val note = addNoteUsingBasicModel("<img src=\"a.jpg\">", "")
+        addNoteUsingBasicModel("<img src=\"b.jpg\">", "")
+        index.refresh()
+
+        col.remNotes(longArrayOf(note.id))
+
+        assertThat(index.allReferences(), contains("b.jpg"))
+        assertThat(index.notesReferencing("a.jpg"), empty())
+    }
+
+    @Test
+    fun indexingIsNotAModificationOfTheMedia() {
+        addNoteUsingBasicModel("<img src=\"a.jpg\">", "")
+        val modifications = col.media.db.modificationCount
+
+        index.rebuild()
+        index.allReferences()
+
+        assertThat(col.media.db.modificationCount, equalTo(modifications))
+    }
+
+    @Test
+    fun rebuildScansEveryNote() {
+        addNoteUsingBasicModel("<img src=\"a.jpg\">", "")
+        addNoteUsingBasicModel("<img src=\"b.jpg\">", "")
+        index.refresh()
+
+        index.rebuild()
+
+        assertThat(index.refresh(), equalTo(0))
+        assertThat(index.allReferences(), containsInAnyOrder("a.jpg", "b.jpg"))
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class QueryProfilerTest : RobolectricTest() {
+
+    @Before
+    override fun setUp() {
+        super.setUp()
+        QueryProfiler.reset()
+        QueryProfiler.isEnabled = true
+    }
+
+    @After
+    override fun tearDown() {
+        QueryProfiler.isEnabled = false
+        QueryProfiler.slowQueryThresholdMs = 50
+        QueryProfiler.reset()
+        super.tearDown()
+    }
+
+    @Test
+    fun literalsAreRemovedFromTheShape() {
+        assertThat(
+            QueryProfiler.shapeOf("select id from cards where nid in (1, 2,3) and did = 12 and tags like '%it''s%'"),
+            equalTo("select id from cards where nid in (?) and did = ? and tags like ?")
+        )
+        assertThat(QueryProfiler.shapeOf("select  c1,\n c2 from t2 where x = -1.5"), equalTo("select c1, c2 from t2 where x = -?"))
+    }
+
+    @Test
+    fun executionsOfTheSameShapeAreCountedTogether() {
+        col.db.queryScalar("select count() from cards where id in (1, 2)")
+        col.db.queryScalar("select count() from cards where id in (3)")
+
+        val stats = QueryProfiler.stats("select count() from cards where id in (4, 5, 6)")!!
+        assertThat(stats.count, equalTo(2))
+        assertThat(stats.caller, containsString(QueryProfilerTest::class.java.name))
+    }
+
+    @Test
+    fun rowsReadAreRecorded() {
+        addNoteUsingBasicModel("a", "b")
+        addNoteUsingBasicModel("c", "d")
+        addNoteUsingBasicModel("e", "f")
+
+        col.db.queryLongList("select id from cards")
+
+        assertThat(QueryProfiler.stats("select id from cards")!!.rows, equalTo(3L))
+    }
+
+    @Test
+    fun executeManyIsRecordedOncePerBatch() {
+        col.db.execute("create table if not exists profiled (a)")
+        col.db.executeMany("insert into profiled values (?)", listOf(arrayOf<Any>(1), arrayOf<Any>(2)))
+
+        val stats = QueryProfiler.stats("insert into profiled values (?)")!!
+        assertThat(stats.count, equalTo(1))
+        assertThat(stats.rows, equalTo(2L))
+    }
+
+    @Test
+    fun slowQueriesAreLoggedWithTheirPlan() {
+        QueryProfiler.slowQueryThresholdMs = 0
+        col.db.queryScalar("select count() from cards where data = 'private note text'")
+
+        val slowQuery = QueryProfiler.slowQueries().last()
+        assertThat(slowQuery.shape, equalTo("select count() from cards where data = ?"))
+        assertThat("missing index on data: the table is scanned", slowQuery.plan, hasItem(containsString("SCAN")))
+        assertThat(QueryProfiler.dump(), containsString("select count() from cards where data = ?"))
+        assertThat("literals are not in the debug info", QueryProfiler.dump(), not(containsString("private note text")))
+    }
+
+    @Test
+    fun nothingIsRecordedWhenDisabled() {
+        QueryProfiler.isEnabled = false
+        col.db.queryScalar("select count() from notes")
+
+        assertThat(QueryProfiler.stats(), empty())
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.R
+import com.ichi2.anki.RobolectricTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class RowSnapshotTest : RobolectricTest() {
+    @Test
+    fun smallSnapshotsRestoreChangedCards() {
+        val card = addNoteUsingBasicModel("front", "back").firstCard()
+        val before = RowSnapshot.cards(col.db, longArrayOf(card.id))
+        assertThat(before.isSpilled, equalTo(false))
+        assertThat(before.size, equalTo(1))
+
+        col.db.execute("update cards set queue = ?, mod = ?, usn = ? where id = ?", Consts.QUEUE_TYPE_SUSPENDED, 1, 5, card.id)
+        val now = col.time.intTime()
+        before.use { it.restore(col) }
+
+        assertThat(col.db.queryScalar("select queue from cards where id = ?", card.id), equalTo(card.queue))
+        assertThat("restored cards are modified now", col.db.queryLongScalar("select mod from cards where id = ?", card.id), greaterThanOrEqualTo(now))
+        assertThat(col.db.queryScalar("select usn from cards where id = ?", card.id), equalTo(col.usn()))
+    }
+
+    @Test
+    fun modificationTimeCanBePreserved() {
+        val card = addNoteUsingBasicModel("front", "back").firstCard()
+        col.db.execute("update cards set mod = ?, usn = ? where id = ?", 1, 5, card.id)
+        val before = RowSnapshot.cards(col.db, longArrayOf(card.id))
+
+        col.db.execute("update cards set queue = ?, mod = ?, usn = ? where id = ?", Consts.QUEUE_TYPE_SUSPENDED, 2, 6, card.id)
+        before.use { it.restore(col, true) }
+
+        assertThat(col.db.queryScalar("select queue from cards where id = ?", card.id), equalTo(card.queue))
+        assertThat(col.db.queryLongScalar("select mod from cards where id = ?", card.id), equalTo(1L))
+        assertThat(col.db.queryScalar("select usn from cards where id = ?", card.id), equalTo(5))
+    }
+
+    @Test
+    fun largeSnapshotsAreStoredInATemporaryTable() {
+        val nids = LongArray(RowSnapshot.IN_MEMORY_MAX_ROWS + 10) { addNoteUsingBasicModel("front $it", "back").id }
+        val snapshot = RowSnapshot.cardsOfNotes(col.db, nids)
+        assertThat(snapshot.isSpilled, equalTo(true))
+        assertThat(snapshot.size, equalTo(nids.size))
+        assertThat(col.db.queryScalar("select count() from sqlite_temp_master where name like 'undo_%'"), equalTo(1))
+
+        col.db.execute("update cards set queue = ?, usn = ?", Consts.QUEUE_TYPE_SUSPENDED, 5)
+        snapshot.restore(col)
+        snapshot.close()
+
+        assertThat(col.db.queryScalar("select count() from cards where queue = ?", Consts.QUEUE_TYPE_SUSPENDED), equalTo(0))
+        assertThat(col.db.queryScalar("select count() from cards where usn = ?", col.usn()), equalTo(nids.size))
+        assertThat("table is dropped on close", col.db.queryScalar("select count() from sqlite_temp_master where name like 'undo_%'"), equalTo(0))
+    }
+
+    @Test
+    fun deletedRowsAreInsertedAgain() {
+        val note = addNoteUsingBasicAndReversedModel("front", "back")
+        val nids = longArrayOf(note.id)
+        val notes = RowSnapshot.notes(col.db, nids)
+        val cards = RowSnapshot.cardsOfNotes(col.db, nids)
+
+        col.remNotes(nids)
+        assertThat(col.noteCount(), equalTo(0))
+        notes.restore(col, true)
+        cards.restore(col, true)
+
+        assertThat(col.noteCount(), equalTo(1))
+        assertThat(col.cardCount(), equalTo(2))
+        assertThat(col.getNote(note.id).getItem("Front"), equalTo("front"))
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun discardedSnapshotsCannotBeRestored() {
+        val card = addNoteUsingBasicModel("front", "back").firstCard()
+        val snapshot = RowSnapshot.cards(col.db, longArrayOf(card.id))
+        snapshot.close()
+        snapshot.restore(col)
+    }
+
+    @Test
+    fun closingTheCollectionDiscardsSnapshots() {
+        val nids = LongArray(RowSnapshot.IN_MEMORY_MAX_ROWS + 10) { addNoteUsingBasicModel("front $it", "back").id }
+        val snapshot = RowSnapshot.cardsOfNotes(col.db, nids)
+        col.markUndo(object : UndoAction(R.string.card_browser_mark_card) {
+            override fun undo(col: Collection): Card? = null
+            override fun discard() = snapshot.close()
+        })
+
+        col.close()
+        col.reopen()
+
+        assertThat(col.undoAvailable(), equalTo(false))
+        assertThat(col.db.queryScalar("select count() from sqlite_temp_master where name like 'undo_%'"), equalTo(0))
+    }
+}
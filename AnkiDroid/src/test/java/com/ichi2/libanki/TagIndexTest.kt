@@ -0,0 +1,149 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class TagIndexTest : RobolectricTest() {
+    @Test
+    fun indexFollowsTagChanges() {
+        val first = addNoteUsingBasicModel("one", "back")
+        first.setTagsFromStr("foo parent::child")
+        first.flush()
+        val second = addNoteUsingBasicModel("two", "back")
+        second.setTagsFromStr("Food")
+        second.flush()
+        buildIndex()
+        assertSameAsLike()
+
+        // saving a note
+        first.setTagsFromStr("bar")
+        first.flush()
+        assertSameAsLike()
+
+        // bulk operations
+        col.tags.bulkAdd(listOf(first.id, second.id), "foo")
+        assertSameAsLike()
+        col.tags.bulkRem(listOf(second.id), "Food")
+        assertSameAsLike()
+
+        // changes which bypass the collection
+        col.db.execute("update notes set tags = ' PARENT::other ' where id = ?", second.id)
+        assertSameAsLike()
+        col.remNotes(longArrayOf(first.id))
+        assertSameAsLike()
+
+        // changes applied to the index
+        col.save()
+        assertSameAsLike()
+    }
+
+    @Test
+    fun searchesOnlyRead() {
+        val note = addNoteUsingBasicModel("front", "back")
+        assertThat("the index is built when the collection is saved", col.tags.notesMatching("foo"), nullValue())
+        col.save()
+        assertThat(col.tags.notesMatching("foo"), empty())
+
+        note.setTagsFromStr("foo")
+        note.flush()
+        assertThat(col.tags.notesMatching("foo"), contains(note.id))
+        assertThat("changes are applied by the next save", pendingChanges(), equalTo(1))
+
+        col.save()
+        assertThat(pendingChanges(), equalTo(0))
+        assertThat(col.tags.notesMatching("foo"), contains(note.id))
+    }
+
+    @Test
+    fun prefixSearches() {
+        for (tags in listOf("parent", "parent::a", "parent::b", "parental", "other")) {
+            val note = addNoteUsingBasicModel(tags, "back")
+            note.setTagsFromStr(tags)
+            note.flush()
+        }
+        buildIndex()
+        assertThat(col.findNotes("tag:parent::*").size, equalTo(2))
+        assertThat(col.findNotes("tag:Parent*").size, equalTo(4))
+        assertSameAsLike()
+    }
+
+    @Test
+    fun searchesTheIndexCannotAnswer() {
+        val note = addNoteUsingBasicModel("front", "back")
+        note.setTagsFromStr("a_b")
+        note.flush()
+        assertThat(col.tags.notesMatching("a_b"), nullValue())
+        assertThat(col.tags.notesMatching("a*b"), nullValue())
+        assertThat(col.tags.notesMatching("*"), nullValue())
+        assertThat(col.findNotes("tag:a_b").size, equalTo(1))
+        buildIndex()
+
+        col.db.database.beginTransaction()
+        try {
+            col.db.execute("update notes set tags = ' a ' where id = ?", note.id)
+            assertThat(col.tags.notesMatching("a"), contains(note.id))
+            col.save()
+        } finally {
+            col.db.database.endTransaction()
+        }
+        assertThat("the changes are rolled back", col.tags.notesMatching("a"), empty())
+
+        col.db.execute("update notes set tags = 'a' where id = ?", note.id)
+        assertThat("irregular tags", col.tags.notesMatching("a"), nullValue())
+        assertThat(col.findNotes("tag:a").size, equalTo(1))
+    }
+
+    @Test
+    fun canonifyKeepsTheRegisteredCase() {
+        col.tags.register(listOf("Parent::Child"))
+        assertThat(col.tags.canonify(listOf("parent::child", "new")), contains("Parent::Child", "new"))
+    }
+
+    /** Searches with the index, so that saving the collection builds it */
+    private fun buildIndex() {
+        col.tags.notesMatching("any")
+        col.save()
+    }
+
+    private fun pendingChanges() = col.db.queryScalar("select count() from temp.tag_index_changes")
+
+    /** Checks the index gives the results of comparing the tags of each note */
+    private fun assertSameAsLike() {
+        val tags = col.db.queryStringList("select distinct tags from notes").flatMap { it.trim().split(' ') }
+            .filter { it.isNotEmpty() }.toSet() + listOf("missing", "FOO")
+        for (tag in tags) {
+            for (search in listOf(tag, tag.substring(0, (tag.length + 1) / 2) + "*")) {
+                val indexed = col.tags.notesMatching(search)
+                assertThat("tag:$search is indexed", indexed, notNullValue())
+                assertThat("tag:$search", indexed!!.sorted(), equalTo(notesLike(search)))
+            }
+        }
+    }
+
+    private fun notesLike(search: String): List<Long> {
+        var pattern = "% " + search.replace("*", "%")
+        if (!pattern.endsWith("%")) {
+            pattern += " %"
+        }
+        return col.db.queryLongList("select id from notes where tags like ? order by id", pattern)
+    }
+}
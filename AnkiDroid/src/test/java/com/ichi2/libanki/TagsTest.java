@@ -20,6 +20,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import com.ichi2.anki.RobolectricTest;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
@@ -80,4 +82,43 @@ public class TagsTest extends RobolectricTest {
         assertEquals(" Todo ", tags.addToStr("Todo", ""));
         assertEquals(" Needs Revision Todo ", tags.addToStr("", "Todo todo Needs Revision"));
     }
+
+    @Test
+    public void test_bulk_add_and_remove() {
+        Collection col = getCol();
+        List<Long> nids = new ArrayList<>();
+        for (int i = 0; i < Tags.BULK_BATCH_SIZE * 2 + 10; i++) {
+            Note note = addNoteUsingBasicModel("front " + i, "back");
+            if (i % 2 == 0) {
+                note.setTagsFromStr("Existing");
+                note.flush();
+            }
+            nids.add(note.getId());
+        }
+        col.getTags().register(Collections.singletonList("Shared"));
+
+        col.getTags().bulkAdd(nids, "shared existing", true);
+
+        assertEquals(col.noteCount(), col.findNotes("tag:shared tag:existing").size());
+        assertEquals(" Existing Shared ", col.getNote(nids.get(1)).stringTags());
+        assertFalse("tags are registered with their existing case", col.getTags().all().contains("shared"));
+
+        col.getTags().bulkRem(nids.subList(0, 10), "exist*");
+        assertEquals(10, col.findNotes("-tag:existing").size());
+        assertEquals(" Shared ", col.getNote(nids.get(0)).stringTags());
+    }
+
+    @Test
+    public void test_bulk_add_keeps_unchanged_notes() {
+        Collection col = getCol();
+        Note note = addNoteUsingBasicModel("front", "back");
+        note.setTagsFromStr("axb");
+        note.flush();
+        col.getDb().execute("update notes set mod = 1");
+
+        // "a_b" is a like pattern which matches "axb", but the note does not have the tag "a_b"
+        col.getTags().bulkRem(Collections.singletonList(note.getId()), "a_b");
+
+        assertEquals(1, col.getDb().queryLongScalar("select mod from notes"));
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import org.apache.commons.compress.archivers.zip.ZipFile as CommonsZipFile
+
+class ZipFileTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun compressedMediaIsStored() {
+        assertThat(ZipFile.isCompressed("image.JPG"), equalTo(true))
+        assertThat(ZipFile.isCompressed("audio.ogg"), equalTo(true))
+        assertThat(ZipFile.isCompressed("drawing.svg"), equalTo(false))
+        assertThat(ZipFile.isCompressed("no_extension"), equalTo(false))
+    }
+
+    @Test
+    fun deferredEntriesAreWrittenOnClose() {
+        val text = file("notes.txt", "compressible ".repeat(10_000))
+        val image = file("image.jpg", "not really a jpeg")
+        val many = (0 until 50).map { file("file$it.txt", "content $it") }
+        val output = File(folder.root, "export.apkg")
+
+        val zip = ZipFile(output.path)
+        zip.write(text.path, "collection.anki2")
+        zip.writeDeferred(text.path, "0")
+        zip.writeDeferred(image.path, "1")
+        many.forEachIndexed { i, f -> zip.writeDeferred(f.path, (i + 2).toString()) }
+        zip.writeStr("media", "{}")
+        zip.close()
+
+        CommonsZipFile(output).use { archive ->
+            assertThat(archive.getEntry("0").method, equalTo(ZipArchiveEntry.DEFLATED))
+            assertThat(archive.getEntry("1").method, equalTo(ZipArchiveEntry.STORED))
+            assertThat(read(archive, "0"), equalTo(text.readText()))
+            assertThat(read(archive, "1"), equalTo(image.readText()))
+            assertThat(read(archive, "collection.anki2"), equalTo(text.readText()))
+            for (i in many.indices) {
+                assertThat(read(archive, (i + 2).toString()), equalTo("content $i"))
+            }
+        }
+        assertThat("intermediate files are removed", folder.root.list()!!.filter { it.endsWith(".scatter") }, empty())
+    }
+
+    @Test
+    fun storedMediaIsWrittenStraightAway() {
+        val image = file("image.jpg", "not really a jpeg ".repeat(1000))
+        val output = File(folder.root, "export.apkg")
+
+        val zip = ZipFile(output.path)
+        zip.writeDeferred(image.path, "0")
+        assertThat("no intermediate copy", output.length(), greaterThan(image.length()))
+        zip.close()
+
+        CommonsZipFile(output).use { archive ->
+            assertThat(archive.getEntry("0").method, equalTo(ZipArchiveEntry.STORED))
+            assertThat(read(archive, "0"), equalTo(image.readText()))
+        }
+    }
+
+    private fun file(name: String, content: String): File {
+        return File(folder.root, name).apply { writeText(content) }
+    }
+
+    private fun read(archive: CommonsZipFile, name: String): String {
+        return archive.getInputStream(archive.getEntry(name)).use { it.readBytes().toString(Charsets.UTF_8) }
+    }
+}
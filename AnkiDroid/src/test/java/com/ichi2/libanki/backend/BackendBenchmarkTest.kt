@@ -0,0 +1,159 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.backend
+
+import com.ichi2.anki.AnkiDroidApp
+import com.ichi2.anki.CollectionHelper
+import com.ichi2.anki.RobolectricTest
+import com.ichi2.libanki.AnkiPackageExporter
+import com.ichi2.libanki.Consts
+import com.ichi2.libanki.Storage
+import com.ichi2.libanki.importer.AnkiPackageImporter
+import com.ichi2.testutils.BenchmarkReport
+import com.ichi2.testutils.CollectionGenerator
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.junit.After
+import org.junit.Before
+import org.junit.BeforeClass
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.ParameterizedRobolectricTestRunner
+import java.io.File
+
+/**
+ * Times the main collection operations with each storage backend, on a generated collection.
+ *
+ * Only runs when benchmarks are enabled, see [BenchmarkReport.assumeEnabled]. The collection is small by default.
+ * To compare backends on a realistic collection:
+ * ```
+ * ./gradlew AnkiDroid:testPlayDebugUnitTest --tests "com.ichi2.libanki.backend.BackendBenchmarkTest" \
+ *     -Dankidroid.benchmark.enabled=true -Dankidroid.benchmark.notes=20000 -Dankidroid.benchmark.decks=200 -Dankidroid.benchmark.backends=java,rust,rustV16
+ * ```
+ * Results are appended to `AnkiDroid/build/benchmarks/backends.jsonl`, one line per backend and operation.
+ */
+@RunWith(ParameterizedRobolectricTestRunner::class)
+class BackendBenchmarkTest(private val mBackend: String) : RobolectricTest() {
+
+    override fun useInMemoryDatabase(): Boolean {
+        // the collection is closed and opened again
+        return false
+    }
+
+    override fun useLegacyHelper(): Boolean {
+        return mBackend == JAVA
+    }
+
+    @Before
+    override fun setUp() {
+        super.setUp()
+        AnkiDroidApp.TESTING_USE_V16_BACKEND = mBackend == RUST_V16
+    }
+
+    @After
+    override fun tearDown() {
+        try {
+            super.tearDown()
+        } finally {
+            AnkiDroidApp.TESTING_USE_V16_BACKEND = false
+        }
+    }
+
+    @Test
+    fun collectionOperations() {
+        val notes = BenchmarkReport.intProperty("notes", 200)
+        val decks = BenchmarkReport.intProperty("decks", 10)
+        val iterations = BenchmarkReport.iterations
+        val report = BenchmarkReport("backends")
+            .parameter("backend", mBackend)
+            .parameter("notes", notes)
+            .parameter("decks", decks)
+        val generated = report.time("generate") { generate(notes, decks) }
+        // The Rust backend falls back to Java if it can't be loaded
+        report.parameter("implementation", col.backend.javaClass.simpleName)
+
+        repeat(iterations) {
+            CollectionHelper.getInstance().closeCollection(false, "BackendBenchmarkTest")
+            report.time("open") { col }
+        }
+        report.measure("deckDueTree") { col.sched.deckDueTree() }
+        report.measure("findCards") {
+            for (search in SEARCHES) {
+                col.findCards(search)
+            }
+        }
+        col.reset()
+        report.measure("answerCard") {
+            for (i in 0 until ANSWERS) {
+                val card = col.sched.card ?: break
+                col.sched.answerCard(card, Consts.BUTTON_THREE)
+            }
+        }
+        report.measure("genCards") {
+            for (mid in generated.mids) {
+                col.genCards(col.db.queryLongList("select id from notes where mid = ?", mid), mid)
+            }
+        }
+
+        val apkg = File(targetContext.cacheDir, "benchmark.apkg")
+        report.measure("export") { AnkiPackageExporter(col, true, false).exportInto(apkg.absolutePath, targetContext) }
+        for (i in 0 until iterations) {
+            val dir = File(targetContext.cacheDir, "benchmark-import-$i")
+            dir.mkdirs()
+            val target = Storage.Collection(targetContext, File(dir, "collection.anki2").absolutePath)
+            try {
+                report.time("import") { AnkiPackageImporter(target, apkg.absolutePath).run() }
+                assertThat(target.noteCount(), equalTo(notes))
+            } finally {
+                target.close()
+            }
+        }
+        report.write()
+    }
+
+    /** Generates [notes] notes in [decks] decks below the selected deck, with enough new cards per day to review them */
+    private fun generate(notes: Int, decks: Int): CollectionGenerator.Generated {
+        val generated = CollectionGenerator(col, CollectionGenerator.Profile(notes = notes, decks = decks)).generate()
+        col.decks.select(col.decks.id(CollectionGenerator.ROOT_DECK))
+        val conf = col.decks.getConf(1)!!
+        conf.getJSONObject("new").put("perDay", notes)
+        col.decks.save(conf)
+        return generated
+    }
+
+    companion object {
+        private const val JAVA = "java"
+        private const val RUST_V16 = "rustV16"
+
+        /** Cards answered per iteration of "answerCard" */
+        private const val ANSWERS = 50
+
+        private val SEARCHES = listOf(
+            "deck:${CollectionGenerator.ROOT_DECK}::*", "is:new", "tag:tag1*", "is:review prop:ivl>30", "word*",
+            "deck:\"${CollectionGenerator.ROOT_DECK}::Deck 1\" -is:suspended"
+        )
+
+        @JvmStatic
+        @BeforeClass
+        fun assumeBenchmarksEnabled() = BenchmarkReport.assumeEnabled()
+
+        /** The backends to benchmark: "java", "rust" and "rustV16", comma separated */
+        @JvmStatic
+        @ParameterizedRobolectricTestRunner.Parameters(name = "{0}")
+        fun backends(): List<Array<Any>> {
+            return BenchmarkReport.property("backends", "java,rust").split(',').map { arrayOf<Any>(it.trim()) }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.importer
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import com.ichi2.libanki.importer.NoteImporter.Companion.BATCH_SIZE
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+
+@RunWith(AndroidJUnit4::class)
+class TextImporterTest : RobolectricTest() {
+
+    @Test
+    fun duplicatesAcrossBatchesAreDetected() {
+        val rows = (0 until BATCH_SIZE * 2).map { "front$it\tback$it" } + "front5\tanother back"
+        val importer = importFile(rows)
+
+        assertThat(importer.total, equalTo(BATCH_SIZE * 2))
+        assertThat(col.noteCount(), equalTo(BATCH_SIZE * 2))
+        assertThat(importer.log, hasItem(containsString("front5")))
+        assertThat(col.db.queryString("select flds from notes where sfld = 'front5'"), equalTo("front5\u001fback5"))
+    }
+
+    @Test
+    fun reimportUpdatesExistingNotes() {
+        importFile((0 until BATCH_SIZE + 10).map { "front$it\tback$it" })
+
+        val importer = importFile((0 until BATCH_SIZE + 10).map { "front$it\tnew back$it" })
+
+        assertThat(col.noteCount(), equalTo(BATCH_SIZE + 10))
+        assertThat(importer.total, equalTo(BATCH_SIZE + 10))
+        assertThat(col.db.queryScalar("select count() from notes where flds like '%new back%'"), equalTo(BATCH_SIZE + 10))
+    }
+
+    @Test
+    fun addModeImportsDuplicatesOfEarlierBatches() {
+        val rows = (0 until BATCH_SIZE).map { "front$it\tback$it" } + "front5\tanother back"
+        val importer = TextImporter(col, writeFile(rows))
+        importer.initMapping()
+        importer.setImportMode(NoteImporter.ImportMode.ADD_MODE)
+        importer.run()
+
+        assertThat(col.noteCount(), equalTo(BATCH_SIZE + 1))
+    }
+
+    @Test
+    fun cancellingKeepsWrittenBatches() {
+        val importer = TextImporter(col, writeFile((0 until BATCH_SIZE * 3).map { "front$it\tback$it" }))
+        importer.initMapping()
+        importer.setCancelListener { true }
+        importer.run()
+
+        assertThat("the first batch is written before checking for cancellation", col.noteCount(), equalTo(BATCH_SIZE))
+        assertThat(col.cardCount(), equalTo(BATCH_SIZE))
+    }
+
+    private fun importFile(rows: List<String>): TextImporter {
+        val importer = TextImporter(col, writeFile(rows))
+        importer.initMapping()
+        importer.run()
+        return importer
+    }
+
+    private fun writeFile(rows: List<String>): String {
+        val file = File.createTempFile("import", ".txt")
+        file.deleteOnExit()
+        file.writeText(rows.joinToString("\n"))
+        return file.absolutePath
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.sched
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import com.ichi2.libanki.Consts
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class DueCountSnapshotsTest : RobolectricTest() {
+    @Test
+    fun snapshotIsReusedUntilTheCollectionChanges() {
+        addNoteUsingBasicModel("one", "back")
+        val first = DueCountSnapshots.get(col, null)
+        assertThat(DueCountSnapshots.get(col, null), sameInstance(first))
+
+        addNoteUsingBasicModel("two", "back")
+
+        val second = DueCountSnapshots.get(col, null)!!
+        assertThat(second, not(sameInstance(first)))
+        assertThat(second.tree[0].newCount, equalTo(2))
+    }
+
+    @Test
+    fun savingADeckOptionInvalidatesTheSnapshot() {
+        for (i in 0 until 5) {
+            addNoteUsingBasicModel("front $i", "back")
+        }
+        assertThat(DueCountSnapshots.tree(col)[0].newCount, equalTo(5))
+
+        // Only written to the database when the collection is flushed
+        val conf = col.decks.confForDid(1)
+        conf.getJSONObject("new").put("perDay", 3)
+        col.decks.save(conf)
+
+        assertThat(DueCountSnapshots.tree(col)[0].newCount, equalTo(3))
+    }
+
+    @Test
+    fun learningCountsExpireWhenACardBecomesDueWithinTheCollapseTime() {
+        val card = addNoteUsingBasicModel("front", "back").firstCard()
+        col.db.execute(
+            "update cards set type = ?, queue = ?, due = ?, left = ? where id = ?",
+            Consts.CARD_TYPE_LRN, Consts.QUEUE_TYPE_LRN, col.time.intTime() + 3600, 1001, card.id
+        )
+        val first = DueCountSnapshots.get(col, null)!!
+        assertThat(first.tree[0].lrnCount, equalTo(0))
+        assertThat(DueCountSnapshots.get(col, null), sameInstance(first))
+
+        collectionTime.addM(60)
+
+        val second = DueCountSnapshots.get(col, null)!!
+        assertThat(second, not(sameInstance(first)))
+        assertThat(second.tree[0].lrnCount, equalTo(1))
+    }
+
+    @Test
+    fun explicitInvalidation() {
+        val first = DueCountSnapshots.get(col, null)
+        DueCountSnapshots.invalidate()
+        assertThat(DueCountSnapshots.get(col, null), not(sameInstance(first)))
+    }
+
+    @Test
+    fun listKeepsTheCountsOfEachDeck() {
+        val child = addDeck("Parent::Child")
+        val note = addNoteUsingBasicModel("front", "back")
+        note.firstCard().apply {
+            did = child
+            flush()
+        }
+
+        val list = DueCountSnapshots.list(col)
+        val tree = DueCountSnapshots.tree(col)
+
+        val parentInList = list.first { it.fullDeckName == "Parent" }
+        val parentInTree = tree.first { it.fullDeckName == "Parent" }
+        assertThat(list.map { it.fullDeckName }, hasItems("Default", "Parent", "Parent::Child"))
+        assertThat(parentInTree.newCount, equalTo(1))
+        assertThat("grouping the tree does not change the list", parentInList, not(sameInstance(parentInTree)))
+        assertThat(list.first { it.fullDeckName == "Parent::Child" }.newCount, equalTo(1))
+        assertThat(tree.map { it.fullDeckName }, not(hasItem("Parent::Child")))
+    }
+
+    @Test
+    fun listenersAreNotifiedOfNewSnapshots() {
+        val received = ArrayList<DueCountSnapshots.Snapshot>()
+        val listener = DueCountSnapshots.Listener { _, snapshot -> received.add(snapshot) }
+        DueCountSnapshots.addListener(listener)
+        try {
+            val snapshot = DueCountSnapshots.get(col, null)
+            DueCountSnapshots.get(col, null)
+            assertThat(received, contains(snapshot))
+        } finally {
+            DueCountSnapshots.removeListener(listener)
+        }
+    }
+
+    @Test
+    fun cancelledComputationIsNotCached() {
+        DueCountSnapshots.invalidate()
+        assertThat(DueCountSnapshots.tree(col) { true }, nullValue())
+        assertThat(DueCountSnapshots.tree(col) { false }, not(nullValue()))
+    }
+}
@@ -1707,6 +1707,53 @@ public class SchedV2Test extends RobolectricTest {
     }
 
 
+    @Test
+    public void filteredDeckTermsKeepTheirOrderAndLimit() throws Exception {
+        Collection col = getColV2();
+        List<Card> cards = new ArrayList<>();
+        int[] dues = {30, 10, 20, 40};
+        for (int due : dues) {
+            Note note = col.newNote();
+            note.setItem("Front", "card " + due);
+            col.addNote(note);
+            Card c = note.cards().get(0);
+            c.setDue(due);
+            c.flush();
+            cards.add(c);
+        }
+        long did = FilteredDeckUtil.createFilteredDeck(col, "Filtered", "");
+        DeckConfig conf = col.getDecks().confForDid(did);
+        JSONArray terms = new JSONArray();
+        terms.put(new JSONArray(Arrays.asList("card:1", 2, Consts.DYN_DUE)));
+        terms.put(new JSONArray(Arrays.asList("", 1, Consts.DYN_BIGINT)));
+        conf.put("terms", terms);
+        col.getDecks().save(conf);
+
+        col.getSched().rebuildDyn(did);
+
+        for (Card c : cards) {
+            c.load();
+        }
+        // first term: the two cards due first, in due order
+        assertEquals(did, cards.get(1).getDid());
+        assertEquals(-100000, cards.get(1).getDue());
+        assertEquals(10, cards.get(1).getODue());
+        assertEquals(did, cards.get(2).getDid());
+        assertEquals(-99999, cards.get(2).getDue());
+        // second term continues the positions, and leaves the other card
+        long secondTermCards = cards.stream().filter(c -> c.getDid() == did && c.getDue() == -99998).count();
+        assertEquals(1, secondTermCards);
+        assertEquals(3, col.getDb().queryScalar("select count() from cards where did = ?", did));
+
+        col.getSched().emptyDyn(did);
+        for (Card c : cards) {
+            c.load();
+            assertEquals(0, c.getODid());
+        }
+        assertEquals(10, cards.get(1).getDue());
+    }
+
+
     // hard on the first step should be the average of again and good,
     // and it should be logged properly
 
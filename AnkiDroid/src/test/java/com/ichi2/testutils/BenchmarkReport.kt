@@ -0,0 +1,150 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.testutils
+
+import com.ichi2.utils.JSONObject
+import org.junit.Assume.assumeTrue
+import timber.log.Timber
+import java.io.File
+import java.io.FileWriter
+
+/**
+ * Timings of a benchmark run as a unit test. They are logged, and appended as one JSON object per operation to
+ * `<output>/<suite>.jsonl`, so that runs can be compared by scripts.
+ *
+ * Benchmarks only run when enabled, see [assumeEnabled]. Sizes and the output directory are read from system
+ * properties named `ankidroid.benchmark.*`, which Gradle forwards to the tests:
+ * `./gradlew AnkiDroid:testPlayDebugUnitTest --tests "*Benchmark*" -Dankidroid.benchmark.enabled=true -Dankidroid.benchmark.notes=20000`
+ *
+ * Run benchmarks on their own, as other tests running in parallel skew the timings.
+ */
+class BenchmarkReport(private val mSuite: String) {
+    private val mParameters = JSONObject()
+    private val mSamples = LinkedHashMap<String, Samples>()
+
+    /** Consumes the results of micro-benchmarked calls, so that the JIT can't remove them */
+    @Volatile
+    private var mSink = 0
+
+    /** Durations of [calls] consecutive calls of an operation */
+    private class Samples(val calls: Int) {
+        val nanos = ArrayList<Long>()
+    }
+
+    /** Adds [name] to each result, to tell apart runs with different sizes or implementations */
+    fun parameter(name: String, value: Any): BenchmarkReport {
+        mParameters.put(name, value)
+        return this
+    }
+
+    /** Runs [block] once, recording its duration as a sample of [operation] */
+    fun <T> time(operation: String, block: () -> T): T {
+        val start = System.nanoTime()
+        val result = block()
+        record(operation, 1, System.nanoTime() - start)
+        return result
+    }
+
+    /** Runs [block] [iterations] times, recording each duration as a sample of [operation] */
+    fun measure(operation: String, iterations: Int = BenchmarkReport.iterations, block: () -> Unit) {
+        repeat(iterations) { time(operation, block) }
+    }
+
+    /**
+     * Times a fast operation as JMH would. [block] first runs untimed for [warmups] rounds of [calls] calls, so that
+     * it is compiled. Then each of [iterations] samples is the duration of [calls] consecutive calls, and results are
+     * also reported per call.
+     */
+    fun microbenchmark(operation: String, calls: Int, warmups: Int = 5, iterations: Int = intProperty("microIterations", 10), block: () -> Any?) {
+        repeat(warmups) { callRepeatedly(calls, block) }
+        repeat(iterations) {
+            val start = System.nanoTime()
+            callRepeatedly(calls, block)
+            record(operation, calls, System.nanoTime() - start)
+        }
+    }
+
+    private fun callRepeatedly(calls: Int, block: () -> Any?) {
+        var sink = 0
+        for (i in 0 until calls) {
+            sink += block().hashCode()
+        }
+        mSink += sink
+    }
+
+    private fun record(operation: String, calls: Int, nanos: Long) {
+        mSamples.getOrPut(operation) { Samples(calls) }.nanos.add(nanos)
+    }
+
+    /** Logs the results and appends them to the output file, which is returned */
+    fun write(): File {
+        val dir = outputDir
+        dir.mkdirs()
+        val file = File(dir, "$mSuite.jsonl")
+        FileWriter(file, true).use { writer ->
+            for ((operation, recorded) in mSamples) {
+                val samples = recorded.nanos
+                samples.sort()
+                val result = JSONObject(mParameters.toString())
+                result.put("suite", mSuite)
+                result.put("operation", operation)
+                result.put("iterations", samples.size)
+                result.put("minMs", millis(samples.first()))
+                result.put("medianMs", millis(samples[samples.size / 2]))
+                result.put("maxMs", millis(samples.last()))
+                if (recorded.calls > 1) {
+                    result.put("callsPerIteration", recorded.calls)
+                    result.put("medianNsPerCall", samples[samples.size / 2] / recorded.calls)
+                }
+                result.put("timestamp", System.currentTimeMillis())
+                Timber.i("Benchmark %s", result)
+                writer.write(result.toString())
+                writer.write("\n")
+            }
+        }
+        return file
+    }
+
+    companion object {
+        private const val PROPERTY_PREFIX = "ankidroid.benchmark."
+
+        /** The integer system property `ankidroid.benchmark.[name]`, or [default] */
+        @JvmStatic
+        fun intProperty(name: String, default: Int): Int = System.getProperty(PROPERTY_PREFIX + name)?.toIntOrNull() ?: default
+
+        /**
+         * Skips the calling test or class unless `ankidroid.benchmark.enabled` is true, so that benchmarks do not slow
+         * down the regular test runs. Call from a `@BeforeClass` method.
+         */
+        @JvmStatic
+        fun assumeEnabled() {
+            assumeTrue("Benchmarks run with -D${PROPERTY_PREFIX}enabled=true", property("enabled", "false").toBoolean())
+        }
+
+        /** The system property `ankidroid.benchmark.[name]`, or [default] */
+        @JvmStatic
+        fun property(name: String, default: String): String = System.getProperty(PROPERTY_PREFIX + name) ?: default
+
+        /** Number of samples of each operation */
+        val iterations: Int
+            get() = intProperty("iterations", 3)
+
+        /** Relative to the module directory when run from Gradle */
+        val outputDir: File
+            get() = File(property("output", "build/benchmarks"))
+
+        private fun millis(nanos: Long): Double = nanos / 1_000_000.0
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.testutils
+
+import com.ichi2.libanki.Collection
+import com.ichi2.libanki.Consts
+import com.ichi2.libanki.DB
+import com.ichi2.libanki.Models
+import com.ichi2.libanki.Utils
+import timber.log.Timber
+import java.io.File
+import java.util.Random
+
+/**
+ * Fills a collection with generated content of realistic shape and configurable size, for load tests and benchmarks.
+ *
+ * Decks, note types and tags are created through the collection. Notes, cards and the review history are inserted
+ * directly, by batches through cached prepared statements, in one transaction: this is what makes large profiles take
+ * seconds rather than hours with [Collection.addNote]. The content is pseudo-random but reproducible: the same
+ * [Profile] and seed give the same collection, apart from ids and guids.
+ *
+ * ```
+ * val generated = CollectionGenerator(col, CollectionGenerator.Profile.MEDIUM).generate()
+ * ```
+ */
+class CollectionGenerator(private val mCol: Collection, private val mProfile: Profile, seed: Long = 42) {
+    data class Profile(
+        val notes: Int,
+        val decks: Int,
+        /** Generated decks are nested up to this depth below [ROOT_DECK] */
+        val deckDepth: Int = 3,
+        val noteTypes: Int = 3,
+        /** Fields of the first note type. Each other note type has one more field than the previous one. */
+        val fields: Int = 2,
+        /** Cards of each note */
+        val templates: Int = 1,
+        val distinctTags: Int = 200,
+        val maxTagsPerNote: Int = 3,
+        /** Fraction of the cards in learning. Suspended cards are taken from each state. */
+        val learningFraction: Double = 0.02,
+        val reviewFraction: Double = 0.5,
+        val suspendedFraction: Double = 0.02,
+        /** Average number of review log entries of the cards which are not new */
+        val revlogPerStudiedCard: Int = 10,
+        /** Number of distinct media files referenced by notes */
+        val mediaFiles: Int = 0,
+        val mediaReferenceFraction: Double = 0.1,
+        /** Whether the referenced files are also written to the media folder */
+        val writeMediaFiles: Boolean = true
+    ) {
+        companion object {
+            @JvmField
+            val SMALL = Profile(notes = 1_000, decks = 20, mediaFiles = 50)
+
+            @JvmField
+            val MEDIUM = Profile(notes = 50_000, decks = 500, mediaFiles = 5_000)
+
+            /** 500k cards, about 5M review log entries, 5k decks and 50k media references */
+            @JvmField
+            val LARGE = Profile(
+                notes = 250_000, decks = 5_000, templates = 2, revlogPerStudiedCard = 19,
+                mediaFiles = 50_000, writeMediaFiles = false
+            )
+        }
+    }
+
+    class Generated(
+        /** Ids of the generated decks, parents first. [ROOT_DECK] is not included. */
+        val dids: LongArray,
+        val mids: LongArray,
+        val nids: LongArray,
+        val cards: Int,
+        val revlog: Int,
+        /** Names of the referenced media files */
+        val mediaFiles: List<String>
+    )
+
+    private val mRandom = Random(seed)
+
+    fun generate(): Generated {
+        val start = System.nanoTime()
+        val dids = createDecks()
+        val mids = createNoteTypes()
+        val tags = createTags()
+        val media = List(mProfile.mediaFiles) { if (it % 4 == 0) "generated_$it.mp3" else "generated_$it.jpg" }
+        val nids = LongArray(mProfile.notes)
+        var cards = 0
+        var revlog = 0
+        val db = mCol.db
+        db.executeInTransaction {
+            val notes = Batch(db, "insert into notes values (?,?,?,?,?,?,?,?,?,?,?)")
+            val cardRows = Batch(db, "insert into cards values (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)")
+            val revlogRows = Batch(db, "insert into revlog values (?,?,?,?,?,?,?,?,?)")
+            val now = mCol.time.intTimeMS()
+            // ids are creation times in milliseconds, spread over the last two years
+            val firstId = now - TWO_YEARS_MS
+            val idStep = maxOf(1L, TWO_YEARS_MS / (mProfile.notes.toLong() * mProfile.templates * (2 * mProfile.revlogPerStudiedCard + 1) + 1))
+            var nextId = firstId
+            val usn = mCol.usn()
+            val nowSeconds = now / 1000
+            val today = mCol.sched.today
+            for (i in 0 until mProfile.notes) {
+                val type = skewed(mids.size)
+                val nid = nextId
+                nextId += idStep
+                nids[i] = nid
+                val fields = fields(i, mProfile.fields + type, media)
+                val firstStripped = Utils.stripHTMLMedia(fields[0])
+                notes.add(
+                    nid, Utils.guid64(), mids[type], nowSeconds, usn, tagsOfNote(tags), Utils.joinFields(fields),
+                    firstStripped, Utils.fieldChecksumWithoutHtmlMedia(firstStripped), 0, ""
+                )
+                val did = dids[skewed(dids.size)]
+                for (ord in 0 until mProfile.templates) {
+                    val cid = nextId
+                    nextId += idStep
+                    val studied = addCard(cardRows, cid, nid, did, ord, i + 1, usn, nowSeconds, today)
+                    cards++
+                    if (studied && mProfile.revlogPerStudiedCard > 0) {
+                        for (r in 0 until 1 + mRandom.nextInt(2 * mProfile.revlogPerStudiedCard - 1)) {
+                            val ivl = 1 + mRandom.nextInt(100)
+                            revlogRows.add(
+                                nextId, cid, usn, 1 + mRandom.nextInt(4), ivl, ivl / 2, 2500, 2000 + mRandom.nextInt(20_000),
+                                if (r == 0) Consts.REVLOG_LRN else Consts.REVLOG_REV
+                            )
+                            nextId += idStep
+                            revlog++
+                        }
+                    }
+                }
+            }
+            notes.flush()
+            cardRows.flush()
+            revlogRows.flush()
+        }
+        mCol.set_config("nextPos", mProfile.notes + 1)
+        mCol.tags.register(tags)
+        mCol.save()
+        if (mProfile.writeMediaFiles) {
+            writeMediaFiles(media)
+        }
+        Timber.i(
+            "Generated %d notes, %d cards, %d review log entries and %d decks in %dms",
+            nids.size, cards, revlog, dids.size, (System.nanoTime() - start) / 1_000_000
+        )
+        return Generated(dids, mids, nids, cards, revlog, media)
+    }
+
+    private fun createDecks(): LongArray {
+        val names = ArrayList<String>(mProfile.decks)
+        val depths = IntArray(mProfile.decks)
+        for (i in 0 until mProfile.decks) {
+            // each deck has up to DECK_CHILDREN subdecks
+            val parent = i / DECK_CHILDREN - 1
+            if (parent >= 0 && depths[parent] < mProfile.deckDepth) {
+                names.add(names[parent] + "::Deck $i")
+                depths[i] = depths[parent] + 1
+            } else {
+                names.add("$ROOT_DECK::Deck $i")
+                depths[i] = 1
+            }
+        }
+        return LongArray(names.size) { mCol.decks.id(names[it]) }
+    }
+
+    private fun createNoteTypes(): LongArray {
+        val models = mCol.models
+        return LongArray(mProfile.noteTypes) { type ->
+            val model = models.newModel("Generated $type")
+            val fields = mProfile.fields + type
+            for (f in 0 until fields) {
+                models.addField(model, models.newField("Field $f"))
+            }
+            for (ord in 0 until mProfile.templates) {
+                val template = Models.newTemplate("Card ${ord + 1}")
+                template.put("qfmt", "{{Field ${ord % fields}}}")
+                template.put("afmt", "{{FrontSide}}<hr id=answer>{{Field ${(ord + 1) % fields}}}")
+                models.addTemplateInNewModel(model, template)
+            }
+            models.add(model)
+            model.getLong("id")
+        }.also { models.flush() }
+    }
+
+    /** A mix of flat and hierarchical tags */
+    private fun createTags(): List<String> =
+        List(mProfile.distinctTags) { if (it % 4 == 0) "Topic${it % 10}::tag$it" else "tag$it" }
+
+    private fun tagsOfNote(tags: List<String>): String {
+        val count = mRandom.nextInt(mProfile.maxTagsPerNote + 1)
+        if (count == 0 || tags.isEmpty()) {
+            return ""
+        }
+        val noteTags = sortedSetOf<String>()
+        repeat(count) { noteTags.add(tags[skewed(tags.size)]) }
+        return mCol.tags.join(noteTags)
+    }
+
+    private fun fields(note: Int, count: Int, media: List<String>): Array<String> {
+        return Array(count) { f ->
+            when {
+                // unique, so that notes are not duplicates
+                f == 0 -> "Word $note"
+                f == 1 && media.isNotEmpty() && mRandom.nextDouble() < mProfile.mediaReferenceFraction -> {
+                    val file = media[mRandom.nextInt(media.size)]
+                    if (file.endsWith(".mp3")) "[sound:$file]" else "<img src=\"$file\">"
+                }
+                else -> {
+                    val words = WORDS[mRandom.nextInt(WORDS.size)] + " " + WORDS[mRandom.nextInt(WORDS.size)]
+                    if (mRandom.nextInt(3) == 0) "<b>$words</b> $note" else "$words $note"
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a card in a random state.
+     * @return whether the card was studied, and has a review history
+     */
+    private fun addCard(rows: Batch, cid: Long, nid: Long, did: Long, ord: Int, position: Int, usn: Int, now: Long, today: Int): Boolean {
+        val state = mRandom.nextDouble()
+        val suspended = mRandom.nextDouble() < mProfile.suspendedFraction
+        val type: Int
+        var queue: Int
+        val due: Long
+        var ivl = 0
+        var factor = 0
+        var reps = 0
+        var lapses = 0
+        var left = 0
+        when {
+            state < mProfile.reviewFraction -> {
+                type = Consts.CARD_TYPE_REV
+                queue = Consts.QUEUE_TYPE_REV
+                ivl = 1 + (365 * mRandom.nextDouble() * mRandom.nextDouble()).toInt()
+                // some are overdue
+                due = (today - 5 + mRandom.nextInt(ivl + 5)).toLong()
+                factor = 1300 + mRandom.nextInt(1700)
+                reps = 1 + mRandom.nextInt(30)
+                lapses = mRandom.nextInt(4)
+            }
+            state < mProfile.reviewFraction + mProfile.learningFraction -> {
+                type = Consts.CARD_TYPE_LRN
+                queue = Consts.QUEUE_TYPE_LRN
+                due = now + mRandom.nextInt(3600)
+                factor = 2500
+                reps = 1
+                left = 1001
+            }
+            else -> {
+                type = Consts.CARD_TYPE_NEW
+                queue = Consts.QUEUE_TYPE_NEW
+                due = position.toLong()
+            }
+        }
+        if (suspended) {
+            queue = Consts.QUEUE_TYPE_SUSPENDED
+        }
+        rows.add(cid, nid, did, ord, now, usn, type, queue, due, ivl, factor, reps, lapses, left, 0, 0, 0, "")
+        return type != Consts.CARD_TYPE_NEW
+    }
+
+    private fun writeMediaFiles(media: List<String>) {
+        val dir = File(mCol.media.dir())
+        dir.mkdirs()
+        for (name in media) {
+            File(dir, name).writeText("generated $name")
+        }
+    }
+
+    /** An index in [0, size), smaller indices being more frequent */
+    private fun skewed(size: Int): Int {
+        val r = mRandom.nextDouble()
+        return minOf(size - 1, (r * r * size).toInt())
+    }
+
+    /** Rows bound and executed by [DB.executeManyNoTransaction] by [BATCH_SIZE] */
+    private class Batch(private val mDb: DB, private val mSql: String) {
+        private val mRows = ArrayList<Array<Any>>(BATCH_SIZE)
+
+        fun add(vararg row: Any) {
+            mRows.add(arrayOf(*row))
+            if (mRows.size == BATCH_SIZE) {
+                flush()
+            }
+        }
+
+        fun flush() {
+            if (mRows.isNotEmpty()) {
+                mDb.executeManyNoTransaction(mSql, mRows)
+                mRows.clear()
+            }
+        }
+    }
+
+    companion object {
+        /** Parent of all the generated decks */
+        const val ROOT_DECK = "Generated"
+
+        private const val DECK_CHILDREN = 10
+        private const val BATCH_SIZE = 5_000
+        private const val TWO_YEARS_MS = 2 * 365 * 86_400_000L
+
+        private val WORDS = listOf(
+            "apple", "river", "mountain", "quickly", "library", "history", "molecule", "verb", "theorem", "capital",
+            "harbour", "ancient", "protein", "gradient", "language", "kidney", "orbit", "symphony", "lantern", "delta"
+        )
+    }
+}
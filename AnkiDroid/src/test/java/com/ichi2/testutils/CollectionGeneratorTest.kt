@@ -0,0 +1,64 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.testutils
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import com.ichi2.libanki.Consts
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+
+@RunWith(AndroidJUnit4::class)
+class CollectionGeneratorTest : RobolectricTest() {
+    @Test
+    fun generatedCollectionIsConsistent() {
+        val profile = CollectionGenerator.Profile(notes = 300, decks = 40, templates = 2, mediaFiles = 10)
+        val generated = CollectionGenerator(col, profile).generate()
+
+        assertThat(col.noteCount(), equalTo(300))
+        assertThat(col.cardCount(), equalTo(600))
+        assertThat(generated.cards, equalTo(600))
+        assertThat(col.db.queryScalar("select count() from revlog"), equalTo(generated.revlog))
+        assertThat("no card without note, note without card or invalid ord", col.basicCheck(), equalTo(true))
+        assertThat(col.db.queryScalar("select count() from cards where queue = ?", Consts.QUEUE_TYPE_REV), greaterThan(0))
+        assertThat(col.db.queryScalar("select count() from cards where queue = ?", Consts.QUEUE_TYPE_NEW), greaterThan(0))
+
+        val deckNames = col.decks.allNames()
+        assertThat(deckNames.filter { it.startsWith(CollectionGenerator.ROOT_DECK + "::") }.size, equalTo(40))
+        assertThat("decks are nested", deckNames.maxOf { it.split("::").size }, greaterThan(2))
+        assertThat(col.findNotes("tag:tag1"), not(empty()))
+        assertThat(col.findNotes("\"Field 0:Word 12\""), hasSize(1))
+        for (file in generated.mediaFiles) {
+            assertThat(File(col.media.dir(), file).exists(), equalTo(true))
+        }
+        // the scheduler can use the generated cards
+        assertThat(col.sched.deckDueTree(), not(empty()))
+    }
+
+    @Test
+    fun sameSeedGivesSameContent() {
+        val profile = CollectionGenerator.Profile(notes = 50, decks = 5)
+        CollectionGenerator(col, profile, seed = 7).generate()
+        val first = col.db.queryStringList("select flds || tags from notes order by id")
+        col.remNotes(col.db.queryLongList("select id from notes").toLongArray())
+
+        CollectionGenerator(col, profile, seed = 7).generate()
+
+        assertThat(col.db.queryStringList("select flds || tags from notes order by id"), equalTo(first))
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.utils
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.ichi2.anki.RobolectricTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class TracerTest : RobolectricTest() {
+
+    @Before
+    override fun setUp() {
+        super.setUp()
+        Tracer.clear()
+    }
+
+    @Test
+    fun sectionIsRecordedOnClose() {
+        val section = Tracer.begin("test")
+        assertThat(Tracer.records("test"), empty())
+        section.close()
+        val records = Tracer.records("test")
+        assertThat(records, hasSize(1))
+        assertThat(records[0].durationNanos, greaterThanOrEqualTo(0L))
+    }
+
+    @Test
+    fun closingTwiceRecordsOnce() {
+        val section = Tracer.begin("test")
+        section.close()
+        section.close()
+        assertThat(Tracer.records("test"), hasSize(1))
+    }
+
+    @Test
+    fun ringBufferKeepsMostRecent() {
+        for (i in 0 until Tracer.CAPACITY + 10) {
+            Tracer.trace("span$i") { }
+        }
+        val records = Tracer.records()
+        assertThat(records, hasSize(Tracer.CAPACITY))
+        assertThat(records.first().name, equalTo("span10"))
+        assertThat(records.last().name, equalTo("span${Tracer.CAPACITY + 9}"))
+    }
+
+    @Test
+    fun collectionOpenIsTraced() {
+        assertThat(col.cardCount(), equalTo(0))
+        for (name in listOf("Storage.Collection", "Collection.init", "Collection.load", "Collection._loadScheduler")) {
+            assertThat(name, Tracer.records(name), hasSize(1))
+        }
+        assertThat(Tracer.dump(), containsString("Collection.load"))
+    }
+}